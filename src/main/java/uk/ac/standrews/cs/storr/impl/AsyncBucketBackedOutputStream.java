@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.storr.interfaces.IOutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An output stream whose records are written to the bucket by a pool of writer threads, so that the thread adding
+ * records does not wait for each one to be written. Records are queued in a bounded queue; when it is full, add
+ * waits for the writers to catch up. Each writer takes as many queued records as are available, up to a batch size,
+ * and writes them using makePersistentAll.
+ * <p>
+ * flush and close wait until all the records added have been written. The first BucketException raised by a
+ * writer is thrown by the next call of add, flush or close. Records in a batch that failed may not have been written.
+ */
+public class AsyncBucketBackedOutputStream<T extends PersistentObject> extends BucketBackedAbstractStream<T> implements IOutputStream<T> {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final BlockingQueue<T> queue;
+    private final ExecutorService writers;
+    private final int batch_size;
+
+    private final Object lock = new Object();
+    private long pending = 0;               // records added but not yet written or failed
+    private BucketException failure = null; // the first failure since the last flush
+    private boolean closed = false;
+
+    public AsyncBucketBackedOutputStream(final IBucket<T> bucket) {
+        this(bucket, DEFAULT_QUEUE_CAPACITY, DEFAULT_WRITER_THREADS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param bucket         the bucket to which records are written
+     * @param queue_capacity the number of records that may be waiting to be written before add blocks
+     * @param writer_threads the number of threads writing records
+     * @param batch_size     the largest number of records written together
+     */
+    public AsyncBucketBackedOutputStream(final IBucket<T> bucket, final int queue_capacity, final int writer_threads, final int batch_size) {
+
+        super(bucket);
+        this.batch_size = batch_size;
+
+        queue = new ArrayBlockingQueue<>(queue_capacity);
+        writers = Executors.newFixedThreadPool(writer_threads, runnable -> {
+            final Thread thread = new Thread(runnable, "writer for bucket " + bucket.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < writer_threads; i++) {
+            writers.execute(this::writeRecords);
+        }
+    }
+
+    /**
+     * Queues a record to be written, waiting if the queue is full.
+     *
+     * @param record - the record to be added to a stream
+     * @throws BucketException if the stream has been closed or a writer has failed
+     */
+    @Override
+    public void add(final T record) throws BucketException {
+
+        synchronized (lock) {
+            if (closed) {
+                throw new BucketException("stream closed");
+            }
+            throwFailure();
+            pending++;
+        }
+        try {
+            queue.put(record);
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            recordsDone(1);
+            throw new BucketException("interrupted adding record to stream");
+        }
+    }
+
+    /**
+     * Waits until all records added to the stream have been written.
+     *
+     * @throws BucketException if a writer has failed
+     */
+    @Override
+    public void flush() throws BucketException {
+
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BucketException("interrupted flushing stream");
+                }
+            }
+            throwFailure();
+        }
+    }
+
+    @Override
+    public void close() throws BucketException {
+
+        try {
+            flush();
+
+        } finally {
+            synchronized (lock) {
+                closed = true;
+            }
+            writers.shutdownNow(); // the writers are idle, waiting for records
+            try {
+                writers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //******** Private methods *********
+
+    private void writeRecords() {
+
+        final List<T> batch = new ArrayList<>(batch_size);
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (final InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batch_size - 1);
+
+            try {
+                bucket.makePersistentAll(batch);
+
+            } catch (final BucketException e) {
+                recordFailure(e);
+            } catch (final RuntimeException e) {
+                recordFailure(new BucketException(e));
+            } finally {
+                recordsDone(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private void recordFailure(final BucketException e) {
+
+        synchronized (lock) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    private void recordsDone(final int count) {
+
+        synchronized (lock) {
+            pending -= count;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+     * Called with lock held.
+     */
+    private void throwFailure() throws BucketException {
+
+        if (failure != null) {
+            final BucketException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+}
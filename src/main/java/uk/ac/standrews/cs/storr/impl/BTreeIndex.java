@@ -0,0 +1,747 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.KeyNotFoundException;
+import uk.ac.standrews.cs.storr.impl.exceptions.TypeMismatchFoundException;
+import uk.ac.standrews.cs.storr.interfaces.IInputStream;
+import uk.ac.standrews.cs.storr.interfaces.IOrderedBucketIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An ordered index of the records of a bucket by the value of one field, held as a B+tree in a single memory-mapped file.
+ * <p>
+ * Each entry of the tree is the encoding of a value, as given by {@link IndexKeys}, followed by the id of a record
+ * with that value, so entries are unique and those with equal values are adjacent, ordered by id. Entries are compared
+ * as unsigned byte strings. Leaves are chained in order, so a range is read by finding the leaf holding its lower
+ * bound and following the chain.
+ * <p>
+ * The file is a sequence of pages of {@link #PAGE_SIZE} bytes, the first of which is a header. Each other page is a node:
+ * <pre>
+ *     header := MAGIC:int root_page:int page_count:int value_tag:byte
+ *     node   := type:byte count:short link:int cell_offset:short*count cell*count
+ *     cell   := length:short entry                       -- in a leaf, where link is the next leaf, or 0 for none
+ *     cell   := length:short entry child_page:int        -- in an internal node, where link is the first child
+ * </pre>
+ * The child page of a cell in an internal node holds the entries not less than that of the cell.
+ * The value tag records the type of the first value indexed, and is used to interpret the strings given to {@link #values(String)}.
+ * The index is maintained by the process that writes to the bucket.
+ */
+class BTreeIndex implements IOrderedBucketIndex, BulkLoadedIndex {
+
+    static final String TREE_FILE_NAME = "TREE";
+    static final int PAGE_SIZE = 4096;
+
+    /**
+     * The maximum length of the encoding of an indexed value, which ensures that a node holds at least four entries.
+     */
+    static final int MAXIMUM_VALUE_LENGTH = 1000;
+
+    private static final int MAGIC = 0x42545231;
+    private static final int ROOT_PAGE = 4;
+    private static final int PAGE_COUNT = 8;
+    private static final int VALUE_TAG = 12;
+
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int NODE_HEADER_SIZE = 7;
+
+    /**
+     * The number of bytes of each node filled by bulk loading, leaving room for later insertions.
+     */
+    private static final int LOAD_FILL = PAGE_SIZE * 9 / 10;
+
+    private static final long INITIAL_MAPPED_SIZE = 16 * PAGE_SIZE;
+
+    // Entries and search keys, which are bare encoded values, are compared as byte strings. Since encoded values are
+    // self-delimiting, this orders entries as BulkLoadedIndex.ENTRY_ORDER does.
+    private static final Comparator<byte[]> TREE_ORDER = IndexKeys::compare;
+
+    private final String label;
+    private final Path tree_path;
+    private final DirectoryBackedIndexedBucket indexed_bucket;
+
+    private FileChannel channel = null;     // opened on first use
+    private MappedByteBuffer map;
+    private long mapped_size;
+
+    /**
+     * @param label          the label of the field being indexed
+     * @param dir            the directory holding the index, which must already exist
+     * @param indexed_bucket the bucket being indexed
+     */
+    BTreeIndex(final String label, final Path dir, final DirectoryBackedIndexedBucket indexed_bucket) {
+
+        this.label = label;
+        this.tree_path = dir.resolve(TREE_FILE_NAME);
+        this.indexed_bucket = indexed_bucket;
+    }
+
+    @Override
+    public synchronized Set<String> keySet() throws BucketException {
+
+        open();
+        final Set<String> keys = new LinkedHashSet<>();
+        Node node = leftmostLeaf();
+
+        while (true) {
+            for (final byte[] entry : node.entries) {
+                keys.add(keyString(valueOf(entry)));
+            }
+            if (node.link == 0) {
+                return keys;
+            }
+            node = read(node.link);
+        }
+    }
+
+    @Override
+    public synchronized List<Long> values(final String value) throws BucketException {
+
+        open();
+        final Object typed_value;
+        try {
+            switch (map.get(VALUE_TAG)) {
+                case IndexKeys.INTEGRAL:
+                    typed_value = Long.valueOf(value);
+                    break;
+                case IndexKeys.FLOATING:
+                    typed_value = Double.valueOf(value);
+                    break;
+                case IndexKeys.BOOLEAN:
+                    typed_value = Boolean.valueOf(value);
+                    break;
+                default:
+                    typed_value = value;
+            }
+        } catch (final NumberFormatException e) {
+            return new ArrayList<>(); // no value of the indexed type has this string form
+        }
+        return valuesWithKeyPrefix(IndexKeys.encode(typed_value));
+    }
+
+    @Override
+    public IInputStream records(final String value) throws BucketException {
+        return stream(values(value));
+    }
+
+    @Override
+    public IInputStream range(final Object from, final Object to) throws BucketException {
+        return stream(rangeValues(from, to));
+    }
+
+    @Override
+    public synchronized List<Long> rangeValues(final Object from, final Object to) throws BucketException {
+
+        open();
+        return scan(from == null ? null : IndexKeys.encode(from), to == null ? null : IndexKeys.encode(to), null);
+    }
+
+    @Override
+    public IInputStream prefix(final String prefix) throws BucketException {
+        return stream(prefixValues(prefix));
+    }
+
+    @Override
+    public synchronized List<Long> prefixValues(final String prefix) throws BucketException {
+
+        open();
+        final byte[] encoded_prefix = new IndexKeys().appendStringPrefix(prefix).toByteArray();
+        return scan(encoded_prefix, null, encoded_prefix);
+    }
+
+    @Override
+    public IInputStream ascending() throws BucketException {
+        return range(null, null);
+    }
+
+    @Override
+    public synchronized void add(final LXP record) throws BucketException {
+
+        final byte[] entry = entryOf(record);
+        if (entry != null) {
+            open();
+            if (map.get(VALUE_TAG) == 0) {
+                map.put(VALUE_TAG, entry[0]);
+            }
+            insert(entry);
+        }
+    }
+
+    @Override
+    public synchronized void remove(final LXP record) throws BucketException {
+
+        final byte[] entry = entryOf(record);
+        if (entry != null) {
+            open();
+            remove(entry);
+        }
+    }
+
+    @Override
+    public synchronized void apply(final List<byte[]> removed_entries, final List<byte[]> added_entries) throws BucketException {
+
+        open();
+        for (final byte[] entry : removed_entries) {
+            remove(entry);
+        }
+        for (final byte[] entry : added_entries) {
+            if (map.get(VALUE_TAG) == 0) {
+                map.put(VALUE_TAG, entry[0]);
+            }
+            insert(entry);
+        }
+    }
+
+    @Override
+    public byte[] entryOf(final LXP record) throws BucketException {
+
+        final byte[] key = keyOf(record);
+        if (key == null) {
+            return null;
+        }
+        if (key.length > MAXIMUM_VALUE_LENGTH) {
+            throw new BucketException("value of " + label + " is too long to index in record: " + record.getId());
+        }
+        return BulkLoadedIndex.entry(key, record.getId());
+    }
+
+    /**
+     * Rewrites the tree bottom up from the merged entries, filling each node to {@link #LOAD_FILL}, and replaces the
+     * file atomically.
+     */
+    @Override
+    public synchronized void load(final List<byte[]> sorted_entries, final Set<Long> excluded) throws BucketException {
+
+        open();
+        final List<byte[]> entries = BulkLoadedIndex.merge(sorted_entries, excluded, scan(null));
+        final byte value_tag = entries.isEmpty() ? map.get(VALUE_TAG) : entries.get(0)[0];
+
+        final Path temp_path = tree_path.resolveSibling(TREE_FILE_NAME + ".new");
+        try {
+            close();
+            channel = FileChannel.open(temp_path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped_size = 0;
+            ensureMapped(INITIAL_MAPPED_SIZE);
+            map.putInt(0, MAGIC);
+            map.putInt(PAGE_COUNT, 1);
+            map.put(VALUE_TAG, value_tag);
+
+            // The leaves, each linked to the next, which is allocated before it is written.
+            final List<Integer> pages = new ArrayList<>();
+            final List<byte[]> lowest_entries = new ArrayList<>();
+
+            int page = allocatePage();
+            Node node = new Node(true, 0);
+            int size = NODE_HEADER_SIZE;
+
+            for (final byte[] entry : entries) {
+                final int cell_size = 4 + entry.length;
+                if (size + cell_size > LOAD_FILL && !node.entries.isEmpty()) {
+                    pages.add(page);
+                    lowest_entries.add(node.entries.get(0));
+                    node.link = allocatePage();
+                    write(page, node);
+                    page = node.link;
+                    node = new Node(true, 0);
+                    size = NODE_HEADER_SIZE;
+                }
+                node.entries.add(entry);
+                size += cell_size;
+            }
+            write(page, node);
+            pages.add(page);
+            lowest_entries.add(node.entries.isEmpty() ? null : node.entries.get(0));
+
+            // Each level of internal nodes, separating its children by their lowest entries, up to a single root.
+            while (pages.size() > 1) {
+
+                final List<Integer> parent_pages = new ArrayList<>();
+                final List<byte[]> parent_lowest_entries = new ArrayList<>();
+
+                node = new Node(false, pages.get(0));
+                parent_lowest_entries.add(lowest_entries.get(0));
+                size = NODE_HEADER_SIZE;
+
+                for (int i = 1; i < pages.size(); i++) {
+                    final int cell_size = 8 + lowest_entries.get(i).length;
+                    if (size + cell_size > LOAD_FILL && !node.entries.isEmpty()) {
+                        parent_pages.add(allocatePage());
+                        write(parent_pages.get(parent_pages.size() - 1), node);
+                        node = new Node(false, pages.get(i));
+                        parent_lowest_entries.add(lowest_entries.get(i));
+                        size = NODE_HEADER_SIZE;
+                    } else {
+                        node.entries.add(lowest_entries.get(i));
+                        node.children.add(pages.get(i));
+                        size += cell_size;
+                    }
+                }
+                parent_pages.add(allocatePage());
+                write(parent_pages.get(parent_pages.size() - 1), node);
+
+                pages.clear();
+                pages.addAll(parent_pages);
+                lowest_entries.clear();
+                lowest_entries.addAll(parent_lowest_entries);
+            }
+            map.putInt(ROOT_PAGE, pages.get(0));
+            map.force();
+
+            close();
+            Files.move(temp_path, tree_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (final IOException e) {
+            throw new BucketException("Cannot load index of " + label + ": " + e.getMessage());
+        } finally {
+            channel = null;
+        }
+        open();
+    }
+
+    /**
+     * @param record a record of the bucket being indexed
+     * @return the encoding of the value of the record by which it is indexed, or null if it is not indexed
+     * @throws BucketException if the value cannot be indexed
+     */
+    byte[] keyOf(final LXP record) throws BucketException {
+
+        final Object value = valueOf(record);
+        return value == null ? null : IndexKeys.encode(value);
+    }
+
+    /**
+     * @param key the encoding of a value by which records are indexed
+     * @return the string form of the value, as given by {@link #keySet()}
+     */
+    String keyString(final byte[] key) {
+        return IndexKeys.decode(key, 0).toString();
+    }
+
+    /**
+     * @param prefix the encoding of one or more complete values
+     * @return the ids of the records whose encoded values start with the given one, in order of value
+     * @throws BucketException if the underlying index cannot be read
+     */
+    synchronized List<Long> valuesWithKeyPrefix(final byte[] prefix) throws BucketException {
+
+        open();
+        return scan(prefix, null, prefix);
+    }
+
+    IInputStream stream(final List<Long> ids) throws BucketException {
+
+        final List<File> files = new ArrayList<>();
+        for (final long id : ids) {
+            files.add(indexed_bucket.filePath(id).toFile());
+        }
+
+        try {
+            return new IndexedBucketInputStream(indexed_bucket, files.iterator());
+        } catch (final IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
+
+    //******** Private methods *********
+
+    private static final class Node {
+
+        final boolean leaf;
+        int link;
+        final List<byte[]> entries = new ArrayList<>();
+        final List<Integer> children = new ArrayList<>(); // the child page of each entry, in an internal node
+
+        Node(final boolean leaf, final int link) {
+            this.leaf = leaf;
+            this.link = link;
+        }
+
+        int child(final int index) {
+            return index == 0 ? link : children.get(index - 1);
+        }
+
+        int cellSize(final int index) {
+            return 4 + entries.get(index).length + (leaf ? 0 : 4); // with its offset
+        }
+
+        int size() {
+
+            int size = NODE_HEADER_SIZE;
+            for (int i = 0; i < entries.size(); i++) {
+                size += cellSize(i);
+            }
+            return size;
+        }
+    }
+
+    private static final class Split {
+
+        final byte[] separator;
+        final int right_page;
+
+        Split(final byte[] separator, final int right_page) {
+            this.separator = separator;
+            this.right_page = right_page;
+        }
+    }
+
+    /*
+     * The value of the indexed field of a record, or null if it is not set.
+     */
+    private Object valueOf(final LXP record) throws BucketException {
+
+        try {
+            return record.get(label);
+
+        } catch (final KeyNotFoundException e) {
+            throw new BucketException("type label: " + label + " not found");
+        } catch (final TypeMismatchFoundException e) {
+            throw new BucketException("type mismatch");
+        }
+    }
+
+    private static byte[] valueOf(final byte[] entry) {
+        return Arrays.copyOf(entry, entry.length - ID_LENGTH);
+    }
+
+    /*
+     * The ids of the entries from the first not less than the given lower bound, while their values are not greater
+     * than the upper bound, or start with it, and start with the prefix. Each of these may be null. Since encodings
+     * are self-delimiting, a value starting with the upper bound is equal to it unless it is made of several values.
+     */
+    private List<Long> scan(final byte[] from, final byte[] to, final byte[] prefix) {
+
+        final List<Long> ids = new ArrayList<>();
+        Node node;
+        int position;
+
+        if (from == null) {
+            node = leftmostLeaf();
+            position = 0;
+        } else {
+            node = leaf(from);
+            position = insertionPoint(node, from);
+        }
+
+        while (true) {
+            for (; position < node.entries.size(); position++) {
+
+                final byte[] entry = node.entries.get(position);
+                final byte[] value = valueOf(entry);
+
+                if ((to != null && IndexKeys.compare(value, to) > 0 && !IndexKeys.startsWith(value, to)) || (prefix != null && !IndexKeys.startsWith(value, prefix))) {
+                    return ids;
+                }
+                ids.add(BulkLoadedIndex.idOf(entry));
+            }
+            if (node.link == 0) {
+                return ids;
+            }
+            node = read(node.link);
+            position = 0;
+        }
+    }
+
+    /*
+     * The entries of the tree from the first not less than the given lower bound, or all of them if it is null.
+     */
+    private List<byte[]> scan(final byte[] from) {
+
+        final List<byte[]> entries = new ArrayList<>();
+        Node node = from == null ? leftmostLeaf() : leaf(from);
+        int position = from == null ? 0 : insertionPoint(node, from);
+
+        while (true) {
+            entries.addAll(node.entries.subList(position, node.entries.size()));
+            if (node.link == 0) {
+                return entries;
+            }
+            node = read(node.link);
+            position = 0;
+        }
+    }
+
+    private Node leaf(final byte[] key) {
+        return read(leafPage(key));
+    }
+
+    private int leafPage(final byte[] key) {
+
+        int page = map.getInt(ROOT_PAGE);
+        Node node = read(page);
+        while (!node.leaf) {
+            page = node.child(childIndex(node, key));
+            node = read(page);
+        }
+        return page;
+    }
+
+    /*
+     * Removes an entry from its leaf. Nodes are not merged when they become sparse, and empty leaves stay in the
+     * chain, where scans pass over them.
+     */
+    private void remove(final byte[] entry) {
+
+        final int page = leafPage(entry);
+        final Node node = read(page);
+        final int position = Collections.binarySearch(node.entries, entry, TREE_ORDER);
+
+        if (position >= 0) {
+            node.entries.remove(position);
+            write(page, node);
+        }
+    }
+
+    private Node leftmostLeaf() {
+
+        Node node = read(map.getInt(ROOT_PAGE));
+        while (!node.leaf) {
+            node = read(node.link);
+        }
+        return node;
+    }
+
+    private void insert(final byte[] entry) throws BucketException {
+
+        final int root_page = map.getInt(ROOT_PAGE);
+        final Split split = insert(root_page, entry);
+
+        if (split != null) {
+            final Node root = new Node(false, root_page);
+            root.entries.add(split.separator);
+            root.children.add(split.right_page);
+
+            final int page = allocatePage();
+            write(page, root);
+            map.putInt(ROOT_PAGE, page);
+        }
+    }
+
+    /*
+     * Inserts an entry into the subtree rooted at the given page, returning the split of that page if it overflowed.
+     */
+    private Split insert(final int page, final byte[] entry) throws BucketException {
+
+        final Node node = read(page);
+
+        if (node.leaf) {
+            final int position = Collections.binarySearch(node.entries, entry, TREE_ORDER);
+            if (position >= 0) {
+                return null; // already indexed
+            }
+            node.entries.add(-position - 1, entry);
+
+        } else {
+            final int index = childIndex(node, entry);
+            final Split split = insert(node.child(index), entry);
+            if (split == null) {
+                return null;
+            }
+            node.entries.add(index, split.separator);
+            node.children.add(index, split.right_page);
+        }
+
+        if (node.size() <= PAGE_SIZE) {
+            write(page, node);
+            return null;
+        }
+        return split(page, node);
+    }
+
+    /*
+     * Moves the upper half of the entries of an overflowing node, by size, to a new page.
+     */
+    private Split split(final int page, final Node node) throws BucketException {
+
+        final int count = node.entries.size();
+        final int half = node.size() / 2;
+
+        int middle = 0;
+        for (int size = NODE_HEADER_SIZE; size < half; middle++) {
+            size += node.cellSize(middle);
+        }
+        middle = Math.max(1, Math.min(middle, node.leaf ? count - 1 : count - 2));
+
+        final byte[] separator = node.entries.get(middle);
+        final int right_page = allocatePage();
+        final Node right;
+
+        if (node.leaf) {
+            right = new Node(true, node.link);
+            right.entries.addAll(node.entries.subList(middle, count));
+            node.link = right_page;
+
+        } else {
+            // The separator moves up, and its child becomes the first child of the new node.
+            right = new Node(false, node.children.get(middle));
+            right.entries.addAll(node.entries.subList(middle + 1, count));
+            right.children.addAll(node.children.subList(middle + 1, count));
+            node.children.subList(middle, count).clear();
+        }
+        node.entries.subList(middle, count).clear();
+
+        write(page, node);
+        write(right_page, right);
+        return new Split(separator, right_page);
+    }
+
+    /*
+     * The index of the child of an internal node whose subtree may hold the given key: the number of entries not greater than it.
+     */
+    private static int childIndex(final Node node, final byte[] key) {
+
+        final int position = Collections.binarySearch(node.entries, key, TREE_ORDER);
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    /*
+     * The position of the first entry of a leaf not less than the given key.
+     */
+    private static int insertionPoint(final Node node, final byte[] key) {
+
+        final int position = Collections.binarySearch(node.entries, key, TREE_ORDER);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private Node read(final int page) {
+
+        final int base = page * PAGE_SIZE;
+        final ByteBuffer view = map.duplicate();
+
+        final Node node = new Node(map.get(base) == LEAF, map.getInt(base + 3));
+        final int count = map.getShort(base + 1) & 0xFFFF;
+
+        for (int i = 0; i < count; i++) {
+
+            final int cell = base + (map.getShort(base + NODE_HEADER_SIZE + 2 * i) & 0xFFFF);
+            final byte[] entry = new byte[map.getShort(cell) & 0xFFFF];
+            view.position(cell + 2);
+            view.get(entry);
+            node.entries.add(entry);
+
+            if (!node.leaf) {
+                node.children.add(map.getInt(cell + 2 + entry.length));
+            }
+        }
+        return node;
+    }
+
+    private void write(final int page, final Node node) {
+
+        final int base = page * PAGE_SIZE;
+        final ByteBuffer view = map.duplicate();
+        final int count = node.entries.size();
+
+        map.put(base, node.leaf ? LEAF : INTERNAL);
+        map.putShort(base + 1, (short) count);
+        map.putInt(base + 3, node.link);
+
+        int cell = NODE_HEADER_SIZE + 2 * count;
+        for (int i = 0; i < count; i++) {
+
+            final byte[] entry = node.entries.get(i);
+            map.putShort(base + NODE_HEADER_SIZE + 2 * i, (short) cell);
+            map.putShort(base + cell, (short) entry.length);
+            view.position(base + cell + 2);
+            view.put(entry);
+            cell += 2 + entry.length;
+
+            if (!node.leaf) {
+                map.putInt(base + cell, node.children.get(i));
+                cell += 4;
+            }
+        }
+    }
+
+    private int allocatePage() throws BucketException {
+
+        final int page = map.getInt(PAGE_COUNT);
+        ensureMapped((long) (page + 1) * PAGE_SIZE);
+        map.putInt(PAGE_COUNT, page + 1);
+        return page;
+    }
+
+    /*
+     * Opens and maps the file, creating an empty tree if there is none.
+     */
+    private void open() throws BucketException {
+
+        if (channel != null) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(tree_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final long size = channel.size();
+            mapped_size = 0;
+            ensureMapped(Math.max(size, INITIAL_MAPPED_SIZE));
+
+            if (size == 0) {
+                map.putInt(0, MAGIC);
+                map.putInt(PAGE_COUNT, 1);
+                final int root_page = allocatePage();
+                write(root_page, new Node(true, 0));
+                map.putInt(ROOT_PAGE, root_page);
+
+            } else if (map.getInt(0) != MAGIC) {
+                throw new BucketException("Index file for " + label + " is not an ordered index: " + tree_path);
+            }
+        } catch (final IOException e) {
+            channel = null;
+            throw new BucketException(e.getMessage());
+        }
+    }
+
+    private void close() throws IOException {
+
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void ensureMapped(final long size) throws BucketException {
+
+        if (size <= mapped_size) {
+            return;
+        }
+        long new_size = Math.max(mapped_size, INITIAL_MAPPED_SIZE);
+        while (new_size < size) {
+            new_size *= 2;
+        }
+        if (new_size > Integer.MAX_VALUE) {
+            throw new BucketException("Index for " + label + " has exceeded its maximum size");
+        }
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, new_size);
+            mapped_size = new_size;
+
+        } catch (final IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
+}
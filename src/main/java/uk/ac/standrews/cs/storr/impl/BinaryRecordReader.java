@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static uk.ac.standrews.cs.storr.impl.BinaryRecordWriter.*;
+
+/**
+ * Reads the state of a record written by {@link BinaryRecordWriter}.
+ * The fields are read in the order in which they were written.
+ */
+final class BinaryRecordReader {
+
+    private final ByteBuffer buffer;
+    private final boolean named;
+    private final int field_count;
+    private final StringDictionary dictionary;  // null if strings are neither coded nor pooled
+
+    /**
+     * @param record     the serialized state of a record
+     * @param dictionary the dictionary through which coded strings are decoded and other strings pooled, or null
+     * @throws PersistentObjectException if the record is not in a version of the binary encoding that can be read
+     */
+    BinaryRecordReader(final byte[] record, final StringDictionary dictionary) throws PersistentObjectException {
+
+        buffer = ByteBuffer.wrap(record);
+        this.dictionary = dictionary;
+        try {
+            final byte version;
+            if (buffer.get() != MAGIC || (version = buffer.get()) > VERSION || version < OLDEST_READABLE_VERSION) {
+                throw new PersistentObjectException("Record is not in a known binary encoding");
+            }
+            named = (buffer.get() & NAMED) != 0;
+            field_count = buffer.getInt();
+
+        } catch (final BufferUnderflowException e) {
+            throw new PersistentObjectException("Truncated binary record");
+        }
+    }
+
+    /**
+     * Creates a reader over unnamed fields written without a record header, as held in the columns of a columnar bucket.
+     *
+     * @param fields      the fields, each length prefixed
+     * @param field_count the number of fields
+     * @param dictionary  the dictionary through which coded strings are decoded and other strings pooled, or null
+     */
+    BinaryRecordReader(final ByteBuffer fields, final int field_count, final StringDictionary dictionary) {
+
+        buffer = fields;
+        named = false;
+        this.field_count = field_count;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return true if the names of the fields were written
+     */
+    boolean isNamed() {
+        return named;
+    }
+
+    int getFieldCount() {
+        return field_count;
+    }
+
+    /**
+     * @return the number of bytes of serialized state held by this reader
+     */
+    int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the name of the next field; only to be called if the fields are named
+     * @throws PersistentObjectException if the record is truncated
+     */
+    String readName() throws PersistentObjectException {
+
+        try {
+            return pooled(readString());
+
+        } catch (final BufferUnderflowException e) {
+            throw new PersistentObjectException("Truncated binary record");
+        }
+    }
+
+    /**
+     * @return the value of the next field
+     * @throws PersistentObjectException if the record is truncated or malformed
+     */
+    Object readValue() throws PersistentObjectException {
+
+        try {
+            buffer.getInt(); // the length of the field, not needed when every field is read
+            return readTaggedValue();
+
+        } catch (final BufferUnderflowException e) {
+            throw new PersistentObjectException("Truncated binary record");
+        }
+    }
+
+    /**
+     * Passes over the value of the next field without decoding it.
+     *
+     * @return the position of the field, from which its value can later be read by @method readValueAt
+     * @throws PersistentObjectException if the record is truncated
+     */
+    int skipValue() throws PersistentObjectException {
+
+        try {
+            final int position = buffer.position();
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            buffer.position(buffer.position() + length);
+            return position;
+
+        } catch (final BufferUnderflowException e) {
+            throw new PersistentObjectException("Truncated binary record");
+        }
+    }
+
+    /**
+     * Reads the value of a field passed over by @method skipValue; safe to call from several threads.
+     *
+     * @param position the position of the field
+     * @return the value of the field
+     * @throws PersistentObjectException if the record is malformed
+     */
+    Object readValueAt(final int position) throws PersistentObjectException {
+
+        final ByteBuffer field = buffer.duplicate();
+        field.position(position + Integer.BYTES);
+        try {
+            return readTaggedValue(field);
+
+        } catch (final BufferUnderflowException e) {
+            throw new PersistentObjectException("Truncated binary record");
+        }
+    }
+
+    private Object readTaggedValue() throws PersistentObjectException {
+        return readTaggedValue(buffer);
+    }
+
+    private Object readTaggedValue(final ByteBuffer buffer) throws PersistentObjectException {
+
+        final byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return pooled(readString(buffer)); // keep the Strings the same whenever possible.
+            case CODED_STRING:
+                if (dictionary == null) {
+                    throw new PersistentObjectException("Coded string in binary record read without a string dictionary");
+                }
+                return dictionary.get(buffer.getInt());
+            case INT:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case LIST:
+                final int size = buffer.getInt();
+                final List list = new ArrayList(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readTaggedValue(buffer));
+                }
+                return list;
+            default:
+                throw new PersistentObjectException("Unknown value tag in binary record: " + tag);
+        }
+    }
+
+    private String pooled(final String value) {
+        return dictionary == null ? value : dictionary.canonical(value);
+    }
+
+    private String readString() {
+        return readString(buffer);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+
+        final int length = buffer.getInt();
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
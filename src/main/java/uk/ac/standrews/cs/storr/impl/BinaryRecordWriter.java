@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+import uk.ac.standrews.cs.storr.interfaces.IStoreReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the state of a record in the compact binary encoding.
+ * <p>
+ * A record is a header followed by its fields:
+ * <pre>
+ *     record := MAGIC VERSION flags:byte field_count:int field*
+ *     field  := [name:string] length:int value       -- the name is present only if flags has NAMED set
+ *     value  := NULL | STRING string | CODED_STRING code:int | INT int | LONG long | DOUBLE double | BOOLEAN byte | LIST count:int value*
+ *     string := length:int utf8-bytes
+ * </pre>
+ * All numbers are big-endian. The length of each field allows a reader to skip fields it does not need.
+ * Fields are written in slot order and unnamed when the reader is known to have the same metadata, as for a record
+ * written to a bucket typed with its own class; otherwise they are named, as in JSON.
+ * References, and records held in lists, are written as the strings of their references, as in JSON.
+ * String values held in the persistent {@link StringDictionary} of the store are written as their codes.
+ * Version 1 records, written before codes were introduced, have no coded strings.
+ */
+final class BinaryRecordWriter {
+
+    static final byte MAGIC = (byte) 0xB1;  // never the first byte of a JSON record, which is UTF-8 text
+    static final byte VERSION = 2;
+    static final byte OLDEST_READABLE_VERSION = 1;
+    static final byte NAMED = 1;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte BOOLEAN = 5;
+    static final byte LIST = 6;
+    static final byte CODED_STRING = 7;
+
+    private static final int INITIAL_SIZE = 256;
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int position = 0;
+    private boolean named;
+
+    private final StringDictionary dictionary;  // null if strings are not to be coded
+
+    /**
+     * @param dictionary the dictionary whose codes are written for string values, or null if strings are always written in full
+     */
+    BinaryRecordWriter(final StringDictionary dictionary) {
+        this.dictionary = dictionary != null && dictionary.isPersistent() ? dictionary : null;
+    }
+
+    /**
+     * @param record the serialized state of a record
+     * @return true if the record was written in the binary encoding
+     */
+    static boolean isBinary(final byte[] record) {
+        return record.length > 0 && record[0] == MAGIC;
+    }
+
+    /**
+     * Writes the header of a record.
+     *
+     * @param named       true if the names of the fields are to be written
+     * @param field_count the number of fields that will be written
+     */
+    void startRecord(final boolean named, final int field_count) {
+
+        this.named = named;
+        writeByte(MAGIC);
+        writeByte(VERSION);
+        writeByte(named ? NAMED : 0);
+        writeInt(field_count);
+    }
+
+    /**
+     * Writes a field of the record; fields of unnamed records must be written in slot order.
+     *
+     * @param name  the name of the field
+     * @param value the value of the field
+     * @throws PersistentObjectException if the value contains a record that has not been made persistent
+     */
+    void writeField(final String name, final Object value) throws PersistentObjectException {
+
+        if (named) {
+            writeString(name);
+        }
+        final int length_position = position;
+        writeInt(0); // patched below when the length is known
+        writeValue(value);
+        putInt(length_position, position - length_position - Integer.BYTES);
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    int size() {
+        return position;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void writeValue(final Object value) throws PersistentObjectException {
+
+        if (value == null) {
+            writeByte(NULL);
+        } else if (value instanceof String) {
+            writeString(STRING, (String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeByte(INT); // read back as an Integer, as from JSON
+            writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            writeByte(LONG);
+            writeLong((Long) value);
+        } else if (value instanceof Double) {
+            writeByte(DOUBLE);
+            writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            writeByte(DOUBLE); // read back as the Double that JSON would write, rather than the float widened
+            writeLong(Double.doubleToRawLongBits(Double.parseDouble(value.toString())));
+        } else if (value instanceof Boolean) {
+            writeByte(BOOLEAN);
+            writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+        } else if (value instanceof List) {
+            final List list = (List) value;
+            writeByte(LIST);
+            writeInt(list.size());
+            for (final Object element : list) {
+                writeValue(element);
+            }
+        } else if (value instanceof PersistentObject && !(value instanceof IStoreReference)) {
+            writeString(STRING, ((PersistentObject) value).getThisRef().toString());
+        } else {
+            writeString(STRING, value.toString()); // references, characters and anything else are written as strings, as in JSON
+        }
+    }
+
+    private void writeString(final byte tag, final String value) {
+
+        final int code = dictionary == null ? StringDictionary.NO_CODE : dictionary.code(value);
+        if (code != StringDictionary.NO_CODE) {
+            writeByte(CODED_STRING);
+            writeInt(code);
+        } else {
+            writeByte(tag);
+            writeString(value);
+        }
+    }
+
+    private void writeString(final String value) {
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(final byte value) {
+
+        ensureCapacity(1);
+        buffer[position++] = value;
+    }
+
+    private void writeInt(final int value) {
+
+        ensureCapacity(Integer.BYTES);
+        putInt(position, value);
+        position += Integer.BYTES;
+    }
+
+    private void writeLong(final long value) {
+
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private void putInt(final int at, final int value) {
+
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+    }
+
+    private void ensureCapacity(final int extra) {
+
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
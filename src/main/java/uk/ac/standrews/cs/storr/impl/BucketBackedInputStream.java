@@ -21,23 +21,54 @@ import uk.ac.standrews.cs.storr.interfaces.IBucket;
 import uk.ac.standrews.cs.storr.interfaces.IInputStream;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
+/**
+ * An input stream over the records in a bucket, in the order of the bucket's oids.
+ * If a read-ahead depth is given the iterator reads and decodes that many of the following records
+ * on a pool of threads while the current record is being used.
+ */
 public class BucketBackedInputStream<T extends PersistentObject> implements IInputStream<T> {
 
+    private static final int IDLE_THREAD_TIMEOUT = 10; // seconds after which idle read-ahead threads terminate
+
     private final IBucket<T> bucket;
+    private final int read_ahead;
+    private final int threads;
 
     BucketBackedInputStream(final IBucket<T> bucket) throws IOException {
 
+        this(bucket, 0, 0);
+    }
+
+    /**
+     * @param bucket     the bucket whose records are to be read
+     * @param read_ahead the number of records to be read ahead of the current record
+     * @param threads    the number of threads reading ahead
+     */
+    BucketBackedInputStream(final IBucket<T> bucket, final int read_ahead, final int threads) throws IOException {
+
         this.bucket = bucket;
+        this.read_ahead = read_ahead;
+        this.threads = threads;
     }
 
     public Iterator<T> iterator() {
 
+        if (read_ahead > 0 && threads > 0) {
+            return new ReadAheadIterator();
+        }
+
         return new Iterator<T>() {
 
-            private Iterator<Long> oid_iterator = bucket.getOids().iterator();  //TODO Maybe slow????
+            private Iterator<Long> oid_iterator = bucket.getOids().iterator();
 
             @Override
             public boolean hasNext() {
@@ -56,4 +87,126 @@ public class BucketBackedInputStream<T extends PersistentObject> implements IInp
             }
         };
     }
+
+    /**
+     * @return a spliterator over the records, which splits the bucket's oids evenly and reads each record when it is reached
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+
+        final List<Long> oids = bucket.getOids();
+        return new OidSpliterator(oids, 0, oids.size());
+    }
+
+    private class OidSpliterator implements Spliterator<T> {
+
+        private final List<Long> oids;
+        private int next;
+        private final int end;
+
+        OidSpliterator(final List<Long> oids, final int start, final int end) {
+
+            this.oids = oids;
+            this.next = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+
+            if (next >= end) {
+                return false;
+            }
+            try {
+                action.accept(bucket.getObjectById(oids.get(next++)));
+                return true;
+
+            } catch (BucketException e) {
+                throw new NoSuchElementException(e.getMessage());
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+
+            final int middle = (next + end) >>> 1;
+            if (middle <= next) {
+                return null;
+            }
+            final Spliterator<T> prefix = new OidSpliterator(oids, next, middle);
+            next = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    /*
+     * Keeps up to read_ahead records being read, returning them in oid order.
+     * The pool's threads terminate when idle, so an iterator that is abandoned part way through holds no threads.
+     */
+    private class ReadAheadIterator implements Iterator<T> {
+
+        private final Iterator<Long> oid_iterator = bucket.getOids().iterator();
+        private final Deque<Future<T>> reads = new ArrayDeque<>();
+        private final ThreadPoolExecutor readers;
+
+        ReadAheadIterator() {
+
+            readers = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "reader for bucket " + bucket.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            readers.allowCoreThreadTimeOut(true);
+
+            while (reads.size() < read_ahead && oid_iterator.hasNext()) {
+                readNext();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !reads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+
+            final Future<T> read = reads.poll();
+            if (read == null) {
+                throw new NoSuchElementException();
+            }
+            if (oid_iterator.hasNext()) {
+                readNext();
+            } else if (reads.isEmpty()) {
+                readers.shutdown();
+            }
+
+            try {
+                return read.get();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NoSuchElementException("interrupted reading record");
+
+            } catch (ExecutionException e) {
+                throw new NoSuchElementException(e.getCause().getMessage());
+            }
+        }
+
+        private void readNext() {
+
+            final long oid = oid_iterator.next();
+            reads.add(readers.submit(() -> bucket.getObjectById(oid)));
+        }
+    }
 }
@@ -20,17 +20,61 @@ import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
 import uk.ac.standrews.cs.storr.interfaces.IBucket;
 import uk.ac.standrews.cs.storr.interfaces.IOutputStream;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by al on 28/04/2014.
+ * Records are written as they are added unless a batch size is given, in which case they are written
+ * a batch at a time using makePersistentAll; flush must then be called once all records have been added.
  */
 public class BucketBackedOutputStream<T extends PersistentObject> extends BucketBackedAbstractStream<T> implements IOutputStream<T> {
 
+    private final int batch_size;
+    private final List<T> batch;
+
     public BucketBackedOutputStream(final IBucket<T> bucket) {
+        this(bucket, 1);
+    }
+
+    /**
+     * @param bucket     the bucket to which records are written
+     * @param batch_size the number of records to be written together
+     */
+    public BucketBackedOutputStream(final IBucket<T> bucket, final int batch_size) {
+
         super(bucket);
+        this.batch_size = batch_size;
+        batch = new ArrayList<>(batch_size);
+    }
+
+    @Override
+    public synchronized void add(final T record) throws BucketException {
+
+        if (batch_size <= 1) {
+            bucket.makePersistent(record);
+        } else {
+            batch.add(record);
+            if (batch.size() >= batch_size) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws BucketException {
+
+        if (!batch.isEmpty()) {
+            try {
+                bucket.makePersistentAll(batch);
+            } finally {
+                batch.clear();
+            }
+        }
     }
 
     @Override
-    public void add(final T record) throws BucketException {
-        bucket.makePersistent(record);
+    public void close() throws BucketException {
+        flush();
     }
 }
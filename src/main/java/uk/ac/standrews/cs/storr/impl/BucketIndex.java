@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 import static uk.ac.standrews.cs.utilities.FileManipulation.FILE_CHARSET;
@@ -103,7 +104,8 @@ public class BucketIndex implements IBucketIndex {
 
         onDemandLoadContents();
 
-        return map.get(value); // list of integers which are indices into the $$$bucket$$$bucket$$$;
+        List<Long> entries = map.get(value); // list of integers which are indices into the $$$bucket$$$bucket$$$;
+        return entries == null ? new ArrayList<Long>() : entries;
     }
 
     @Override
@@ -111,7 +113,7 @@ public class BucketIndex implements IBucketIndex {
 
         onDemandLoadContents();
 
-        List<Long> entries = map.get(value); // list of integers which are indices into the $$$bucket$$$bucket$$$;
+        List<Long> entries = values(value);
         ArrayList<File> files = new ArrayList<>();
 
         for (Long i : entries) {
@@ -126,7 +128,7 @@ public class BucketIndex implements IBucketIndex {
     }
 
     @Override
-    public void add(final LXP record) throws BucketException {
+    public synchronized void add(final LXP record) throws BucketException {
 
         onDemandLoadContents();
 
@@ -158,7 +160,7 @@ public class BucketIndex implements IBucketIndex {
                 Files.createFile(path);
             }
 
-            try (Writer writer = Files.newBufferedWriter(path, FILE_CHARSET)) {
+            try (Writer writer = Files.newBufferedWriter(path, FILE_CHARSET, StandardOpenOption.APPEND)) {
 
                 writer.append(record.getId() + "\n"); // add the new item to the list.
                 writer.flush();
@@ -167,4 +169,45 @@ public class BucketIndex implements IBucketIndex {
             throw new BucketException(e.getMessage());
         }
     }
+
+    @Override
+    public synchronized void remove(final LXP record) throws BucketException {
+
+        onDemandLoadContents();
+
+        String value;
+        try {
+            value = (String) record.get(label);
+        } catch (KeyNotFoundException e) {
+            throw new BucketException("type label: " + label + " not found");
+        } catch (TypeMismatchFoundException e) {
+            throw new BucketException("type mismatch");
+        }
+
+        List<Long> entry = map.get(value);
+        if (entry == null || !entry.remove(Long.valueOf(record.getId()))) {
+            return; // not indexed
+        }
+
+        // Rewrite the list of ids for the value, or remove it if there are none left.
+
+        Path path = dir.resolve(value);
+
+        try {
+            if (entry.isEmpty()) {
+                map.remove(value);
+                Files.deleteIfExists(path);
+
+            } else {
+                try (Writer writer = Files.newBufferedWriter(path, FILE_CHARSET)) {
+
+                    for (Long id : entry) {
+                        writer.append(id + "\n");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
 }
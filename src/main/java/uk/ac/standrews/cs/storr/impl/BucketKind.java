@@ -16,6 +16,7 @@
  */
 package uk.ac.standrews.cs.storr.impl;
 
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
 import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
 import uk.ac.standrews.cs.storr.interfaces.IBucket;
 import uk.ac.standrews.cs.storr.interfaces.IRepository;
@@ -35,7 +36,9 @@ public enum BucketKind {
     INDIRECT,
     IDMAP,
     STRINGMAP,
-    INDEXED;
+    INDEXED,
+    SEGMENTED,
+    COLUMNAR;
 
     public static IBucket getBucket(Repository repository, String bucket_name) throws RepositoryException {
 
@@ -47,6 +50,13 @@ public enum BucketKind {
         return retrieveBucket(repository, bucket_name, kind, true);
     }
 
+    public static IBucket createBucket(Repository repository, String bucket_name, BucketKind kind, BucketLayout layout) throws RepositoryException {
+
+        IBucket bucket = createBucket(repository, bucket_name, kind);
+        setLayout(bucket, layout);
+        return bucket;
+    }
+
     public static <T extends PersistentObject> IBucket<T> getBucket(Repository repository, String bucket_name, Class<T> bucketType) throws RepositoryException {
 
         BucketKind kind = getKind(repository, bucket_name);
@@ -59,18 +69,41 @@ public enum BucketKind {
         return retrieveBucket(repository, bucket_name, bucketType, kind, true);
     }
 
+    public static <T extends PersistentObject> IBucket createBucket(Repository repository, String bucket_name, Class<T> bucketType, BucketKind kind, BucketLayout layout) throws RepositoryException {
+
+        IBucket bucket = createBucket(repository, bucket_name, bucketType, kind);
+        setLayout(bucket, layout);
+        return bucket;
+    }
+
+    private static void setLayout(IBucket bucket, BucketLayout layout) throws RepositoryException {
+
+        try {
+            ((DirectoryBackedBucket) bucket).setLayout(layout);
+
+        } catch (BucketException e) {
+            throw new RepositoryException(e);
+        }
+    }
+
     private static <T extends PersistentObject> IBucket retrieveBucket(Repository repository, String bucket_name, BucketKind kind, boolean create_bucket) throws RepositoryException {
 
         switch (kind) {
 
             case DIRECTORYBACKED: {
-                return new DirectoryBackedBucket(repository, bucket_name, kind, create_bucket);
+                return registered(repository, new DirectoryBackedBucket(repository, bucket_name, kind, create_bucket));
             }
             case INDIRECT: {
-                return new DirectoryBackedIndirectBucket(repository, bucket_name, create_bucket);
+                return registered(repository, new DirectoryBackedIndirectBucket(repository, bucket_name, create_bucket));
             }
             case INDEXED: {
-                return new DirectoryBackedIndexedBucket(repository, bucket_name, create_bucket);
+                return registered(repository, new DirectoryBackedIndexedBucket(repository, bucket_name, create_bucket));
+            }
+            case SEGMENTED: {
+                return registered(repository, new SegmentBackedBucket(repository, bucket_name, create_bucket));
+            }
+            case COLUMNAR: {
+                throw new RepositoryException("Columnar buckets must be typed with a StaticLXP class");
             }
         }
 
@@ -82,19 +115,38 @@ public enum BucketKind {
         switch (kind) {
 
             case DIRECTORYBACKED: {
-                return new DirectoryBackedBucket<>(repository, bucket_name, kind, bucketType, create_bucket);
+                return registered(repository, new DirectoryBackedBucket<>(repository, bucket_name, kind, bucketType, create_bucket));
             }
             case INDIRECT: {
-                return new DirectoryBackedIndirectBucket(repository, bucket_name, bucketType, create_bucket);
+                return registered(repository, new DirectoryBackedIndirectBucket(repository, bucket_name, bucketType, create_bucket));
             }
             case INDEXED: {
-                return new DirectoryBackedIndexedBucket(repository, bucket_name, kind, create_bucket);
+                return registered(repository, new DirectoryBackedIndexedBucket(repository, bucket_name, kind, create_bucket));
+            }
+            case SEGMENTED: {
+                return registered(repository, new SegmentBackedBucket<>(repository, bucket_name, bucketType, create_bucket));
+            }
+            case COLUMNAR: {
+                if (!StaticLXP.class.isAssignableFrom(bucketType)) {
+                    throw new RepositoryException("Columnar buckets must be typed with a StaticLXP class");
+                }
+                return registered(repository, new ColumnarBucket(repository, bucket_name, bucketType, create_bucket));
             }
         }
 
         throw new RepositoryException("Invalid $$$bucket$$$bucket$$$ kind");
     }
 
+    /*
+     * Registers a bucket with the cache manager of its store, once it has been constructed so that it can be used by
+     * the manager from other threads.
+     */
+    private static <T extends PersistentObject> DirectoryBackedBucket<T> registered(Repository repository, DirectoryBackedBucket<T> bucket) {
+
+        repository.getStore().getCacheManager().register(bucket);
+        return bucket;
+    }
+
     private static BucketKind getKind(IRepository repository, String bucket_name) throws RepositoryException {
 
         Path meta_path = repository.getRepositoryPath().resolve(bucket_name).resolve(DirectoryBackedBucket.META_BUCKET_NAME); // repo/bucketname/meta
@@ -114,6 +166,12 @@ public enum BucketKind {
         if (Files.exists(meta_path.resolve(STRINGMAP.name()))) {
             return STRINGMAP;
         }
+        if (Files.exists(meta_path.resolve(SEGMENTED.name()))) {
+            return SEGMENTED;
+        }
+        if (Files.exists(meta_path.resolve(COLUMNAR.name()))) {
+            return COLUMNAR;
+        }
 
         throw new RepositoryException("Invalid $$$bucket$$$bucket$$$ kind");
     }
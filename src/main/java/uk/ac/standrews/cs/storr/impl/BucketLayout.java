@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.utilities.FileManipulation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The arrangement of record files within a directory backed bucket.
+ * The layout is chosen when a bucket is created and is recorded in its META directory; buckets with no recorded layout are FLAT.
+ */
+public enum BucketLayout {
+
+    /**
+     * Every record file is held directly in the bucket directory, named by its oid.
+     */
+    FLAT {
+        @Override
+        Path recordPath(final Path bucket_directory, final long oid) {
+            return bucket_directory.resolve(String.valueOf(oid));
+        }
+
+        @Override
+        void addOids(final File bucket_directory, final List<Long> oids) {
+            addFileOids(bucket_directory, oids);
+        }
+    },
+
+    /**
+     * Record files are spread over two levels of sub-directories named by hex digits taken from a hash of the oid,
+     * giving 65536 leaf directories, so that no single directory becomes very large.
+     * Changes to records are not seen by the Watcher, which only watches the top level of the bucket, so this layout
+     * can only be used in a store that uses {@link ChangeNotification#JOURNAL}.
+     */
+    SHARDED {
+        @Override
+        Path recordPath(final Path bucket_directory, final long oid) {
+
+            final int hash = shardHash(oid);
+            return bucket_directory.resolve(HEX[(hash >>> 8) & 0xff]).resolve(HEX[hash & 0xff]).resolve(String.valueOf(oid));
+        }
+
+        @Override
+        void addOids(final File bucket_directory, final List<Long> oids) {
+
+            final Iterator<File> outer = new FileIterator(bucket_directory, false, true);
+            while (outer.hasNext()) {
+                final File shard = outer.next();
+                if (isShardName(shard.getName())) {
+                    final Iterator<File> inner = new FileIterator(shard, false, true);
+                    while (inner.hasNext()) {
+                        addFileOids(inner.next(), oids);
+                    }
+                }
+            }
+        }
+    };
+
+    private static final String LAYOUT_FILE_NAME = "LAYOUT";
+    private static final String[] HEX = new String[256];
+
+    static {
+        for (int i = 0; i < HEX.length; i++) {
+            HEX[i] = String.format("%02x", i);
+        }
+    }
+
+    /**
+     * @param bucket_directory the directory of the bucket
+     * @param oid              the oid of a record
+     * @return the path of the file holding the record with the given oid
+     */
+    abstract Path recordPath(Path bucket_directory, long oid);
+
+    /**
+     * Adds the oids of all the records in the bucket to the given list.
+     *
+     * @param bucket_directory the directory of the bucket
+     * @param oids             the list to which the oids are added
+     */
+    abstract void addOids(File bucket_directory, List<Long> oids);
+
+    /**
+     * @param bucket_directory the directory of the bucket
+     * @return the layout recorded for the bucket, or FLAT if none has been recorded
+     * @throws IOException if the layout cannot be read
+     */
+    static BucketLayout getLayout(final Path bucket_directory) throws IOException {
+
+        final Path layout_path = layoutPath(bucket_directory);
+        if (!Files.exists(layout_path)) {
+            return FLAT;
+        }
+        try (final BufferedReader reader = Files.newBufferedReader(layout_path, FileManipulation.FILE_CHARSET)) {
+            return valueOf(reader.readLine().trim());
+        }
+    }
+
+    /**
+     * Records the layout of a bucket in its META directory.
+     *
+     * @param bucket_directory the directory of the bucket
+     * @param layout           the layout to be recorded
+     * @throws IOException if the layout cannot be written
+     */
+    static void setLayout(final Path bucket_directory, final BucketLayout layout) throws IOException {
+
+        final Path layout_path = layoutPath(bucket_directory);
+        final Path temp_path = layout_path.resolveSibling(LAYOUT_FILE_NAME + ".tmp");
+
+        try (final BufferedWriter writer = Files.newBufferedWriter(temp_path, FileManipulation.FILE_CHARSET)) {
+            writer.write(layout.name());
+            writer.newLine();
+        }
+        Files.move(temp_path, layout_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path layoutPath(final Path bucket_directory) {
+        return bucket_directory.resolve(DirectoryBackedBucket.META_BUCKET_NAME).resolve(LAYOUT_FILE_NAME);
+    }
+
+    private static void addFileOids(final File directory, final List<Long> oids) {
+
+        final Iterator<File> iterator = new FileIterator(directory, true, false);
+        while (iterator.hasNext()) {
+            oids.add(Long.parseLong(iterator.next().getName()));
+        }
+    }
+
+    private static boolean isShardName(final String name) {
+
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    /*
+     * The oids are allocated from a random source but are mixed anyway so that sequential oids do not cluster.
+     */
+    private static int shardHash(final long oid) {
+
+        long h = oid;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An index that can be built from the existing records of a bucket by sorting its entries and writing them in order,
+ * rather than adding the records one at a time.
+ * <p>
+ * An entry is the key of a record in the index followed by the id of the record, as eight big-endian bytes with the
+ * sign bit flipped. Entries are ordered by {@link #ENTRY_ORDER}: by key and then by id. Keys need not be
+ * self-delimiting, so entries cannot simply be compared as byte strings: "Smith" followed by one id could sort
+ * between "Smithson" and "Smith" followed by another.
+ */
+interface BulkLoadedIndex {
+
+    int ID_LENGTH = 8;
+
+    /**
+     * Orders entries by their keys, as unsigned byte strings, and then by their ids.
+     */
+    Comparator<byte[]> ENTRY_ORDER = BulkLoadedIndex::compareEntries;
+
+    /**
+     * @param record a record of the bucket being indexed
+     * @return the entry for the record, or null if it is not indexed
+     * @throws BucketException if the value of the record cannot be indexed
+     */
+    byte[] entryOf(LXP record) throws BucketException;
+
+    /**
+     * Rewrites the index with the given entries in addition to those it already holds.
+     *
+     * @param sorted_entries the entries to be added, sorted by {@link #ENTRY_ORDER}
+     * @param excluded       the ids of records whose entries in the given list are to be ignored, because the
+     *                       records have been indexed since the entries were made; this set may still be growing
+     * @throws BucketException if the index cannot be written
+     */
+    void load(List<byte[]> sorted_entries, Set<Long> excluded) throws BucketException;
+
+    /**
+     * Removes and adds entries together, holding the index for the whole batch.
+     *
+     * @param removed_entries the entries to be removed, sorted by {@link #ENTRY_ORDER}
+     * @param added_entries   the entries to be added, sorted by {@link #ENTRY_ORDER}
+     * @throws BucketException if the index cannot be written
+     */
+    void apply(List<byte[]> removed_entries, List<byte[]> added_entries) throws BucketException;
+
+    static byte[] entry(final byte[] key, final long id) {
+
+        final byte[] entry = new byte[key.length + ID_LENGTH];
+        System.arraycopy(key, 0, entry, 0, key.length);
+        final long ordered_id = id ^ Long.MIN_VALUE;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            entry[key.length + i] = (byte) (ordered_id >>> (56 - 8 * i));
+        }
+        return entry;
+    }
+
+    static long idOf(final byte[] entry) {
+        return IndexKeys.getLong(entry, entry.length - ID_LENGTH) ^ Long.MIN_VALUE;
+    }
+
+    static int compareEntries(final byte[] entry1, final byte[] entry2) {
+
+        final int key_length1 = entry1.length - ID_LENGTH;
+        final int key_length2 = entry2.length - ID_LENGTH;
+
+        for (int i = 0; i < Math.min(key_length1, key_length2); i++) {
+            final int difference = (entry1[i] & 0xFF) - (entry2[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        if (key_length1 != key_length2) {
+            return key_length1 - key_length2;
+        }
+        return Long.compare(idOf(entry1), idOf(entry2));
+    }
+
+    /**
+     * Merges sorted entries with further sorted entries, omitting duplicates and the entries of excluded records from the first.
+     */
+    static List<byte[]> merge(final List<byte[]> sorted_entries, final Set<Long> excluded, final List<byte[]> existing_entries) {
+
+        final List<byte[]> merged = new ArrayList<>(sorted_entries.size() + existing_entries.size());
+        int i = 0;
+        int j = 0;
+
+        while (i < sorted_entries.size() || j < existing_entries.size()) {
+
+            if (i < sorted_entries.size() && excluded.contains(idOf(sorted_entries.get(i)))) {
+                i++;
+                continue;
+            }
+            final int comparison = i == sorted_entries.size() ? 1 : j == existing_entries.size() ? -1 : compareEntries(sorted_entries.get(i), existing_entries.get(j));
+
+            final byte[] next = comparison <= 0 ? sorted_entries.get(i++) : existing_entries.get(j++);
+            if (comparison == 0) {
+                j++;
+            }
+            if (merged.isEmpty() || compareEntries(merged.get(merged.size() - 1), next) != 0) {
+                merged.add(next);
+            }
+        }
+        return merged;
+    }
+}
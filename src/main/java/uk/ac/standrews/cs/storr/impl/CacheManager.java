@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Divides a single memory budget among the caches of the buckets of a store.
+ * <p>
+ * While the store has a budget, buckets opened in it cache records under {@link CachePolicy#FREQUENCY}, and the
+ * estimated size of the records held strongly by all such buckets is bounded by the budget. Part of the budget is
+ * divided evenly among them; the rest is divided in proportion to a score for each bucket, the number of hits in its
+ * cache plus a smaller weight for each miss, decayed at each rebalancing so that buckets no longer in use lose their
+ * share. The budget is rebalanced, growing and shrinking the caches of the buckets, after every
+ * {@value #REBALANCE_INTERVAL} lookups and whenever the budget changes or a bucket is opened.
+ * <p>
+ * Buckets whose policy has not been set follow the store, moving to {@link CachePolicy#FREQUENCY} when a budget is set
+ * and back to {@link CachePolicy#WEAK} when it is removed. Buckets set to {@link CachePolicy#WEAK} hold no records
+ * strongly and take no share.
+ */
+public class CacheManager {
+
+    static final int REBALANCE_INTERVAL = 10000;      // lookups across all buckets
+    private static final double EVEN_FRACTION = 0.1;  // of the budget, divided evenly among the buckets
+    private static final double MISS_WEIGHT = 0.25;   // of a miss relative to a hit; misses show demand that more space might meet
+    private static final double DECAY = 0.5;          // applied to the score of each bucket at each rebalancing
+
+    private final Map<DirectoryBackedBucket<?>, Usage> buckets = new WeakHashMap<>();  // guarded by this
+    private volatile long byte_budget = 0;
+
+    private final AtomicLong lookups_since_rebalance = new AtomicLong();
+    private final ReentrantLock rebalancing = new ReentrantLock();
+
+    /**
+     * @param byte_budget the maximum estimated size in bytes of the records cached strongly by all buckets, or 0 if
+     *                    each bucket bounds its own cache
+     */
+    public void setByteBudget(final long byte_budget) {
+
+        this.byte_budget = Math.max(0, byte_budget);
+
+        final List<DirectoryBackedBucket<?>> registered;
+        synchronized (this) {
+            registered = new ArrayList<>(buckets.keySet());
+        }
+        final CachePolicy default_policy = getDefaultPolicy();
+        for (final DirectoryBackedBucket<?> bucket : registered) {
+            if (bucket != null) {
+                bucket.followDefaultCachePolicy(default_policy);
+            }
+        }
+        rebalance();
+    }
+
+    public long getByteBudget() {
+        return byte_budget;
+    }
+
+    /**
+     * Divides the budget among the buckets according to their use since the last rebalancing.
+     */
+    public void rebalance() {
+
+        final long budget = byte_budget;
+        if (budget == 0) {
+            return;
+        }
+
+        final List<DirectoryBackedBucket<?>> managed = new ArrayList<>();
+        final List<Double> scores = new ArrayList<>();
+        double total_score = 0;
+
+        synchronized (this) {
+            for (final Map.Entry<DirectoryBackedBucket<?>, Usage> entry : buckets.entrySet()) {
+
+                final DirectoryBackedBucket<?> bucket = entry.getKey();
+                if (bucket != null && bucket.getCachePolicy() == CachePolicy.FREQUENCY) {
+
+                    final double score = entry.getValue().update(bucket.cacheLookupCount(), bucket.cacheMissCount());
+                    managed.add(bucket);
+                    scores.add(score);
+                    total_score += score;
+                }
+            }
+        }
+
+        for (int i = 0; i < managed.size(); i++) {
+
+            final double even_share = EVEN_FRACTION * budget / managed.size();
+            final double used_share = total_score > 0 ?
+                    (1 - EVEN_FRACTION) * budget * scores.get(i) / total_score :
+                    (1 - EVEN_FRACTION) * budget / managed.size();
+
+            managed.get(i).setManagedByteBudget(Math.max(1, (long) (even_share + used_share)));
+        }
+    }
+
+    /**
+     * @return the estimated size in bytes of the records cached strongly by all buckets
+     */
+    public synchronized long getCachedBytes() {
+
+        long total = 0;
+        for (final DirectoryBackedBucket<?> bucket : buckets.keySet()) {
+            if (bucket != null) {
+                total += bucket.cachedBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the policy with which buckets opened now should cache records
+     */
+    CachePolicy getDefaultPolicy() {
+        return byte_budget > 0 ? CachePolicy.FREQUENCY : CachePolicy.WEAK;
+    }
+
+    /**
+     * Called when a bucket has been opened and constructed.
+     *
+     * @param bucket the bucket
+     */
+    void register(final DirectoryBackedBucket<?> bucket) {
+
+        synchronized (this) {
+            buckets.put(bucket, new Usage());
+        }
+        if (bucket.getCachePolicy() == CachePolicy.FREQUENCY) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Called when a bucket looks up a record in its cache, rebalancing the budget when enough lookups have been made.
+     */
+    void recordLookup() {
+
+        if (byte_budget > 0 && lookups_since_rebalance.incrementAndGet() >= REBALANCE_INTERVAL && rebalancing.tryLock()) {
+            try {
+                lookups_since_rebalance.set(0);
+                rebalance();
+
+            } finally {
+                rebalancing.unlock();
+            }
+        }
+    }
+
+    /*
+     * The use made of the cache of a bucket.
+     */
+    private static class Usage {
+
+        private long lookups = 0;
+        private long misses = 0;
+        private double score = 0;
+
+        /*
+         * Decays the score and adds the use made since the last update.
+         */
+        double update(final long lookup_count, final long miss_count) {
+
+            final long recent_misses = Math.max(0, miss_count - misses);
+            final long recent_hits = Math.max(0, lookup_count - lookups - recent_misses);
+
+            lookups = lookup_count;
+            misses = miss_count;
+            score = DECAY * score + recent_hits + MISS_WEIGHT * recent_misses;
+            return score;
+        }
+    }
+}
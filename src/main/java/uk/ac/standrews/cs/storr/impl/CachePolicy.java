@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+/**
+ * The policy by which a bucket decides which of the records it has loaded to keep in memory.
+ * The policy is chosen for each open bucket and is not recorded in the bucket.
+ */
+public enum CachePolicy {
+
+    /**
+     * Records are held weakly, up to the cache size of the bucket, so are only kept while they are referenced elsewhere.
+     */
+    WEAK,
+
+    /**
+     * Records are held strongly, up to the cache size or byte budget of the bucket, in a {@link WindowTinyLfuCache},
+     * which keeps those that are used most frequently and recently. Records it does not keep are still held weakly.
+     */
+    FREQUENCY
+}
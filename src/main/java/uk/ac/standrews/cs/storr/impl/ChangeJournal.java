@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * An append-only journal of the changes made to the records in the buckets of a repository, used in place of
+ * the Watcher when a store uses {@link ChangeNotification#JOURNAL}.
+ * <p>
+ * Each entry records the bucket, oid and kind of a change, and the writer that made it. Readers remember how far
+ * they have read and, when one of their buckets is next used, pass the changes made by other writers to the buckets
+ * concerned. Buckets therefore cost nothing between uses, however many there are.
+ * <p>
+ * When the journal becomes large a writer replaces it with an empty one. A reader that finds the journal has been
+ * replaced cannot tell what it missed, so it invalidates all its buckets.
+ * <p>
+ * Readers keep the journal open, and check whether it has grown without locking. A writer that replaces the journal
+ * then appends its change to the old journal, so that readers still reading the old one notice the replacement.
+ * Buckets are held weakly, so registering a bucket does not keep it alive.
+ */
+public class ChangeJournal {
+
+    private static final String JOURNAL_FILE_NAME = "CHANGES";
+    private static final long MAX_JOURNAL_SIZE = 64 * 1024 * 1024;
+
+    private static final byte CREATED = 0;
+    private static final byte MODIFIED = 1;
+    private static final byte DELETED = 2;
+
+    private static final int ENTRY_HEADER_SIZE = 4;              // length of rest of entry
+    private static final int ENTRY_FIXED_SIZE = 8 + 8 + 1 + 2;   // writer, oid, kind, bucket name length
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;      // larger than any entry
+
+    private static final Map<Path, Object> locks = new ConcurrentHashMap<>(); // one per journal per JVM, since file locks are held per JVM
+
+    private final Path journal_path;
+    private final Object lock;
+    private final long writer_id = Store.getNextFreePID();
+    private final Map<String, List<WeakReference<IBucket>>> buckets = new HashMap<>();
+
+    private volatile FileChannel reader;   // the journal file that has been read.
+    private volatile long position;        // the length of the journal that has been read.
+    private Object journal_identity;       // identifies the journal file that has been read, to detect its replacement.
+
+    ChangeJournal(final Path repository_path) throws IOException {
+
+        journal_path = repository_path.resolve(JOURNAL_FILE_NAME);
+        lock = locks.computeIfAbsent(journal_path.toAbsolutePath().normalize(), k -> new Object());
+
+        try (final FileChannel ignored = FileChannel.open(journal_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // ensure the journal exists
+        }
+
+        reader = FileChannel.open(journal_path, StandardOpenOption.READ);
+        journal_identity = identity(Files.readAttributes(journal_path, BasicFileAttributes.class));
+        position = reader.size(); // earlier changes are of no interest since nothing has been cached yet
+    }
+
+    /**
+     * Registers a bucket to be told of changes made to it by other writers.
+     *
+     * @param bucket the bucket
+     */
+    synchronized void register(final IBucket bucket) {
+
+        final List<WeakReference<IBucket>> instances = buckets.computeIfAbsent(bucket.getName(), k -> new ArrayList<>());
+        instances.removeIf(instance -> instance.get() == null);
+        instances.add(new WeakReference<>(bucket));
+    }
+
+    /**
+     * Records a change to a record.
+     *
+     * @param bucket_name the name of the bucket containing the record
+     * @param oid         the oid of the record
+     * @param kind        the kind of the change
+     * @throws IOException if the journal cannot be written
+     */
+    void append(final String bucket_name, final long oid, final WatchEvent.Kind<?> kind) throws IOException {
+
+        appendAll(bucket_name, Collections.singletonList(oid), kind);
+    }
+
+    /**
+     * Records the same kind of change to a number of records.
+     *
+     * @param bucket_name the name of the bucket containing the records
+     * @param oids        the oids of the records
+     * @param kind        the kind of the change
+     * @throws IOException if the journal cannot be written
+     */
+    void appendAll(final String bucket_name, final Collection<Long> oids, final WatchEvent.Kind<?> kind) throws IOException {
+
+        final byte[] name = bucket_name.getBytes(StandardCharsets.UTF_8);
+        final byte kind_code = kind == ENTRY_CREATE ? CREATED : kind == ENTRY_DELETE ? DELETED : MODIFIED;
+        final ByteBuffer buffer = ByteBuffer.allocate((ENTRY_HEADER_SIZE + ENTRY_FIXED_SIZE + name.length) * oids.size());
+
+        for (final long oid : oids) {
+            buffer.putInt(ENTRY_FIXED_SIZE + name.length);
+            buffer.putLong(writer_id);
+            buffer.putLong(oid);
+            buffer.put(kind_code);
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        buffer.flip();
+
+        // The journal is only replaced while it is locked. If another process replaces it between it being opened and
+        // locked here, the replaced journal would be found to be large and the new one replaced too, so it is opened again.
+        synchronized (lock) {
+            while (true) {
+                final Object opened_identity = currentIdentity();
+                try (final FileChannel channel = FileChannel.open(journal_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     final FileLock ignored = channel.lock()) {
+
+                    if (opened_identity == null || !opened_identity.equals(currentIdentity())) {
+                        continue;
+                    }
+
+                    final long next = channel.size();
+                    if (next > MAX_JOURNAL_SIZE) {
+                        final Path temp_path = journal_path.resolveSibling(JOURNAL_FILE_NAME + ".tmp");
+                        Files.write(temp_path, new byte[0]);
+                        Files.move(temp_path, journal_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    writeFully(channel, buffer, next); // to the replaced journal, if any, which its readers see has grown
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes any changes made by other writers since the journal was last read to the buckets concerned.
+     * The length of the open journal is checked without locking, so this is cheap when nothing has changed.
+     * The changes are collected with the journal locked and passed to the buckets once it has been released, since
+     * the buckets lock themselves while handling them and may also be locked when they call this.
+     */
+    public void catchUp() {
+
+        try {
+            if (reader.size() == position) {
+                return;
+            }
+        } catch (final IOException e) {
+            // closed by another thread, so reopened below
+        }
+
+        final List<IBucket> replaced = new ArrayList<>();
+        final Map<IBucket, Map<String, WatchEvent.Kind<?>>> changes = new LinkedHashMap<>();
+
+        synchronized (this) {
+            try {
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(journal_path, BasicFileAttributes.class);
+                } catch (final NoSuchFileException e) { // the repository has been deleted
+                    return;
+                }
+
+                final Object identity = identity(attributes);
+                if (!identity.equals(journal_identity) || attributes.size() < position) {
+                    for (final List<WeakReference<IBucket>> instances : buckets.values()) {
+                        replaced.addAll(live(instances));
+                    }
+                    reader.close();
+                    reader = FileChannel.open(journal_path, StandardOpenOption.READ);
+                    journal_identity = identity(Files.readAttributes(journal_path, BasicFileAttributes.class));
+                    position = 0;
+                }
+                final long length = reader.size();
+                if (length > position) {
+                    readChanges(length, changes);
+                }
+
+            } catch (final NoSuchFileException e) { // the repository was deleted while being read
+                // nothing more to read
+
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot read change journal: " + journal_path, e);
+            }
+        }
+
+        for (final IBucket bucket : replaced) {
+            bucket.invalidateCache();
+        }
+        for (final Map.Entry<IBucket, Map<String, WatchEvent.Kind<?>>> bucket_changes : changes.entrySet()) {
+            bucket_changes.getKey().invalidateCache(bucket_changes.getValue());
+        }
+    }
+
+    //******** Private methods *********
+
+    /*
+     * Reads the changes made by other writers up to the given length of the journal, adding them to the changes of
+     * each registered bucket concerned. Called with the journal locked.
+     */
+    private void readChanges(final long length, final Map<IBucket, Map<String, WatchEvent.Kind<?>>> bucket_changes) throws IOException {
+
+        final Map<String, Map<String, WatchEvent.Kind<?>>> changes = new HashMap<>();
+        final FileChannel channel = reader;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (position < length) {
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    break; // the journal has been replaced while being read - picked up next time
+                }
+            }
+            buffer.flip();
+
+            final long start = position;
+            while (buffer.remaining() >= ENTRY_HEADER_SIZE) {
+
+                final int entry_length = buffer.getInt(buffer.position());
+                if (buffer.remaining() < ENTRY_HEADER_SIZE + entry_length) {
+                    break; // entry continues in the next chunk, or is still being written
+                }
+                buffer.getInt();
+
+                final long writer = buffer.getLong();
+                final long oid = buffer.getLong();
+                final byte kind = buffer.get();
+                final byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+
+                if (writer != writer_id) {
+                    final String bucket_name = new String(name, StandardCharsets.UTF_8);
+                    if (buckets.containsKey(bucket_name)) {
+                        changes.computeIfAbsent(bucket_name, k -> new LinkedHashMap<>()).put(String.valueOf(oid), kind(kind));
+                    }
+                }
+                position += ENTRY_HEADER_SIZE + entry_length;
+            }
+            if (position == start) {
+                break; // no complete entry available
+            }
+        }
+
+        for (final Map.Entry<String, Map<String, WatchEvent.Kind<?>>> changes_by_name : changes.entrySet()) {
+            for (final IBucket bucket : live(buckets.get(changes_by_name.getKey()))) {
+                bucket_changes.computeIfAbsent(bucket, k -> new LinkedHashMap<>()).putAll(changes_by_name.getValue());
+            }
+        }
+    }
+
+    /*
+     * The buckets that have not been collected, forgetting those that have.
+     */
+    private static List<IBucket> live(final List<WeakReference<IBucket>> instances) {
+
+        final List<IBucket> live = new ArrayList<>(instances.size());
+        for (final Iterator<WeakReference<IBucket>> iterator = instances.iterator(); iterator.hasNext(); ) {
+            final IBucket bucket = iterator.next().get();
+            if (bucket == null) {
+                iterator.remove();
+            } else {
+                live.add(bucket);
+            }
+        }
+        return live;
+    }
+
+    private static WatchEvent.Kind<?> kind(final byte kind) {
+
+        switch (kind) {
+            case CREATED:
+                return ENTRY_CREATE;
+            case DELETED:
+                return ENTRY_DELETE;
+            default:
+                return ENTRY_MODIFY;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+
+        long next = position;
+        while (buffer.hasRemaining()) {
+            next += channel.write(buffer, next);
+        }
+    }
+
+    /*
+     * The identity of the file now at the journal path, or null if there is none.
+     */
+    private Object currentIdentity() throws IOException {
+
+        try {
+            return identity(Files.readAttributes(journal_path, BasicFileAttributes.class));
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static Object identity(final BasicFileAttributes attributes) {
+
+        final Object key = attributes.fileKey();
+        return key != null ? key : attributes.creationTime();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+/**
+ * The mechanism by which buckets learn of changes made to their records by other processes.
+ */
+public enum ChangeNotification {
+
+    /**
+     * Each bucket directory is registered with the store's Watcher; this costs one operating system watch per bucket.
+     */
+    WATCHER,
+
+    /**
+     * Writers append a record of each change to a journal held by the repository, which buckets read when they are next used.
+     */
+    JOURNAL
+}
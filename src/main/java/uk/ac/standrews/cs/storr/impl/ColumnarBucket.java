@@ -0,0 +1,743 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.KeyNotFoundException;
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IRepository;
+import uk.ac.standrews.cs.utilities.FileManipulation;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bucket of StaticLXPs which holds each slot of the records in a column file of its own, so that scans which
+ * need only a few of the slots of each record read only the columns for those slots.
+ * <p>
+ * Each column file holds the values of its slot, length prefixed in the binary encoding, in the order in which the records were written.
+ * An append-only rows file holds, for each version of each record, its oid and the offset of each of its values in the columns.
+ * Updates and deletions append to the columns and rows; the space used by superseded versions is not reclaimed.
+ * The names of the columns are recorded in the META directory when the bucket is created and must match the fields of its type.
+ * <p>
+ * The files live directly in the bucket directory so that the Watcher sees changes made by other processes.
+ * Appends from different processes are serialised using a lock on the rows file.
+ * <p>
+ * The rows and columns are kept open for reading. The rows are read again only when the length of the rows file has
+ * changed, or from the start when it has been replaced, and records are looked up without holding the lock on the bucket.
+ */
+public class ColumnarBucket<T extends StaticLXP> extends DirectoryBackedBucket<T> {
+
+    private static final String ROWS_FILE_NAME = "ROWS";
+    private static final String COLUMN_FILE_NAME_PREFIX = "COLUMN_";
+    private static final String COLUMNS_FILE_NAME = "COLUMNS";       // in META, the names of the columns in slot order
+
+    private static final int ROW_HEADER_SIZE = 8 + 4;                // oid, state
+    private static final int LIVE = 0;                               // state of a row holding a version of a record
+    private static final int DELETED = -1;                           // state of a row recording the deletion of an oid
+    private static final int SCAN_WINDOW_SIZE = 64 * 1024;           // bytes read from each file at a time by a scan
+    private static final int LOAD_WINDOW_SIZE = 256;                 // bytes read from each file at a time when loading a single record
+
+    private static final Logger LOGGER = Logger.getLogger(ColumnarBucket.class.getName());
+
+    private static final Map<Path, Object> append_locks = new ConcurrentHashMap<>(); // one per bucket per JVM, since file locks are held per JVM
+
+    private final Class<T> record_type;
+    private final List<String> column_names;
+    private final int row_size;
+    private final Path rows_path;
+    private final Object append_lock;
+    private final Map<Long, Long> index = new ConcurrentHashMap<>(); // oid -> row holding the latest version.
+    private final Set<Long> written_order = new LinkedHashSet<>();   // oids in the index in order of first write, guarded by this.
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>(); // the rows file is 0 and the column of each slot is slot + 1.
+    private volatile long rows_read = 0;                             // the number of rows that have been read into the index.
+    private volatile List<Long> cached_oids = null;
+
+    ColumnarBucket(final IRepository repository, final String bucket_name, final Class<T> bucketType, final boolean create_bucket) throws RepositoryException {
+
+        super(repository, bucket_name, BucketKind.COLUMNAR, bucketType, create_bucket);
+        record_type = bucketType;
+
+        try {
+            column_names = bucketType.newInstance().getMetaData().getFieldNamesInSlotOrder();
+        } catch (final IllegalAccessException | InstantiationException e) {
+            throw new RepositoryException(e);
+        }
+        row_size = ROW_HEADER_SIZE + 8 * column_names.size();
+        rows_path = directory.toPath().resolve(ROWS_FILE_NAME);
+        append_lock = append_locks.computeIfAbsent(rows_path.toAbsolutePath().normalize(), k -> new Object());
+        initColumns(create_bucket);
+    }
+
+    @Override
+    public BucketKind getKind() {
+        return BucketKind.COLUMNAR;
+    }
+
+    @Override
+    public boolean contains(final long id) {
+
+        refreshRows();
+        return index.containsKey(id);
+    }
+
+    @Override
+    public List<Long> getOids() {
+
+        refreshRows();
+        List<Long> oids = cached_oids;
+        if (oids == null) {
+            synchronized (this) {
+                if (cached_oids == null) {
+                    cached_oids = new ArrayList<>(written_order);
+                }
+                oids = cached_oids;
+            }
+        }
+        return oids;
+    }
+
+    @Override
+    public int size() throws BucketException {
+
+        refreshRows();
+        return index.size();
+    }
+
+    @Override
+    public void makePersistent(final T record) throws BucketException {
+
+        makePersistentAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Writes a number of records to the bucket, appending to each column and to the rows in a single write of each.
+     */
+    @Override
+    public void makePersistentAll(final Collection<T> records) throws BucketException {
+
+        final Set<Long> distinct_ids = new HashSet<>();
+        for (final T record : records) {
+            if (!distinct_ids.add(record.getId())) {
+                throw new BucketException("records may not be overwritten - use update");
+            }
+        }
+        checkConsistency(records);
+        append(new ArrayList<>(records), true);
+
+        for (final T record : records) {
+            cacheObject(record);
+        }
+    }
+
+    @Override
+    public void delete(final long oid) throws BucketException {
+
+        if (!contains(oid)) {
+            throw new BucketException("Record with id: " + oid + " does not exist");
+        }
+
+        final ByteBuffer row = ByteBuffer.allocate(row_size);
+        row.putLong(oid);
+        row.putInt(DELETED);
+        row.position(row_size);
+        row.flip();
+        try {
+            appendRows(row);
+        } catch (final IOException e) {
+            throw new BucketException("Unsuccessful delete of oid: " + oid);
+        }
+        evictObject(oid);
+    }
+
+    /**
+     * Makes the shadow copy written by update the current version of the record, by appending it to the columns.
+     *
+     * @param oid - the oid to swizzle
+     */
+    @Override
+    public void swizzle(final long oid) {
+
+        final Path shadow_location = transactionsPath(oid);
+        if (!shadow_location.toFile().exists()) {
+            throw new RuntimeException("******* Transaction error:Shadow file does not exist *******");
+        }
+        if (!contains(oid)) {
+            throw new RuntimeException("******* Transaction error: Primary record does not exist *******");
+        }
+        try {
+            append(Collections.singletonList((T) decode(oid, Files.readAllBytes(shadow_location))), false);
+        } catch (final IOException | BucketException e) {
+            throw new RuntimeException("******* Transaction error: Primary record cannot be replaced by shadow *******");
+        }
+        if (!shadow_location.toFile().delete()) {
+            throw new RuntimeException("******* Transaction error: Shadow file cannot be deleted *******");
+        }
+    }
+
+    /**
+     * Reads a complete record from the columns.
+     */
+    @Override
+    public PersistentObject loader(final Long id) throws BucketException {
+
+        refreshRows();
+        final Long row = index.get(id);
+        if (row == null) {
+            throw new BucketException("no record with id: " + id);
+        }
+
+        final int[] all_slots = new int[column_names.size()];
+        for (int slot = 0; slot < all_slots.length; slot++) {
+            all_slots[slot] = slot;
+        }
+
+        final WindowedReader[] readers = new WindowedReader[column_names.size() + 1];
+        try {
+            return readRow(row, all_slots, readers, LOAD_WINDOW_SIZE);
+
+        } catch (final IOException e) {
+            throw new BucketException("Error reading record for id: " + id + " in bucket " + getName());
+        }
+    }
+
+    /**
+     * The columns hold values rather than records, so the record is serialized in the encoding of the bucket.
+     */
+    @Override
+    byte[] readRecord(final long id) throws IOException {
+
+        try {
+            return serialize(loader(id));
+
+        } catch (final BucketException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+    }
+
+    /**
+     * The columns hold values rather than records; the encoding of the bucket only applies to the shadow copies written by update.
+     */
+    @Override
+    void convertRecords(final int threads) {
+    }
+
+    @Override
+    void setLayout(final BucketLayout new_layout) throws BucketException {
+
+        if (new_layout != BucketLayout.FLAT) {
+            throw new BucketException("Columnar buckets do not hold records in files");
+        }
+    }
+
+    @Override
+    public void changeLayout(final BucketLayout new_layout, final int threads) throws BucketException {
+        setLayout(new_layout);
+    }
+
+    /**
+     * called by Watcher service
+     * The files are reopened and the rows are read again from the start.
+     */
+    @Override
+    public synchronized void invalidateCache() {
+
+        super.invalidateCache();
+        resetRows();
+        refreshRowsQuietly();
+    }
+
+    /**
+     * called by Watcher service
+     * The rows identify any records that have been changed, so the names of the changed files are not needed
+     * unless the rows file itself has been replaced.
+     */
+    @Override
+    public void invalidateCache(final Map<String, WatchEvent.Kind<?>> changes) {
+
+        final WatchEvent.Kind<?> rows_change = changes.get(ROWS_FILE_NAME);
+        if (rows_change != null && rows_change != StandardWatchEventKinds.ENTRY_MODIFY) {
+            invalidateCache();
+        } else {
+            refreshRowsQuietly();
+        }
+    }
+
+    @Override
+    void closeFiles() {
+
+        synchronized (this) {
+            resetRows();
+        }
+    }
+
+    /**
+     * Reads any rows appended by other processes, so that cached copies of records they have changed or deleted are
+     * not returned, whether or not changes are reported through the Watcher or the repository journal.
+     */
+    @Override
+    void checkForChanges() {
+
+        super.checkForChanges();
+        refreshRows();
+    }
+
+    /**
+     * Reads some of the slots of all the records in the bucket, reading only the columns for those slots.
+     * The records returned have only the given slots filled in and are not cached; use getObjectById to obtain complete records.
+     * If a record cannot be read, the iterator throws an unchecked exception whose cause is the failure.
+     *
+     * @param slots the slots to be read
+     * @return an iterator over the records, in the order in which their latest versions were written
+     */
+    public Iterator<T> scan(final int... slots) {
+
+        for (final int slot : slots) {
+            if (slot < 0 || slot >= column_names.size()) {
+                throw new KeyNotFoundException(slot);
+            }
+        }
+
+        refreshRows();
+        final long[] rows = index.values().stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(rows);
+
+        return new ColumnScan(rows, slots);
+    }
+
+    //******** Private methods *********
+
+    /*
+     * Appends the values of each column, writing each column once, and then appends the rows in one write.
+     * New records are checked not to be in the bucket once the rows are locked, so that no other writer can add
+     * them between the check and the append.
+     */
+    private void append(final List<T> records, final boolean new_records) throws BucketException {
+
+        final int column_count = column_names.size();
+        final long[][] offsets = new long[records.size()][column_count];  // offsets within the values appended to each column
+        final List<byte[]> columns = new ArrayList<>(column_count);
+
+        try {
+            for (int slot = 0; slot < column_count; slot++) {
+
+                final BinaryRecordWriter column = new BinaryRecordWriter(getStringDictionary());
+                for (int i = 0; i < records.size(); i++) {
+                    offsets[i][slot] = column.size();
+                    column.writeField(null, valueOf(records.get(i), slot));
+                }
+                columns.add(column.toByteArray());
+            }
+        } catch (final PersistentObjectException e) {
+            throw new BucketException(e);
+        }
+
+        synchronized (append_lock) {
+            try (final FileChannel rows_channel = FileChannel.open(rows_path, StandardOpenOption.WRITE);
+                 final FileLock ignored = rows_channel.lock()) {
+
+                if (new_records) {
+                    refreshRows();
+                    for (final T record : records) {
+                        if (index.containsKey(record.getId())) {
+                            throw new BucketException("records may not be overwritten - use update");
+                        }
+                    }
+                }
+
+                final long[] column_starts = new long[column_count];
+                for (int slot = 0; slot < column_count; slot++) {
+                    try (final FileChannel column_channel = FileChannel.open(columnPath(slot), StandardOpenOption.WRITE)) {
+                        column_starts[slot] = column_channel.size();
+                        writeFully(column_channel, ByteBuffer.wrap(columns.get(slot)), column_starts[slot]);
+                    }
+                }
+
+                final ByteBuffer rows = ByteBuffer.allocate(row_size * records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    rows.putLong(records.get(i).getId());
+                    rows.putInt(LIVE);
+                    for (int slot = 0; slot < column_count; slot++) {
+                        rows.putLong(column_starts[slot] + offsets[i][slot]);
+                    }
+                }
+                rows.flip();
+                writeFully(rows_channel, rows, rows_channel.size());
+
+            } catch (final IOException e) {
+                throw new BucketException(e);
+            }
+        }
+        refreshRows();
+    }
+
+    private void appendRows(final ByteBuffer rows) throws IOException {
+
+        synchronized (append_lock) {
+            try (final FileChannel rows_channel = FileChannel.open(rows_path, StandardOpenOption.WRITE);
+                 final FileLock ignored = rows_channel.lock()) {
+
+                writeFully(rows_channel, rows, rows_channel.size());
+            }
+        }
+        refreshRows();
+    }
+
+    private static Object valueOf(final LXP record, final int slot) {
+
+        try {
+            return record.get(slot);
+
+        } catch (final KeyNotFoundException e) { // the storage of the record has not grown to this slot
+            return null;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+
+        long next = position;
+        while (buffer.hasRemaining()) {
+            next += channel.write(buffer, next);
+        }
+    }
+
+    /*
+     * Reads the given slots of the record in a row, using a reader for the rows file followed by a reader for each column.
+     */
+    private T readRow(final long row, final int[] slots, final WindowedReader[] readers, final int window_size) throws IOException, BucketException {
+
+        final ByteBuffer row_entry = reader(readers, 0, window_size).read(row * row_size, row_size);
+        final T record = (T) newInstance(row_entry.getLong());
+
+        for (final int slot : slots) {
+
+            final long offset = row_entry.getLong(ROW_HEADER_SIZE + 8 * slot);
+            final WindowedReader column = reader(readers, slot + 1, window_size);
+            final int length = column.read(offset, 4).getInt();
+
+            try {
+                record.put(slot, new BinaryRecordReader(column.read(offset, 4 + length), 1, getStringDictionary()).readValue());
+
+            } catch (final PersistentObjectException e) {
+                throw new BucketException(e);
+            }
+        }
+        return record;
+    }
+
+    private WindowedReader reader(final WindowedReader[] readers, final int i, final int window_size) {
+
+        if (readers[i] == null) {
+            readers[i] = new WindowedReader(this, i, window_size);
+        }
+        return readers[i];
+    }
+
+    /*
+     * The open channel for reading the rows file, for file 0, or the column of slot file - 1.
+     */
+    private FileChannel fileReader(final int file) throws IOException {
+
+        FileChannel channel = readers.get(file);
+        if (channel == null) {
+            channel = FileChannel.open(readerPath(file), StandardOpenOption.READ);
+            final FileChannel existing = readers.putIfAbsent(file, channel);
+            if (existing != null) {
+                channel.close();
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    private void initColumns(final boolean create_bucket) throws RepositoryException {
+
+        final Path columns_path = directory.toPath().resolve(META_BUCKET_NAME).resolve(COLUMNS_FILE_NAME);
+        try {
+            if (create_bucket) {
+                Files.write(columns_path, column_names, FileManipulation.FILE_CHARSET);
+
+            } else if (!Files.readAllLines(columns_path, FileManipulation.FILE_CHARSET).equals(column_names)) {
+                throw new RepositoryException("Columns of bucket: " + getName() + " do not match the fields of " + record_type.getName());
+            }
+
+            FileManipulation.createFileIfDoesNotExist(rows_path);
+            for (int slot = 0; slot < column_names.size(); slot++) {
+                if (!Files.exists(columnPath(slot))) {
+                    FileManipulation.createFileIfDoesNotExist(columnPath(slot));
+                }
+            }
+        } catch (final IOException e) {
+            throw new RepositoryException("Cannot create columns for bucket: " + getName());
+        }
+        refreshRows();
+    }
+
+    /**
+     * Reads any rows appended to the rows file since it was last read.
+     * The length of the open rows file is checked without holding the lock on the bucket.
+     */
+    private void refreshRows() {
+
+        if (rows_path == null) { // called by the Watcher before construction is complete
+            return;
+        }
+
+        try {
+            final FileChannel channel = readers.get(0);
+            if (channel != null && channel.size() / row_size == rows_read) {
+                return;
+            }
+        } catch (final IOException e) {
+            // closed by another thread, so reopen it below
+        }
+
+        try {
+            synchronized (this) {
+                readRows();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read rows for bucket: " + getName(), e);
+        }
+    }
+
+    /*
+     * Refreshes the rows for the Watcher, which must not be stopped by an exception. If the rows cannot be read,
+     * the records and rows are forgotten and are read again when next used.
+     */
+    private void refreshRowsQuietly() {
+
+        if (rows_path == null) { // called by the Watcher before construction is complete
+            return;
+        }
+
+        try {
+            synchronized (this) {
+                readRows();
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read rows for bucket: " + getName(), e);
+            synchronized (this) {
+                super.invalidateCache();
+                resetRows();
+            }
+        }
+    }
+
+    private void readRows() throws IOException {
+
+        try {
+            FileChannel channel = readers.get(0);
+            if (channel == null || !channel.isOpen()) {
+                readers.remove(0);
+                channel = fileReader(0);
+            }
+
+            final long rows = channel.size() / row_size;
+            if (rows < rows_read) { // rows have been replaced - start again
+                clearRows();
+            }
+            if (rows == rows_read) {
+                return;
+            }
+
+            final List<Long> superseded = new ArrayList<>();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min((rows - rows_read) * row_size, row_size * 4096L));
+
+            while (rows_read < rows) {
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), (rows - rows_read) * row_size));
+                final long start = rows_read * row_size;
+                while (buffer.hasRemaining()) {
+                    channel.read(buffer, start + buffer.position());
+                }
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    final long oid = buffer.getLong();
+                    final int state = buffer.getInt();
+                    buffer.position(buffer.position() + row_size - ROW_HEADER_SIZE);
+
+                    if (state == DELETED) {
+                        if (index.remove(oid) != null) {
+                            written_order.remove(oid);
+                            evictObject(oid);
+                        }
+                    } else if (index.put(oid, rows_read) != null) {
+                        superseded.add(oid);
+                    } else {
+                        written_order.add(oid);
+                    }
+                    rows_read++;
+                }
+            }
+            cached_oids = null;
+
+            for (final long oid : superseded) {
+                refreshObject(oid); // the index is now up to date so the new versions can be read
+            }
+
+        } catch (final NoSuchFileException e) { // the bucket has been deleted
+            resetRows();
+        }
+    }
+
+    /*
+     * Forgets the rows and closes the files, which are reopened when next read.
+     */
+    private void resetRows() {
+
+        clearRows();
+        for (final Iterator<FileChannel> channels = readers.values().iterator(); channels.hasNext(); ) {
+            try {
+                channels.next().close();
+            } catch (final IOException e) {
+                // nothing more can be done with it
+            }
+            channels.remove();
+        }
+    }
+
+    private void clearRows() {
+
+        index.clear();
+        written_order.clear();
+        rows_read = 0;
+        cached_oids = null;
+    }
+
+    private Path columnPath(final int slot) {
+        return directory.toPath().resolve(COLUMN_FILE_NAME_PREFIX + column_names.get(slot));
+    }
+
+    private Path readerPath(final int file) {
+        return file == 0 ? rows_path : columnPath(file - 1);
+    }
+
+    /*
+     * Reads a sequence of rows.
+     */
+    private class ColumnScan implements Iterator<T> {
+
+        private final long[] rows;
+        private final int[] slots;
+        private final WindowedReader[] readers = new WindowedReader[column_names.size() + 1];
+        private int next = 0;
+
+        ColumnScan(final long[] rows, final int[] slots) {
+
+            this.rows = rows;
+            this.slots = slots;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < rows.length;
+        }
+
+        @Override
+        public T next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return readRow(rows[next++], slots, readers, SCAN_WINDOW_SIZE);
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Cannot read row of bucket: " + getName(), e);
+
+            } catch (final BucketException e) {
+                throw new RuntimeException("Cannot read row of bucket: " + getName(), e);
+            }
+        }
+    }
+
+    /*
+     * Reads from a file through a window of its contents, which is efficient when the positions read are ascending.
+     * The file is read through the channel kept open by the bucket, so no reader need be closed.
+     */
+    private static class WindowedReader {
+
+        private final ColumnarBucket<?> bucket;
+        private final int file;
+        private final int window_size;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        private long window_start = 0;
+
+        WindowedReader(final ColumnarBucket<?> bucket, final int file, final int window_size) {
+
+            this.bucket = bucket;
+            this.file = file;
+            this.window_size = window_size;
+        }
+
+        ByteBuffer read(final long position, final int length) throws IOException {
+
+            if (position < window_start || position + length > window_start + window.limit()) {
+                fill(position, length);
+            }
+            final ByteBuffer result = window.duplicate();
+            result.position((int) (position - window_start));
+            result.limit(result.position() + length);
+            return result.slice();
+        }
+
+        private void fill(final long position, final int length) throws IOException {
+
+            if (window.capacity() < Math.max(window_size, length)) {
+                window = ByteBuffer.allocate(Math.max(window_size, length));
+            }
+            try {
+                readWindow(position);
+
+            } catch (final ClosedChannelException e) { // the files were closed while being read, so reopen them
+                readWindow(position);
+            }
+            window_start = position;
+
+            if (window.limit() < length) {
+                throw new EOFException("truncated file: " + bucket.readerPath(file));
+            }
+        }
+
+        private void readWindow(final long position) throws IOException {
+
+            window.clear();
+            final FileChannel channel = bucket.fileReader(file);
+            while (window.hasRemaining()) {
+                if (channel.read(window, position + window.position()) < 0) {
+                    break;
+                }
+            }
+            window.flip();
+        }
+    }
+}
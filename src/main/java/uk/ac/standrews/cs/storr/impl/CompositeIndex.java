@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.KeyNotFoundException;
+import uk.ac.standrews.cs.storr.impl.exceptions.TypeMismatchFoundException;
+import uk.ac.standrews.cs.storr.interfaces.ICompositeBucketIndex;
+import uk.ac.standrews.cs.storr.interfaces.IInputStream;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A B+tree index of records by the values of several fields. The key of a record is the encodings of the values of
+ * its fields appended in order, as given by {@link IndexKeys}, which are self-delimiting, so the keys of records with
+ * the same values in the first few fields share a prefix and are adjacent in the tree.
+ * <p>
+ * Records are indexed if they have any of the fields; fields that are missing or null are indexed as null.
+ */
+class CompositeIndex extends BTreeIndex implements ICompositeBucketIndex {
+
+    /**
+     * The separator of the labels in the name of a composite index, as used by {@link IndexKind#COMPOSITE}.
+     */
+    static final String LABEL_SEPARATOR = ",";
+
+    private final List<String> labels;
+
+    /**
+     * @param labels         the labels of the fields being indexed, in order
+     * @param dir            the directory holding the index, which must already exist
+     * @param indexed_bucket the bucket being indexed
+     */
+    CompositeIndex(final List<String> labels, final Path dir, final DirectoryBackedIndexedBucket indexed_bucket) {
+
+        super(String.join(LABEL_SEPARATOR, labels), dir, indexed_bucket);
+        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    @Override
+    public IInputStream lookup(final Object... leading_values) throws BucketException {
+        return stream(lookupValues(leading_values));
+    }
+
+    @Override
+    public List<Long> lookupValues(final Object... leading_values) throws BucketException {
+
+        if (leading_values.length > labels.size()) {
+            throw new BucketException("index has " + labels.size() + " fields but " + leading_values.length + " values were given");
+        }
+        final IndexKeys key = new IndexKeys();
+        for (final Object value : leading_values) {
+            key.append(value);
+        }
+        return valuesWithKeyPrefix(key.toByteArray());
+    }
+
+    /**
+     * @param record a record of the bucket
+     * @return whether the record has any of the fields of the index
+     */
+    boolean covers(final LXP record) {
+
+        for (final String label : labels) {
+            if (record.getMetaData().containsLabel(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    byte[] keyOf(final LXP record) throws BucketException {
+
+        if (!covers(record)) {
+            return null;
+        }
+        final IndexKeys key = new IndexKeys();
+        for (final String label : labels) {
+            try {
+                key.append(record.getMetaData().containsLabel(label) ? record.get(label) : null);
+
+            } catch (final KeyNotFoundException e) {
+                throw new BucketException("type label: " + label + " not found");
+            } catch (final TypeMismatchFoundException e) {
+                throw new BucketException("type mismatch");
+            }
+        }
+        return key.toByteArray();
+    }
+
+    /**
+     * The values of all the fields, as a list.
+     */
+    @Override
+    String keyString(final byte[] key) {
+
+        final List<Object> values = new ArrayList<>();
+        for (int offset = 0; offset < key.length; offset += IndexKeys.encodedLength(key, offset)) {
+            values.add(IndexKeys.decode(key, offset));
+        }
+        return values.toString();
+    }
+}
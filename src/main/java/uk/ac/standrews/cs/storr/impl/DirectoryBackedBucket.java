@@ -18,8 +18,6 @@ package uk.ac.standrews.cs.storr.impl;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import org.json.JSONException;
 import org.json.JSONWriter;
 import uk.ac.standrews.cs.storr.impl.exceptions.*;
@@ -30,14 +28,15 @@ import uk.ac.standrews.cs.utilities.FileManipulation;
 import uk.ac.standrews.cs.utilities.JSONReader;
 
 import java.io.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import static uk.ac.standrews.cs.storr.impl.Repository.bucketNameIsLegal;
 import static uk.ac.standrews.cs.storr.types.Types.checkLabelConsistency;
@@ -47,17 +46,26 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     public static final String META_BUCKET_NAME = "META";
     private static final String TRANSACTIONS_BUCKET_NAME = "TRANSACTIONS";
     private static final String TYPE_LABEL_FILE_NAME = "TYPELABEL";
+    private static final int RECENT_WRITE_PERIOD = 5; // seconds for which changes made by this bucket are ignored when reported by the Watcher
     protected final File directory;           // the directory implementing the bucket storage
     private final IRepository repository;     // the repository in which the bucket is stored
     private final IStore store;               // the store
     private final String bucket_name;         // the name of this bucket - used as the directory name
     private Class<T> bucketType = null;       // the type of records in this bucket if not null.
+    private PersistentObjectCodec<T> codec = null; // creates records of bucketType, if not null
     private long type_label_id = -1;          // -1 == not set
-    private Cache<Long, PersistentObject> object_cache;
-    private int size = -1; // number of items in Bucket.
-    private List<Long> cached_oids = null;
+    private RecordCache object_cache;
+    private BucketLayout layout;              // the arrangement of record files within the bucket directory
+    private RecordEncoding encoding;          // the encoding in which records are written
+    private OidManifest manifest = null;      // the oids in the bucket, created on first use
+    private ChangeJournal journal = null;     // the journal to which changes are reported, if the store does not use the Watcher
+    private final Cache<String, Boolean> recent_writes = CacheBuilder.newBuilder().expireAfterWrite(RECENT_WRITE_PERIOD, TimeUnit.SECONDS).build(); // names of files recently changed by this bucket
     private static final int DEFAULT_CACHE_SIZE = 10000; // almost certainly too small for serious apps.
     private int cache_size = DEFAULT_CACHE_SIZE;
+    private CachePolicy cache_policy = CachePolicy.WEAK;
+    private boolean cache_policy_chosen = false; // whether the policy has been set, rather than taken from the store
+    private long cache_byte_budget = 0;     // 0 if the strong tier of the cache is bounded by the cache size
+    private volatile OffHeapRecordCache serialized_cache = null; // the serialized state of records, if enabled
 
     /**
      * Creates a DirectoryBackedBucket with no factory - a persistent collection of ILXPs
@@ -92,9 +100,10 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
             throw new RepositoryException("Bucket kind mismatch: " + bucket_name + "not of kind: " + kind.name());
         }
 
+        layout = readLayout();
+        encoding = readEncoding();
         watchBucket(repository);
-
-        object_cache = newCache(repository, DEFAULT_CACHE_SIZE, this);
+        initialiseCache();
     }
 
     /**
@@ -108,6 +117,7 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     DirectoryBackedBucket(final IRepository repository, final String bucket_name, final BucketKind kind, final Class<T> bucketType, final boolean create_bucket) throws RepositoryException {
 
         this.bucketType = bucketType;
+        this.codec = PersistentObjectCodec.forClass(bucketType);
         this.bucket_name = bucket_name;
         this.repository = repository;
         this.store = repository.getStore();
@@ -142,43 +152,184 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
             }
         }
 
+        layout = readLayout();
+        encoding = readEncoding();
         watchBucket(repository);
-        object_cache = newCache(repository, DEFAULT_CACHE_SIZE, this);
+        initialiseCache();
     }
 
     public void setCacheSize(final int cache_size ) throws Exception {
-        if( cache_size < object_cache.size() ) {
-            throw new Exception( "Object cache cannot be dynamically made smaller" );
-        }
-        final LoadingCache<Long, PersistentObject> new_cache = newCache(repository, cache_size, this);
-        new_cache.putAll( object_cache.asMap() );
-        this.cache_size = cache_size;
-        object_cache = new_cache;
+        this.cache_size = cache_size; // records beyond a smaller size are evicted
+        replaceCache();
     }
 
     public int getCacheSize() {
         return cache_size;
     }
 
-    private LoadingCache<Long, PersistentObject> newCache(final IRepository repository, final int cacheSize, final DirectoryBackedBucket<T> my_bucket) {
-        return CacheBuilder.newBuilder()
-                .maximumSize(cacheSize)
-                .weakValues()
-                .build(
-                        new CacheLoader<Long, PersistentObject>() {
+    /**
+     * Sets the policy by which the bucket decides which loaded records to keep in memory; records already cached are kept.
+     *
+     * @param cache_policy the policy
+     */
+    public void setCachePolicy(final CachePolicy cache_policy) {
+
+        this.cache_policy = cache_policy;
+        cache_policy_chosen = true;
+        replaceCache();
+        store.getCacheManager().rebalance(); // gives the bucket a share of any budget of the store
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cache_policy;
+    }
+
+    /**
+     * Bounds the records held strongly under {@link CachePolicy#FREQUENCY} by their estimated size rather than their number.
+     *
+     * If the store has a budget, this is replaced by the share given to the bucket when the budget is next rebalanced.
+     *
+     * @param cache_byte_budget the maximum estimated size in bytes of the records held strongly, or 0 to bound them by the cache size
+     */
+    public void setCacheByteBudget(final long cache_byte_budget) {
+
+        this.cache_byte_budget = cache_byte_budget;
+        replaceCache();
+    }
+
+    public long getCacheByteBudget() {
+        return cache_byte_budget;
+    }
+
+    /**
+     * Changes the cache policy of the bucket to that of the store, unless a policy has been set for the bucket.
+     *
+     * @param default_policy the policy with which buckets in the store should now cache records
+     */
+    synchronized void followDefaultCachePolicy(final CachePolicy default_policy) {
+
+        if (!cache_policy_chosen && cache_policy != default_policy) {
+            cache_policy = default_policy;
+            replaceCache();
+        }
+    }
+
+    /**
+     * Sets the byte budget given to this bucket by the cache manager of the store, growing or shrinking its cache.
+     *
+     * @param byte_budget the budget
+     */
+    synchronized void setManagedByteBudget(final long byte_budget) {
+
+        if (cache_policy != CachePolicy.FREQUENCY || byte_budget == cache_byte_budget) {
+            return;
+        }
+        cache_byte_budget = byte_budget;
+        if (object_cache.getPolicy() == CachePolicy.FREQUENCY && object_cache.getByteBudget() > 0) {
+            object_cache.setByteBudget(byte_budget);
+        } else {
+            replaceCache();
+        }
+    }
+
+    long cacheLookupCount() {
+        return object_cache.lookupCount();
+    }
+
+    long cacheMissCount() {
+        return object_cache.missCount();
+    }
+
+    long cachedBytes() {
+        return object_cache.cachedBytes();
+    }
+
+    private void initialiseCache() {
+
+        cache_policy = store.getCacheManager().getDefaultPolicy();
+        object_cache = newCache(); // the bucket is registered with the cache manager once it has been constructed
+    }
+
+    /**
+     * Enables or disables a second level cache holding the serialized state of records outside the heap, consulted
+     * when a record is not in the object cache so that it need only be decoded rather than read from storage.
+     *
+     * @param bytes the memory to be used by the cache, or 0 to disable it
+     */
+    public void setSerializedCacheSize(final long bytes) {
+
+        serialized_cache = bytes > 0 ? new OffHeapRecordCache(bytes) : null;
+    }
+
+    /**
+     * @return the memory used by the serialized record cache, or 0 if it is disabled
+     */
+    public long getSerializedCacheSize() {
+
+        final OffHeapRecordCache serialized = serialized_cache;
+        return serialized == null ? 0 : serialized.getCapacity();
+    }
+
+    /**
+     * Discards the cached serialized state of a record, which is being or has been changed.
+     *
+     * @param id the id of the record
+     */
+    void forgetSerialized(final long id) {
+
+        final OffHeapRecordCache serialized = serialized_cache;
+        if (serialized != null) {
+            serialized.invalidate(id);
+        }
+    }
+
+    private RecordCache newCache() {
+        return new RecordCache(cache_policy, cache_size, cache_byte_budget);
+    }
+
+    private synchronized void replaceCache() {
 
-                            public PersistentObject load(final Long id) throws BucketException { // no checked exception
-                                return loader(id);
-                            }
-                        }
-                );
+        final RecordCache new_cache = newCache();
+        new_cache.putAll(object_cache.asMap());
+        object_cache = new_cache;
     }
 
     public PersistentObject loader(final Long id) throws BucketException { // no checked exception
 
+        try {
+            final OffHeapRecordCache serialized = serialized_cache;
+            byte[] record = serialized == null ? null : serialized.get(id);
+            if (record == null) {
+                final long generation = serialized == null ? 0 : serialized.generation(id);
+                record = readRecord(id);
+                if (serialized != null) {
+                    serialized.put(id, record, generation); // not if changed while being read
+                }
+            }
+            return decode(id, record);
+
+        } catch (final IOException e) {
+            throw new BucketException( "Error reading record for id: " + id + " in bucket " + bucket_name );
+        }
+    }
+
+    /**
+     * Creates a record from its serialized state.
+     *
+     * @param id     the id of the record
+     * @param record the serialized state of the record, in either encoding
+     * @return the record
+     * @throws BucketException if the record cannot be created
+     */
+    PersistentObject decode(final long id, final byte[] record) throws BucketException {
+
+        if (RecordEncoding.of(record) == RecordEncoding.BINARY) {
+            return binaryLoader(id, record);
+        }
+
         final PersistentObject result;
 
-        try (final BufferedReader reader = Files.newBufferedReader(filePath(id), FileManipulation.FILE_CHARSET)) {
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(record), FileManipulation.FILE_CHARSET))) {
 
             if (bucketType == null) { //  No java constructor specified
                 try {
@@ -187,20 +338,11 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
                     throw new BucketException("Could not create new LXP for object with id: " + id + " in directory: " + directory );
                 }
             } else {
-                final Constructor<?> constructor;
-                try {
-                    final Class[] param_classes = new Class[] { long.class, JSONReader.class, IBucket.class };
-                    constructor = bucketType.getConstructor( param_classes );
-                }
-                catch ( final NoSuchMethodException e ) {
-                    throw new BucketException("Error in reflective constructor call - class " + bucketType.getName() + " must implement constructors with the following signature: Constructor(long persistent_object_id, JSONReader reader, IBucket bucket )" );
-                }
                 try {
-                    result = (PersistentObject) constructor.newInstance( id, new JSONReader(reader), this);
-                } catch (final IllegalAccessException | InstantiationException | InvocationTargetException e) {
-                    throw new BucketException("Error in reflective call of constructor in class " + bucketType.getName() + ": " + e.getMessage() );
+                    result = codec.newInstance(id, new JSONReader(reader), this);
+                } catch (final PersistentObjectException e) {
+                    throw new BucketException(e.getMessage());
                 }
-
             }
         } catch (final IOException e) {
             throw new BucketException( "Error creating JSONReader for id: " + id + " in bucket " + bucket_name );
@@ -208,6 +350,56 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
         return result;
     }
 
+    /**
+     * Creates a record from its state in the binary encoding.
+     */
+    private PersistentObject binaryLoader(final long id, final byte[] record) throws BucketException {
+
+        final PersistentObject result = newInstance(id);
+
+        try {
+            result.readBinary(new BinaryRecordReader(record, getStringDictionary()));
+        } catch (final PersistentObjectException e) {
+            throw new BucketException("Could not read record with id: " + id + " in bucket " + bucket_name + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Creates an empty record of the type of the bucket, to be filled in.
+     * Typed records are created with the no argument constructor of the bucket type, which every type must have, through its codec.
+     *
+     * @param id the id of the record
+     * @return the record
+     * @throws BucketException if the record cannot be created
+     */
+    PersistentObject newInstance(final long id) throws BucketException {
+
+        if (bucketType == null) {
+            return new DynamicLXP(id, this);
+        }
+
+        final PersistentObject result;
+        try {
+            result = codec.newInstance();
+        } catch (final PersistentObjectException e) {
+            throw new BucketException(e.getMessage());
+        }
+        result.$$$$id$$$$id$$$$ = id;
+        result.$$$bucket$$$bucket$$$ = this;
+        return result;
+    }
+
+    /**
+     * @param id - the id of the record to be read
+     * @return the serialized state of the record with the given id, in either encoding
+     * @throws IOException if the record cannot be read
+     */
+    byte[] readRecord(final long id) throws IOException {
+
+        return Files.readAllBytes(filePath(id));
+    }
+
     private static void createBucket(final String name, final IRepository repository, final BucketKind kind) throws RepositoryException {
 
         if (!bucketNameIsLegal(name)) {
@@ -293,6 +485,12 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     }
 
     private void watchBucket(final IRepository repository) throws RepositoryException {
+
+        if (repository.getStore().getChangeNotification() == ChangeNotification.JOURNAL) {
+            journal = repository.getChangeJournal();
+            journal.register(this);
+            return;
+        }
         try {
             final Watcher watcher = repository.getStore().getWatcher();
             watcher.register(directory.toPath(), this);
@@ -304,6 +502,8 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
 
     public T getObjectById(final long id) throws BucketException {
 
+        checkForChanges();
+        store.getCacheManager().recordLookup();
         try {
             return (T) object_cache.get(id, () -> loader(id));
             // this is safe since this.contains(id) and also the cache contains the object.
@@ -332,6 +532,7 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
 
     public boolean contains(final long id) {
 
+        checkForChanges();
         return filePath(id).toFile().exists();
     }
 
@@ -345,6 +546,16 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
         }
     }
 
+    public IInputStream<T> getInputStream(final int read_ahead, final int threads) throws BucketException {
+
+        try {
+            return new BucketBackedInputStream<>(this, read_ahead, threads);
+
+        } catch (final IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
+
     //***********************************************************//
 
     public IOutputStream<T> getOutputStream() {
@@ -354,18 +565,15 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     /**
      * @return the oids of records that are in this bucket 
      */
-    public synchronized List<Long> getOids() {
+    public List<Long> getOids() {
 
-        if (cached_oids == null) {
-
-            cached_oids = new ArrayList<>();
+        checkForChanges();
+        try {
+            return manifest().getOids();
 
-            final Iterator<File> iterator = new FileIterator(directory, true, false);
-            while (iterator.hasNext()) {
-                cached_oids.add(Long.parseLong(iterator.next().getName()));
-            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
         }
-        return cached_oids;
     }
 
     private long getTypeLabelID() {
@@ -415,13 +623,34 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     public void makePersistent(final T record) throws BucketException {
 
         final long id = record.getId();
-        if (contains(id)) {
+        checkForChanges();
+        if (!existingRecords(Collections.singletonList(id)).isEmpty()) {
             throw new BucketException("records may not be overwritten - use update");
         } else {
+            noteWrite(id);
             writePersistentObject(record, filePath(record.getId())); // normal object write
+            recordAdded(id);
         }
     }
 
+    /**
+     * Writes a number of records to the bucket.
+     * The records are all checked before any is written; checks that depend only on the metadata of a record are
+     * made once for each distinct metadata, and the manifest and journal are each updated once for the whole batch.
+     */
+    @Override
+    public void makePersistentAll(final Collection<T> records) throws BucketException {
+
+        final List<Long> ids = checkNewRecords(records);
+        checkConsistency(records);
+
+        for (final T record : records) {
+            noteWrite(record.getId());
+            writeData(record, filePath(record.getId()));
+        }
+        recordsAdded(ids);
+    }
+
     @Override
     public synchronized void update(final T record) throws BucketException {
 
@@ -465,6 +694,137 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
 
     void writeLXP(final LXP record_to_write, final Path filepath) throws BucketException {
 
+        checkConsistency(record_to_write);
+        writeData(record_to_write, filepath);
+    }
+
+    /**
+     * Checks that a record may be written to this bucket.
+     * JPOs are checked by the type of the bucket so only LXPs need be checked here.
+     *
+     * @param record_to_write the record to be checked
+     * @throws BucketException if the record is not consistent with the type label of the bucket or of the record itself
+     */
+    void checkConsistency(final PersistentObject record_to_write) throws BucketException {
+
+        if (record_to_write instanceof LXP) {
+            checkLXPConsistency((LXP) record_to_write);
+        }
+    }
+
+    /**
+     * Checks that a number of records may be written to this bucket.
+     * For a bucket with a type label the label and the presence of the required fields are checked once for
+     * each distinct record metadata, leaving only the types of the values to be checked for each record.
+     *
+     * @param records the records to be checked
+     * @throws BucketException if a record is not consistent with the type label of the bucket or of the record itself
+     */
+    void checkConsistency(final Collection<? extends PersistentObject> records) throws BucketException {
+
+        final Map<PersistentMetaData, IReferenceType> checked_metadata = new IdentityHashMap<>();
+
+        for (final PersistentObject record : records) {
+
+            if (record instanceof LXP && type_label_id != -1) {
+
+                final LXP lxp = (LXP) record;
+                IReferenceType bucket_type = checked_metadata.get(lxp.getMetaData());
+                if (bucket_type == null) {
+                    bucket_type = checkLXPMetadataConsistency(lxp);
+                    checked_metadata.put(lxp.getMetaData(), bucket_type);
+                }
+                if (!Types.checkValuesConsistent(lxp, bucket_type)) {
+                    throw new BucketException("Structural integrity incompatibility"
+                            + "\nrecord_to_write: " + record + "\n"
+                            + "\ntype_label_id: " + type_label_id + "\n");
+                }
+            } else {
+                checkConsistency(record);
+            }
+        }
+    }
+
+    /**
+     * Checks the label and fields of a record against the type label of this bucket, which must be set.
+     *
+     * @return the type of this bucket
+     */
+    private IReferenceType checkLXPMetadataConsistency(final LXP record_to_write) throws BucketException {
+
+        if (record_to_write.getMetaData().containsLabel(Types.LABEL)) { // if there is a label it must be correct
+            if (!(checkLabelConsistency(record_to_write, type_label_id, store))) {
+                throw new BucketException("Label incompatibility");
+            }
+        }
+        final IReferenceType bucket_type = store.getTypeFactory().typeWithId(type_label_id);
+        if (bucket_type == null || !Types.checkFieldsPresent(record_to_write, bucket_type)) {
+            throw new BucketException("Structural integrity incompatibility"
+                    + "\nrecord_to_write: " + record_to_write + "\n"
+                    + "\ntype_label_id: " + type_label_id + "\n");
+        }
+        return bucket_type;
+    }
+
+    /**
+     * Checks that none of a number of records is already in the bucket, or appears twice.
+     *
+     * @param records the records to be checked
+     * @return the ids of the records
+     * @throws BucketException if a record is already in the bucket
+     */
+    List<Long> checkNewRecords(final Collection<? extends PersistentObject> records) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>(records.size());
+        final Set<Long> distinct_ids = new HashSet<>();
+        for (final PersistentObject record : records) {
+            ids.add(record.getId());
+            if (!distinct_ids.add(record.getId())) {
+                throw new BucketException("records may not be overwritten - use update");
+            }
+        }
+
+        checkForChanges();
+        if (!existingRecords(ids).isEmpty()) {
+            throw new BucketException("records may not be overwritten - use update");
+        }
+        return ids;
+    }
+
+    /*
+     * Finds which of the given records have record files, first correcting the manifest for any of them that it
+     * disagrees with the files about, as a crash between writing or deleting a record file and updating the
+     * manifest leaves it. The record files are taken to be right.
+     */
+    private List<Long> existingRecords(final List<Long> ids) throws BucketException {
+
+        try {
+            final Set<Long> listed = new HashSet<>(manifest().present(ids));
+            final List<Long> existing = new ArrayList<>();
+            final List<Long> unlisted = new ArrayList<>();
+
+            for (final long id : ids) {
+                if (filePath(id).toFile().exists()) {
+                    existing.add(id);
+                    if (!listed.contains(id)) {
+                        unlisted.add(id);
+                    }
+                } else if (listed.contains(id)) {
+                    manifest().remove(id);
+                }
+            }
+            if (!unlisted.isEmpty()) {
+                manifest().addAll(unlisted);
+            }
+            return existing;
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    private void checkLXPConsistency(final LXP record_to_write) throws BucketException {
+
         if (type_label_id != -1) { // we have set a type label in this bucket there must check for consistency
 
             if (record_to_write.getMetaData().containsLabel(Types.LABEL)) { // if there is a label it must be correct
@@ -497,43 +857,453 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
                     throw new BucketException("Type mismatch checking consistency");
                 }
             }
-
-        writeData(record_to_write, filepath);
     }
 
     private void writeData(final PersistentObject record_to_write, final Path filepath) throws BucketException {
 
-        try (final Writer writer = Files.newBufferedWriter(filepath, FileManipulation.FILE_CHARSET)) { // auto close and exception
+        if (layout != BucketLayout.FLAT) {
+            try {
+                Files.createDirectories(filepath.getParent());
+            } catch (final IOException e) {
+                throw new BucketException(e);
+            }
+        }
+        try {
+            Files.write(filepath, serialize(record_to_write));
+            object_cache.put(record_to_write.getId(), record_to_write);  // Putting this call here ensures that all records that are in a bucket and loaded are in the cache
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    /**
+     * @param record_to_write the record to be serialized
+     * @return the serialized state of the record in the encoding of the bucket, as written by @method writeData
+     * @throws BucketException if the record cannot be serialized
+     */
+    byte[] serialize(final PersistentObject record_to_write) throws BucketException {
+
+        if (encoding == RecordEncoding.BINARY) {
+
+            final BinaryRecordWriter writer = new BinaryRecordWriter(getStringDictionary());
+            try {
+                // fields need only be named if the record may be read with different metadata
+                record_to_write.serializeToBinary(writer, this, record_to_write.getClass() != bucketType);
+
+            } catch (final PersistentObjectException e) {
+                throw new BucketException(e);
+            }
+            return writer.toByteArray();
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(bytes, FileManipulation.FILE_CHARSET))) {
 
             record_to_write.serializeToJSON(new JSONWriter(writer), this);
-            object_cache.put(record_to_write.getId(), record_to_write);  // Putting this call here ensures that all records that are in a bucket and loaded are in the cache
 
         } catch (final IOException | JSONException e) {
             throw new BucketException(e);
         }
+        return bytes.toByteArray();
     }
 
-    public synchronized int size() throws BucketException {
+    /**
+     * Adds a record that has been written to the bucket storage to the object cache.
+     *
+     * @param record the record to be cached
+     */
+    void cacheObject(final PersistentObject record) {
 
-        if (size == -1) {
+        forgetSerialized(record.getId());
+        object_cache.put(record.getId(), record);
+    }
+
+    /**
+     * Removes the record with the given id from the object cache.
+     *
+     * @param id the id of the record to be removed
+     */
+    void evictObject(final long id) {
+
+        forgetSerialized(id);
+        object_cache.invalidate(id);
+    }
+
+    /**
+     * Reloads the record with the given id if it is cached.
+     * The cached copy is evicted if the record cannot be read, for instance if it is still being written.
+     *
+     * @param id the id of the record to be reloaded
+     */
+    void refreshObject(final long id) {
+
+        forgetSerialized(id);
+        if (object_cache.getIfPresent(id) != null) {
             try {
-                size = (int) Files.list(directory.toPath()).count() - 2; // do not count . and ..
-            } catch (final IOException e) {
-                throw new BucketException("Cannot determine size - I/O error");
+                object_cache.put(id, loader(id));
+
+            } catch (final BucketException e) {
+                evictObject(id);
+            }
+        }
+    }
+
+    /**
+     * Records in the oid manifest that a record has been written to the bucket.
+     *
+     * @param id the id of the record added
+     * @throws BucketException if the manifest cannot be updated
+     */
+    void recordAdded(final long id) throws BucketException {
+
+        try {
+            manifest().add(id);
+            journalChange(id, StandardWatchEventKinds.ENTRY_CREATE);
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    /**
+     * Records in the oid manifest that a number of records have been written to the bucket.
+     *
+     * @param ids the ids of the records added
+     * @throws BucketException if the manifest cannot be updated
+     */
+    void recordsAdded(final Collection<Long> ids) throws BucketException {
+
+        try {
+            manifest().addAll(ids);
+            if (journal != null) {
+                journal.appendAll(bucket_name, ids, StandardWatchEventKinds.ENTRY_CREATE);
+            }
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    /**
+     * Records in the oid manifest that a record has been deleted from the bucket.
+     *
+     * @param id the id of the record removed
+     * @throws BucketException if the manifest cannot be updated
+     */
+    void recordRemoved(final long id) throws BucketException {
+
+        try {
+            manifest().remove(id);
+            journalChange(id, StandardWatchEventKinds.ENTRY_DELETE);
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    /**
+     * Records that this bucket is about to change the file holding a record, so that the Watcher event
+     * caused by the change does not invalidate the cached copy.
+     *
+     * @param id the id of the record to be changed
+     */
+    void noteWrite(final long id) {
+
+        forgetSerialized(id);
+        recent_writes.put(String.valueOf(id), Boolean.TRUE);
+    }
+
+    /**
+     * Passes on any changes made to the bucket by other processes, if changes are reported through the repository journal.
+     */
+    void checkForChanges() {
+
+        if (journal != null) {
+            journal.catchUp();
+        }
+    }
+
+    private void journalChange(final long id, final WatchEvent.Kind<?> kind) throws IOException {
+
+        if (journal != null) {
+            journal.append(bucket_name, id, kind);
+        }
+    }
+
+    private synchronized OidManifest manifest() throws IOException {
+
+        if (manifest == null) {
+            manifest = new OidManifest(this);
+        }
+        return manifest;
+    }
+
+    public int size() throws BucketException {
+
+        checkForChanges();
+        try {
+            return manifest().size();
+
+        } catch (final IOException e) {
+            throw new BucketException("Cannot determine size - I/O error");
+        }
+    }
+
+    public BucketLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Closes any files that the bucket keeps open, before the bucket is deleted.
+     * Buckets that keep no files open do nothing.
+     */
+    void closeFiles() {
+    }
+
+    /**
+     * Sets the layout of a newly created bucket.
+     *
+     * @param new_layout the layout to be used
+     * @throws BucketException if the bucket already contains records or the layout cannot be recorded
+     */
+    synchronized void setLayout(final BucketLayout new_layout) throws BucketException {
+
+        if (new_layout == layout) {
+            return;
+        }
+        checkChangesAreSeen(new_layout);
+        if (size() != 0) {
+            throw new BucketException("Layout can only be set on an empty bucket - use changeLayout");
+        }
+        recordLayout(new_layout);
+    }
+
+    /**
+     * Moves all the records in the bucket into a new layout, using a number of threads.
+     * The bucket must not be used by other threads or processes while its layout is being changed.
+     *
+     * @param new_layout the layout to be used
+     * @param threads    the number of threads with which to move the records
+     * @throws BucketException if a record cannot be moved or the layout cannot be recorded
+     */
+    public synchronized void changeLayout(final BucketLayout new_layout, final int threads) throws BucketException {
+
+        if (new_layout == layout) {
+            return;
+        }
+        checkChangesAreSeen(new_layout);
+
+        final BucketLayout old_layout = layout;
+        final Path bucket_path = dirPath();
+        final List<Long> oids = new ArrayList<>();
+        old_layout.addOids(directory, oids);
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> oids.parallelStream().forEach(oid -> {
+
+                final Path new_path = new_layout.recordPath(bucket_path, oid);
+                try {
+                    Files.createDirectories(new_path.getParent());
+                    Files.move(old_layout.recordPath(bucket_path, oid), new_path);
+
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new BucketException("Cannot move records to new layout: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+
+        recordLayout(new_layout);
+        if (old_layout == BucketLayout.SHARDED) {
+            deleteEmptyShards();
+        }
+        invalidateCache();
+    }
+
+    private void recordLayout(final BucketLayout new_layout) throws BucketException {
+
+        try {
+            BucketLayout.setLayout(dirPath(), new_layout);
+            layout = new_layout;
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+    }
+
+    private BucketLayout readLayout() throws RepositoryException {
+
+        final BucketLayout recorded_layout;
+        try {
+            recorded_layout = BucketLayout.getLayout(dirPath());
+
+        } catch (final IOException | IllegalArgumentException e) {
+            throw new RepositoryException("Cannot read layout of bucket: " + bucket_name);
+        }
+        try {
+            checkChangesAreSeen(recorded_layout);
+
+        } catch (final BucketException e) {
+            throw new RepositoryException(e.getMessage());
+        }
+        return recorded_layout;
+    }
+
+    /*
+     * The Watcher only watches the top level of a bucket, so it does not see changes to records held in shards, and
+     * cached records would become stale. Sharded buckets are therefore only used with the change journal.
+     */
+    private void checkChangesAreSeen(final BucketLayout new_layout) throws BucketException {
+
+        if (new_layout != BucketLayout.FLAT && store.getChangeNotification() != ChangeNotification.JOURNAL) {
+            throw new BucketException("The " + new_layout + " layout can only be used in a store with a change journal");
+        }
+    }
+
+    public RecordEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the dictionary of the store, through which strings are pooled and coded in binary records
+     */
+    StringDictionary getStringDictionary() {
+        return store.getStringDictionary();
+    }
+
+    /**
+     * Rewrites all the records in the bucket in a new encoding, using a number of threads; this is also the way to
+     * choose the encoding of a new bucket. Records are written in the new encoding from the start of the conversion and
+     * are read in whichever encoding they were written, so the bucket may be used while it is being converted.
+     *
+     * @param new_encoding the encoding to be used
+     * @param threads      the number of threads with which to convert the records
+     * @throws BucketException if a record cannot be converted or the encoding cannot be recorded
+     */
+    public synchronized void changeEncoding(final RecordEncoding new_encoding, final int threads) throws BucketException {
+
+        if (new_encoding == encoding) {
+            return;
+        }
+        try {
+            RecordEncoding.setEncoding(dirPath(), new_encoding);
+            encoding = new_encoding;
+
+        } catch (final IOException e) {
+            throw new BucketException(e);
+        }
+        convertRecords(threads);
+    }
+
+    /**
+     * Rewrites any records not in the encoding of the bucket, replacing each record file atomically.
+     *
+     * @param threads the number of threads with which to convert the records
+     * @throws BucketException if a record cannot be converted
+     */
+    void convertRecords(final int threads) throws BucketException {
+
+        final Path temp_directory = dirPath().resolve(META_BUCKET_NAME); // within the bucket so that records can be moved atomically
+        final List<Long> oids = getOids();
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> oids.parallelStream().forEach(oid -> {
+
+                try {
+                    if (RecordEncoding.of(readRecord(oid)) != encoding) {
+
+                        final Path temp_path = Files.createTempFile(temp_directory, String.valueOf(oid), null);
+                        Files.write(temp_path, serialize(loader(oid)));
+                        noteWrite(oid);
+                        Files.move(temp_path, filePath(oid), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (final BucketException e) {
+                    throw new RuntimeException(e);
+                }
+            })).get();
+
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new BucketException("Cannot convert records to new encoding: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private RecordEncoding readEncoding() throws RepositoryException {
+
+        try {
+            return RecordEncoding.getEncoding(dirPath());
+
+        } catch (final IOException | IllegalArgumentException e) {
+            throw new RepositoryException("Cannot read encoding of bucket: " + bucket_name);
+        }
+    }
+
+    private void deleteEmptyShards() {
+
+        final Iterator<File> outer = new FileIterator(directory, false, true);
+        while (outer.hasNext()) {
+            final File shard = outer.next();
+            final String[] inner = shard.list();
+            if (shard.getName().length() == 2 && inner != null) {
+                for (final String name : inner) {
+                    new File(shard, name).delete(); // only succeeds if empty
+                }
+                shard.delete();
             }
         }
-        return size;
     }
 
     /**
-     * `
      * called by Watcher service
+     * Updates the cached copies of records whose files have been changed by another process:
+     * deleted records are evicted and cached records that have been rewritten are reloaded.
+     * The oids and size of the bucket are kept up to date by the manifest.
+     */
+    public void invalidateCache(final Map<String, WatchEvent.Kind<?>> changes) {
+
+        for (final Map.Entry<String, WatchEvent.Kind<?>> change : changes.entrySet()) {
+
+            final String file_name = change.getKey();
+            if (recent_writes.getIfPresent(file_name) != null) {
+                continue; // changed by this bucket
+            }
+
+            final long oid;
+            try {
+                oid = Long.parseLong(file_name);
+            } catch (final NumberFormatException e) {
+                continue; // not a record file
+            }
+
+            if (change.getValue() == StandardWatchEventKinds.ENTRY_DELETE) {
+                evictObject(oid);
+            } else {
+                refreshObject(oid);
+            }
+        }
+    }
+
+    /**
+     * called by Watcher service when it cannot tell what has changed
      */
     public synchronized void invalidateCache() {
 
-        size = -1;
-        cached_oids = null;
-        object_cache = newCache(repository, cache_size, this); // There may be extent references to these objects in the heap which should be invalidated.
+        object_cache = newCache(); // There may be extent references to these objects in the heap which should be invalidated.
+        final OffHeapRecordCache serialized = serialized_cache;
+        if (serialized != null) {
+            serialized.invalidateAll();
+        }
     }
 
     /**
@@ -551,6 +1321,7 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
         if (!primary_location.toFile().exists()) {
             throw new RuntimeException("******* Transaction error: Primary file does not exist *******");
         }
+        noteWrite(oid);
         if (!primary_location.toFile().delete()) {
             throw new RuntimeException("******* Transaction error: Primary file cannot be deleted *******");
         }
@@ -562,6 +1333,12 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
         if (!shadow_location.toFile().delete()) {
             throw new RuntimeException("******* Transaction error: Shadow file cannot be deleted *******");
         }
+        refreshObject(oid); // also stops a version read while it was being replaced from being cached
+        try {
+            journalChange(oid, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (final IOException e) {
+            throw new RuntimeException("******* Transaction error: Change cannot be recorded in journal *******");
+        }
     }
 
     @Override
@@ -583,9 +1360,12 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
         if (!record_location.toFile().exists()) {
             throw new BucketException("Record with id: " + oid + " does not exist");
         }
+        noteWrite(oid);
         if (!record_location.toFile().delete()) {
             throw new BucketException("Unsuccessful delete of oid: " + oid);
         }
+        evictObject(oid);
+        recordRemoved(oid);
     }
 
     /*
@@ -608,7 +1388,7 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
      * ******** Path manipulation **********
      */
 
-    private Path transactionsPath(final long oid) {
+    Path transactionsPath(final long oid) {
         return dirPath().resolve(TRANSACTIONS_BUCKET_NAME).resolve(String.valueOf(oid));
     }
 
@@ -621,7 +1401,7 @@ public class DirectoryBackedBucket<T extends PersistentObject> implements IBucke
     //******** Private methods *********
 
     public Path filePath(final long id) {
-        return filePath(String.valueOf(id));
+        return layout.recordPath(dirPath(), id);
     }
 
     private Path filePath(final String id) {
@@ -19,23 +19,41 @@ package uk.ac.standrews.cs.storr.impl;
 import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
 import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
 import uk.ac.standrews.cs.storr.interfaces.*;
+import uk.ac.standrews.cs.utilities.FileManipulation;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * Created by al on 03/10/2014.
  */
 public class DirectoryBackedIndexedBucket<T extends LXP> extends DirectoryBackedBucket<T> implements IIndexedBucket<T> {
 
-    private static final String INDEX = "INDEX";
     private static final String INDEX_DIR_NAME = "INDICES";
-    private Map<String, IBucketIndex> indexes = new HashMap<>();
+    private static final String BUILDING_MARKER_SUFFIX = ".BUILDING";
+    private static final int DEFAULT_INDEX_BUILD_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final Map<String, IBucketIndex> indexes = new ConcurrentHashMap<>();
+
+    // The ids of the records written during the build of each new index, whose entries the build must not overwrite.
+    private final Map<String, Set<Long>> building = new ConcurrentHashMap<>();
+
+    // Held for reading by writers, so that a new index is registered between writes rather than during one.
+    private final ReadWriteLock index_registration = new ReentrantReadWriteLock();
 
     protected DirectoryBackedIndexedBucket(final IRepository repository, final String bucket_name,  BucketKind kind, boolean create_bucket) throws RepositoryException {
 
@@ -79,41 +97,410 @@ public class DirectoryBackedIndexedBucket<T extends LXP> extends DirectoryBacked
     @Override
     public void addIndex(final String label) throws IOException {
 
-        Path path = dirPath().resolve(INDEX_DIR_NAME).resolve(INDEX + label);
+        addIndex(label, IndexKind.HASH);
+    }
+
+    @Override
+    public void addIndex(final String label, final IndexKind kind) throws IOException {
+
+        addIndex(label, kind, DEFAULT_INDEX_BUILD_THREADS);
+    }
+
+    @Override
+    public void addIndex(final List<String> labels) throws IOException {
+
+        for (final String label : labels) {
+            if (label.contains(CompositeIndex.LABEL_SEPARATOR)) {
+                throw new IOException("label cannot be part of a composite index: " + label);
+            }
+        }
+        addIndex(String.join(CompositeIndex.LABEL_SEPARATOR, labels), IndexKind.COMPOSITE);
+    }
+
+    /**
+     * Adds an index over a label and builds it from the records already in the bucket.
+     * <p>
+     * The records are read in parallel and, for the hash and ordered kinds, their entries are sorted and the index
+     * written in one pass. The bucket may be read and written by other threads while the index is built: records
+     * written meanwhile are indexed as they are written. The index is not returned by {@link #getIndex(String)}
+     * until it is complete, and is only built in the calling process.
+     * <p>
+     * While the index is built, a marker file locked by the builder lies beside its directory. An index whose marker
+     * remains but is not locked was left by a build that did not complete, and is deleted when the bucket is next
+     * opened; an index that fails to build is deleted at once.
+     *
+     * @param label   the label to index
+     * @param kind    the kind of index to keep
+     * @param threads the number of threads with which to read the records
+     * @throws IOException if the label is already indexed, or the index cannot be built
+     */
+    public void addIndex(final String label, final IndexKind kind, final int threads) throws IOException {
+
+        final Path path = dirPath().resolve(INDEX_DIR_NAME).resolve(kind.directoryName(label));
+        final Path marker = buildingMarker(path);
+        final IBucketIndex index;
+        final FileChannel marker_channel;
 
-        if (Files.exists(path)) {
-            throw new IOException("index exists");
-        } else {
+        index_registration.writeLock().lock();
+        try {
+            if (indexes.containsKey(label) || Files.exists(path) || Files.exists(marker)) {
+                throw new IOException("index exists");
+            }
+            marker_channel = FileChannel.open(marker, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            marker_channel.lock(); // released when the channel is closed
             Files.createDirectory(path); // create a directory to store the index
-            indexes.put(label, new BucketIndex(label, path, this)); // keep the in memory index list up to date
+            index = newIndex(label, kind, path);
+
+            // From here on, writers index the records they write.
+            building.put(label, ConcurrentHashMap.<Long>newKeySet());
+            indexes.put(label, index);
+
+        } finally {
+            index_registration.writeLock().unlock();
+        }
+
+        boolean built = false;
+        try {
+            backfill(label, index, threads);
+            built = true;
+
+        } catch (final BucketException e) {
+            throw new IOException("Cannot build index of " + label + ": " + e.getMessage(), e);
+
+        } finally {
+            if (!built) {
+                abandonIndex(label, path);
+            }
+            building.remove(label);
+            Files.delete(marker);
+            marker_channel.close();
+        }
+    }
+
+    /*
+     * Removes an index whose build failed, between writes.
+     */
+    private void abandonIndex(final String label, final Path path) throws IOException {
+
+        index_registration.writeLock().lock();
+        try {
+            indexes.remove(label);
+            FileManipulation.deleteDirectory(path);
+
+        } finally {
+            index_registration.writeLock().unlock();
+        }
+    }
+
+    private static Path buildingMarker(final Path index_path) {
+        return index_path.resolveSibling(index_path.getFileName() + BUILDING_MARKER_SUFFIX);
+    }
+
+    /*
+     * Whether the index in a directory is complete. An index whose build was left incomplete by a process that has
+     * stopped is deleted.
+     */
+    private static boolean isBuilt(final Path index_path) throws IOException {
+
+        final Path marker = buildingMarker(index_path);
+        try (final FileChannel channel = FileChannel.open(marker, StandardOpenOption.WRITE)) {
+
+            if (channel.tryLock() != null) {
+                FileManipulation.deleteDirectory(index_path);
+                Files.delete(marker);
+            }
+            return false; // otherwise being built by another process
+
+        } catch (final NoSuchFileException e) {
+            return true;
+        } catch (final OverlappingFileLockException e) {
+            return false; // being built by this process
         }
     }
 
     @Override
     public IBucketIndex getIndex(final String label) {
-        return indexes.get(label);
+        return building.containsKey(label) ? null : indexes.get(label);
+    }
+
+    @Override
+    public ICompositeBucketIndex<T> getIndex(final List<String> labels) {
+
+        final IBucketIndex index = getIndex(String.join(CompositeIndex.LABEL_SEPARATOR, labels));
+        return index instanceof ICompositeBucketIndex ? (ICompositeBucketIndex<T>) index : null;
     }
 
     @Override
     public void makePersistent(final T record) throws BucketException {
 
+        index_registration.readLock().lock();
+        try {
+            final List<T> records = Collections.singletonList(record);
+            final Map<String, List<byte[]>> entries = newEntries(records);
+
+            noteWrittenDuringBuild(record.getId());
+            super.makePersistent(record);
+            addToIndexes(records, entries);
+
+        } finally {
+            index_registration.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void makePersistentAll(final Collection<T> records) throws BucketException {
+
+        index_registration.readLock().lock();
+        try {
+            final List<T> record_list = new ArrayList<>(records);
+            final Map<String, List<byte[]>> entries = newEntries(record_list);
+
+            for (final T record : records) {
+                noteWrittenDuringBuild(record.getId());
+            }
+            super.makePersistentAll(records);
+            addToIndexes(record_list, entries);
+        } finally {
+            index_registration.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes a record and removes it from the indexes.
+     */
+    @Override
+    public void delete(final long oid) throws BucketException {
+
+        index_registration.readLock().lock();
+        try {
+            noteWrittenDuringBuild(oid);
+            final T record = indexes.isEmpty() || !contains(oid) ? null : (T) loader(oid);
+            super.delete(oid);
+
+            if (record != null) {
+                updateIndexes(Collections.singletonList(record), Collections.<T>emptyList());
+            }
+        } finally {
+            index_registration.readLock().unlock();
+        }
+    }
+
+    /**
+     * Swizzles the records updated in a transaction and then updates the indexes for all of them together:
+     * the entries of each index that have changed are sorted, and removed and added in one batch per index.
+     */
+    @Override
+    public void swizzleAll(final List<Long> oids) {
+
+        index_registration.readLock().lock();
+        try {
+            final List<T> old_records = new ArrayList<>();
+            final List<T> new_records = new ArrayList<>();
+
+            if (!indexes.isEmpty()) {
+                for (final long oid : oids) {
+                    noteWrittenDuringBuild(oid);
+                    old_records.add((T) loader(oid));
+                    new_records.add((T) decode(oid, Files.readAllBytes(transactionsPath(oid))));
+                }
+            }
+
+            super.swizzleAll(oids);
+            updateIndexes(old_records, new_records);
+
+        } catch (final IOException | BucketException e) {
+            throw new RuntimeException("******* Transaction error: indexes cannot be updated *******", e);
+        } finally {
+            index_registration.readLock().unlock();
+        }
+    }
+
+    /*
+     * Records that a record is being changed while indexes are built, before it is changed, so that a build that
+     * reads the record cannot overwrite the entries for it made by the writer.
+     */
+    private void noteWrittenDuringBuild(final long oid) {
+
+        for (final Set<Long> written : building.values()) {
+            written.add(oid);
+        }
+    }
+
+    /*
+     * Replaces the entries of old versions of records in the indexes with those of their new versions, either of
+     * which may be absent. Entries that are the same in both versions are left alone.
+     */
+    private void updateIndexes(final List<T> old_records, final List<T> new_records) throws BucketException {
+
         for (Map.Entry<String, IBucketIndex> entry : indexes.entrySet()) {
 
-            String key = entry.getKey();
-            IBucketIndex index = entry.getValue();
+            final String label = entry.getKey();
+            final IBucketIndex index = entry.getValue();
+
+            if (index instanceof BulkLoadedIndex) {
+
+                final BulkLoadedIndex bulk_index = (BulkLoadedIndex) index;
+                final List<byte[]> removed_entries = entries(index, label, old_records);
+                final List<byte[]> added_entries = entries(index, label, new_records);
+
+                final Set<ByteBuffer> old_entries = removed_entries.stream().map(ByteBuffer::wrap).collect(Collectors.toSet());
+                final Set<ByteBuffer> new_entries = added_entries.stream().map(ByteBuffer::wrap).collect(Collectors.toSet());
+
+                removed_entries.removeIf(removed_entry -> new_entries.contains(ByteBuffer.wrap(removed_entry)));
+                added_entries.removeIf(added_entry -> old_entries.contains(ByteBuffer.wrap(added_entry)));
 
-            if (record.getMetaData().containsLabel(key)) { // we are indexing this key
+                if (!removed_entries.isEmpty() || !added_entries.isEmpty()) {
+                    removed_entries.sort(BulkLoadedIndex.ENTRY_ORDER);
+                    added_entries.sort(BulkLoadedIndex.ENTRY_ORDER);
+                    bulk_index.apply(removed_entries, added_entries);
+                }
 
+            } else {
                 try {
-                    index.add(record); // and add this record to the index for that key
+                    for (final T record : old_records) {
+                        if (isIndexed(record, label, index)) {
+                            index.remove(record);
+                        }
+                    }
+                    for (final T record : new_records) {
+                        if (isIndexed(record, label, index)) {
+                            index.add(record);
+                        }
+                    }
                 } catch (IOException e) {
-                    throw new BucketException("I/O exception adding index");
+                    throw new BucketException("I/O exception updating index");
                 }
             }
+        }
+    }
+
+    /*
+     * Whether an index over the given label applies to a record.
+     */
+    private static boolean isIndexed(final LXP record, final String label, final IBucketIndex index) {
 
+        return index instanceof CompositeIndex ? ((CompositeIndex) index).covers(record) : record.getMetaData().containsLabel(label);
+    }
+
+    private static <T extends LXP> List<byte[]> entries(final IBucketIndex index, final String label, final List<T> records) throws BucketException {
+
+        final List<byte[]> entries = new ArrayList<>();
+        for (final T record : records) {
+            if (isIndexed(record, label, index)) {
+                final byte[] entry = ((BulkLoadedIndex) index).entryOf(record);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
         }
+        return entries;
+    }
+
+    /*
+     * Computes the sorted entries of new records in each bulk loaded index, before the records are written, so that
+     * a record that cannot be indexed is not written.
+     */
+    private Map<String, List<byte[]>> newEntries(final List<T> records) throws BucketException {
 
-        super.makePersistent(record);
+        final Map<String, List<byte[]>> entries = new HashMap<>();
+        for (Map.Entry<String, IBucketIndex> entry : indexes.entrySet()) {
+
+            if (entry.getValue() instanceof BulkLoadedIndex) {
+                final List<byte[]> index_entries = entries(entry.getValue(), entry.getKey(), records);
+                index_entries.sort(BulkLoadedIndex.ENTRY_ORDER);
+                entries.put(entry.getKey(), index_entries);
+            }
+        }
+        return entries;
+    }
+
+    private void addToIndexes(final List<T> records, final Map<String, List<byte[]>> entries) throws BucketException {
+
+        for (Map.Entry<String, IBucketIndex> entry : indexes.entrySet()) {
+
+            String key = entry.getKey();
+            IBucketIndex index = entry.getValue();
+
+            if (index instanceof BulkLoadedIndex) {
+                final List<byte[]> index_entries = entries.get(key);
+                if (!index_entries.isEmpty()) {
+                    ((BulkLoadedIndex) index).apply(Collections.<byte[]>emptyList(), index_entries);
+                }
+                continue;
+            }
+
+            for (final T record : records) {
+                if (isIndexed(record, key, index)) { // we are indexing this key
+
+                    try {
+                        index.add(record); // and add this record to the index for that key
+                    } catch (IOException e) {
+                        throw new BucketException("I/O exception adding index");
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Indexes the records in the bucket when the index was registered. Those written since then are indexed by
+     * their writers, so are skipped when the index is written.
+     */
+    private void backfill(final String label, final IBucketIndex index, final int threads) throws BucketException {
+
+        final List<Long> oids = getOids();
+        final Set<Long> written_during_build = building.get(label);
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (index instanceof BulkLoadedIndex) {
+
+                final BulkLoadedIndex bulk_index = (BulkLoadedIndex) index;
+                final byte[][] entries = pool.submit(() -> oids.parallelStream().map(oid -> {
+
+                    final LXP record = backfillRecord(oid, label, index);
+                    try {
+                        return record == null ? null : bulk_index.entryOf(record);
+                    } catch (final BucketException e) {
+                        throw new RuntimeException(e);
+                    }
+                }).filter(Objects::nonNull).toArray(byte[][]::new)).get();
+
+                Arrays.parallelSort(entries, BulkLoadedIndex.ENTRY_ORDER);
+                bulk_index.load(Arrays.asList(entries), written_during_build);
+
+            } else {
+                pool.submit(() -> oids.parallelStream().forEach(oid -> {
+
+                    final LXP record = backfillRecord(oid, label, index);
+                    try {
+                        if (record != null && !written_during_build.contains(oid)) {
+                            index.add(record);
+                        }
+                    } catch (final IOException | BucketException e) {
+                        throw new RuntimeException(e);
+                    }
+                })).get();
+            }
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new BucketException(e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * The record with the given id if it is to be indexed by the label, or null if it has no such field or has been deleted.
+     */
+    private LXP backfillRecord(final long oid, final String label, final IBucketIndex index) {
+
+        try {
+            final LXP record = (LXP) loader(oid); // not through the cache, to leave it to the readers of the bucket
+            return isIndexed(record, label, index) ? record : null;
+
+        } catch (final BucketException e) {
+            return null;
+        }
     }
 
     public IInputStream getInputStream() throws BucketException {
@@ -144,12 +531,29 @@ public class DirectoryBackedIndexedBucket<T extends LXP> extends DirectoryBacked
             throw new IOException("Index Directory: " + dirPath() + " does not exist and cannot create");
         }
 
-        Iterator<File> iterator = new FileIterator(index, true, true);
+        Iterator<File> iterator = new FileIterator(index, false, true);
         while (iterator.hasNext()) {
             File next = iterator.next();
-            String fullname = next.getName();  // THIS IS THE "INDEX" with the actual KEY appended - so strip the INDEX off
-            String keyname = fullname.substring( 5 );
-            indexes.put(keyname, new BucketIndex(keyname, next.toPath(), this));
+            String fullname = next.getName();  // the kind's prefix with the actual KEY appended - so strip the prefix off
+            IndexKind kind = IndexKind.ofDirectory(fullname);
+            if (kind != null && isBuilt(next.toPath())) {
+                String keyname = kind.labelOf(fullname);
+                indexes.put(keyname, newIndex(keyname, kind, next.toPath()));
+            }
+        }
+    }
+
+    private IBucketIndex newIndex(final String label, final IndexKind kind, final Path path) {
+
+        switch (kind) {
+            case HASH:
+                return new HashFileIndex(label, path, this);
+            case ORDERED:
+                return new BTreeIndex(label, path, this);
+            case COMPOSITE:
+                return new CompositeIndex(Arrays.asList(label.split(CompositeIndex.LABEL_SEPARATOR)), path, this);
+            default:
+                return new BucketIndex(label, path, this);
         }
     }
 }
@@ -25,6 +25,7 @@ import uk.ac.standrews.cs.storr.interfaces.IOutputStream;
 import uk.ac.standrews.cs.storr.interfaces.IRepository;
 
 import java.io.IOException;
+import java.util.Collection;
 
 public class DirectoryBackedIndirectBucket<T extends LXP> extends DirectoryBackedBucket<T> {
 
@@ -41,12 +42,22 @@ public class DirectoryBackedIndirectBucket<T extends LXP> extends DirectoryBacke
     public void makePersistent(final T record) throws BucketException {
 
         try {
+            noteWrite(record.getId());
             writeLXP((LXP) record.getThisRef(), filePath(record.getId()));
+            recordAdded(record.getId());
         } catch (IllegalKeyException | PersistentObjectException e) {
             throw new BucketException("Error creating indirection");
         }
     }
 
+    @Override
+    public void makePersistentAll(final Collection<T> records) throws BucketException {
+
+        for (final T record : records) {
+            makePersistent(record);
+        }
+    }
+
     @Override
     public IInputStream<T> getInputStream() throws BucketException {
         try {
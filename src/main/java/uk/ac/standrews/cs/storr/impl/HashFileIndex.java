@@ -0,0 +1,574 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.KeyNotFoundException;
+import uk.ac.standrews.cs.storr.impl.exceptions.TypeMismatchFoundException;
+import uk.ac.standrews.cs.storr.interfaces.IBucketIndex;
+import uk.ac.standrews.cs.storr.interfaces.IInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An index of the records of a bucket by the value of one field, held in a single memory-mapped file.
+ * <p>
+ * The file holds an open-addressing hash table of the distinct values, with linear probing, and a heap of key
+ * blocks. Each key block holds a value and the start of its postings, the ids of the records with that value;
+ * when the postings outgrow their block they continue in overflow blocks of doubling size, chained from it.
+ * When the table becomes too full a larger table is appended to the heap and the values are rehashed into it;
+ * the postings are not moved. Lookups are answered directly from the mapped file, so there is no loading phase.
+ * <p>
+ * File layout, all numbers big-endian:
+ * <pre>
+ *     header    := MAGIC:int slot_count:int key_count:int 0:int table_offset:long heap_end:long
+ *     slot      := hash:int key_block:long                                -- hash 0 marks an empty slot
+ *     key_block := total:int last_block:long key_length:int key:utf8 postings_block
+ *     postings_block := count:int capacity:int next_block:long id:long*capacity
+ * </pre>
+ * Values are indexed by their string form; records in which the field is null are not indexed. An id is removed from
+ * the postings of a value by moving the last id of its block into its place.
+ * The index is maintained by the process that writes to the bucket.
+ */
+class HashFileIndex implements IBucketIndex, BulkLoadedIndex {
+
+    static final String TABLE_FILE_NAME = "TABLE";
+
+    private static final int MAGIC = 0x48495831;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 12;
+    private static final int KEY_BLOCK_HEADER_SIZE = 16;
+    private static final int POSTINGS_HEADER_SIZE = 16;
+
+    private static final int INITIAL_SLOT_COUNT = 1024;
+    private static final double MAXIMUM_LOAD = 0.7;
+    private static final int INITIAL_POSTINGS_CAPACITY = 2;
+    private static final int MAXIMUM_POSTINGS_CAPACITY = 4096;
+    private static final long INITIAL_MAPPED_SIZE = 1 << 16;
+
+    private final String label;
+    private final Path table_path;
+    private final DirectoryBackedIndexedBucket indexed_bucket;
+
+    private FileChannel channel = null;     // opened on first use
+    private MappedByteBuffer map;
+    private long mapped_size;
+
+    /**
+     * @param label          the label of the field being indexed
+     * @param dir            the directory holding the index, which must already exist
+     * @param indexed_bucket the bucket being indexed
+     */
+    HashFileIndex(final String label, final Path dir, final DirectoryBackedIndexedBucket indexed_bucket) {
+
+        this.label = label;
+        this.table_path = dir.resolve(TABLE_FILE_NAME);
+        this.indexed_bucket = indexed_bucket;
+    }
+
+    @Override
+    public synchronized Set<String> keySet() throws BucketException {
+
+        open();
+        final Set<String> keys = new HashSet<>();
+        final long table = tableOffset();
+
+        for (int slot = 0; slot < slotCount(); slot++) {
+            final long slot_position = table + (long) slot * SLOT_SIZE;
+            if (map.getInt((int) slot_position) != 0) {
+                final long key_block = map.getLong((int) slot_position + 4);
+                if (map.getInt((int) key_block) > 0) {
+                    keys.add(readKey(key_block));
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized List<Long> values(final String value) throws BucketException {
+
+        open();
+        final List<Long> ids = new ArrayList<>();
+        final long key_block = find(value.getBytes(StandardCharsets.UTF_8));
+
+        if (key_block != 0) {
+            long block = postingsStart(key_block);
+            while (block != 0) {
+                final int count = map.getInt((int) block);
+                for (int i = 0; i < count; i++) {
+                    ids.add(map.getLong((int) (block + POSTINGS_HEADER_SIZE + 8L * i)));
+                }
+                block = map.getLong((int) block + 8);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public IInputStream records(final String value) throws BucketException {
+
+        final List<File> files = new ArrayList<>();
+        for (final long id : values(value)) {
+            files.add(indexed_bucket.filePath(id).toFile());
+        }
+
+        try {
+            return new IndexedBucketInputStream(indexed_bucket, files.iterator());
+        } catch (final IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void add(final LXP record) throws BucketException {
+
+        final String value = valueOf(record);
+        if (value != null) {
+            open();
+            add(value.getBytes(StandardCharsets.UTF_8), record.getId());
+        }
+    }
+
+    @Override
+    public synchronized void remove(final LXP record) throws BucketException {
+
+        final String value = valueOf(record);
+        if (value != null) {
+            open();
+            remove(value.getBytes(StandardCharsets.UTF_8), record.getId());
+        }
+    }
+
+    @Override
+    public synchronized void apply(final List<byte[]> removed_entries, final List<byte[]> added_entries) throws BucketException {
+
+        open();
+        for (final byte[] entry : removed_entries) {
+            remove(Arrays.copyOf(entry, entry.length - ID_LENGTH), BulkLoadedIndex.idOf(entry));
+        }
+        for (final byte[] entry : added_entries) {
+            add(Arrays.copyOf(entry, entry.length - ID_LENGTH), BulkLoadedIndex.idOf(entry));
+        }
+    }
+
+    @Override
+    public byte[] entryOf(final LXP record) throws BucketException {
+
+        final String value = valueOf(record);
+        return value == null ? null : BulkLoadedIndex.entry(value.getBytes(StandardCharsets.UTF_8), record.getId());
+    }
+
+    /**
+     * Rewrites the file from the merged entries, with a table sized for all their values and the postings of each
+     * value in a single block, written in order, and replaces the file atomically.
+     */
+    @Override
+    public synchronized void load(final List<byte[]> sorted_entries, final Set<Long> excluded) throws BucketException {
+
+        open();
+        final List<byte[]> entries = BulkLoadedIndex.merge(sorted_entries, excluded, existingEntries());
+
+        int key_count = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (i == 0 || !sameKey(entries.get(i - 1), entries.get(i))) {
+                key_count++;
+            }
+        }
+        int slot_count = INITIAL_SLOT_COUNT;
+        while (key_count > slot_count * MAXIMUM_LOAD) {
+            slot_count *= 2;
+        }
+
+        final Path temp_path = table_path.resolveSibling(TABLE_FILE_NAME + ".new");
+        try {
+            close();
+            channel = FileChannel.open(temp_path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped_size = 0;
+            initialise(slot_count);
+
+            for (int start = 0; start < entries.size(); ) {
+
+                int end = start + 1;
+                while (end < entries.size() && sameKey(entries.get(start), entries.get(end))) {
+                    end++;
+                }
+
+                final byte[] key = Arrays.copyOf(entries.get(start), entries.get(start).length - ID_LENGTH);
+                final long key_block = allocateKeyBlock(key, Math.max(INITIAL_POSTINGS_CAPACITY, end - start));
+                final long postings = postingsStart(key_block);
+
+                for (int i = start; i < end; i++) {
+                    map.putLong((int) (postings + POSTINGS_HEADER_SIZE + 8L * (i - start)), BulkLoadedIndex.idOf(entries.get(i)));
+                }
+                map.putInt((int) postings, end - start);
+                map.putInt((int) key_block, end - start);
+                insertSlot(hash(key), key_block);
+                start = end;
+            }
+            map.putInt(8, key_count);
+            map.force();
+
+            close();
+            Files.move(temp_path, table_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (final IOException e) {
+            throw new BucketException("Cannot load index of " + label + ": " + e.getMessage());
+        } finally {
+            channel = null;
+        }
+        open();
+    }
+
+    //******** Private methods *********
+
+    /*
+     * The entries of the index, sorted.
+     */
+    private List<byte[]> existingEntries() {
+
+        final List<byte[]> entries = new ArrayList<>();
+        final long table = tableOffset();
+
+        for (int slot = 0; slot < slotCount(); slot++) {
+            final int slot_position = (int) (table + (long) slot * SLOT_SIZE);
+            if (map.getInt(slot_position) != 0) {
+
+                final long key_block = map.getLong(slot_position + 4);
+                final byte[] key = readKey(key_block).getBytes(StandardCharsets.UTF_8);
+
+                for (long block = postingsStart(key_block); block != 0; block = map.getLong((int) block + 8)) {
+                    for (int i = 0; i < map.getInt((int) block); i++) {
+                        entries.add(BulkLoadedIndex.entry(key, map.getLong((int) (block + POSTINGS_HEADER_SIZE + 8L * i))));
+                    }
+                }
+            }
+        }
+        entries.sort(ENTRY_ORDER);
+        return entries;
+    }
+
+    private static boolean sameKey(final byte[] entry1, final byte[] entry2) {
+
+        if (entry1.length != entry2.length) {
+            return false;
+        }
+        for (int i = 0; i < entry1.length - ID_LENGTH; i++) {
+            if (entry1[i] != entry2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The value of the indexed field of a record, or null if it is not set.
+     */
+    private String valueOf(final LXP record) throws BucketException {
+
+        try {
+            final Object value = record.get(label);
+            return value == null ? null : value.toString();
+
+        } catch (final KeyNotFoundException e) {
+            throw new BucketException("type label: " + label + " not found");
+        } catch (final TypeMismatchFoundException e) {
+            throw new BucketException("type mismatch");
+        }
+    }
+
+    private void add(final byte[] key, final long id) throws BucketException {
+
+        long key_block = find(key);
+        if (key_block == 0) {
+            if (keyCount() + 1 > slotCount() * MAXIMUM_LOAD) {
+                rehash(slotCount() * 2);
+            }
+            key_block = allocateKeyBlock(key, INITIAL_POSTINGS_CAPACITY);
+            insertSlot(hash(key), key_block);
+            map.putInt(8, keyCount() + 1);
+        }
+
+        long last = map.getLong((int) key_block + 4);
+        final int count = map.getInt((int) last);
+        final int capacity = map.getInt((int) last + 4);
+
+        if (count == capacity) {
+            final long overflow = allocatePostingsBlock(Math.min(MAXIMUM_POSTINGS_CAPACITY, capacity * 2));
+            map.putLong((int) last + 8, overflow);
+            map.putLong((int) key_block + 4, overflow);
+            last = overflow;
+        }
+
+        final int last_count = map.getInt((int) last);
+        map.putLong((int) (last + POSTINGS_HEADER_SIZE + 8L * last_count), id);
+        map.putInt((int) last, last_count + 1);
+        map.putInt((int) key_block, map.getInt((int) key_block) + 1);
+    }
+
+    /*
+     * Removes an id from the postings of a key, moving the last id of its block into its place. The key is kept, so
+     * that it can be reused, but is not reported by keySet() while it has no postings.
+     */
+    private void remove(final byte[] key, final long id) {
+
+        final long key_block = find(key);
+        if (key_block == 0) {
+            return;
+        }
+        for (long block = postingsStart(key_block); block != 0; block = map.getLong((int) block + 8)) {
+
+            final int count = map.getInt((int) block);
+            for (int i = 0; i < count; i++) {
+
+                if (map.getLong((int) (block + POSTINGS_HEADER_SIZE + 8L * i)) == id) {
+                    map.putLong((int) (block + POSTINGS_HEADER_SIZE + 8L * i), map.getLong((int) (block + POSTINGS_HEADER_SIZE + 8L * (count - 1))));
+                    map.putInt((int) block, count - 1);
+                    map.putInt((int) key_block, map.getInt((int) key_block) - 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * The offset of the key block holding the key, or 0 if the key is not in the index.
+     */
+    private long find(final byte[] key) {
+
+        final int hash = hash(key);
+        final int mask = slotCount() - 1;
+        final long table = tableOffset();
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+
+            final int slot_position = (int) (table + (long) slot * SLOT_SIZE);
+            final int slot_hash = map.getInt(slot_position);
+            if (slot_hash == 0) {
+                return 0;
+            }
+            if (slot_hash == hash) {
+                final long key_block = map.getLong(slot_position + 4);
+                if (keyEquals(key_block, key)) {
+                    return key_block;
+                }
+            }
+        }
+    }
+
+    private void insertSlot(final int hash, final long key_block) {
+
+        final int mask = slotCount() - 1;
+        final long table = tableOffset();
+
+        int slot = hash & mask;
+        while (map.getInt((int) (table + (long) slot * SLOT_SIZE)) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        final int slot_position = (int) (table + (long) slot * SLOT_SIZE);
+        map.putInt(slot_position, hash);
+        map.putLong(slot_position + 4, key_block);
+    }
+
+    /*
+     * Appends a table of the given size to the heap and moves the slots of the current table into it.
+     */
+    private void rehash(final int new_slot_count) throws BucketException {
+
+        final long old_table = tableOffset();
+        final int old_slot_count = slotCount();
+
+        final long new_table = allocate((long) new_slot_count * SLOT_SIZE);
+        map.putLong(16, new_table);
+        map.putInt(4, new_slot_count);
+
+        for (int slot = 0; slot < old_slot_count; slot++) {
+            final int slot_position = (int) (old_table + (long) slot * SLOT_SIZE);
+            final int hash = map.getInt(slot_position);
+            if (hash != 0) {
+                insertSlot(hash, map.getLong(slot_position + 4));
+            }
+        }
+    }
+
+    private long allocateKeyBlock(final byte[] key, final int capacity) throws BucketException {
+
+        final long key_block = allocate(KEY_BLOCK_HEADER_SIZE + key.length + POSTINGS_HEADER_SIZE + 8L * capacity);
+        final long postings = key_block + KEY_BLOCK_HEADER_SIZE + key.length;
+
+        map.putInt((int) key_block, 0);
+        map.putLong((int) key_block + 4, postings);
+        map.putInt((int) key_block + 12, key.length);
+        for (int i = 0; i < key.length; i++) {
+            map.put((int) key_block + KEY_BLOCK_HEADER_SIZE + i, key[i]);
+        }
+        initialisePostingsBlock(postings, capacity);
+        return key_block;
+    }
+
+    private long allocatePostingsBlock(final int capacity) throws BucketException {
+
+        final long block = allocate(POSTINGS_HEADER_SIZE + 8L * capacity);
+        initialisePostingsBlock(block, capacity);
+        return block;
+    }
+
+    private void initialisePostingsBlock(final long block, final int capacity) {
+
+        map.putInt((int) block, 0);
+        map.putInt((int) block + 4, capacity);
+        map.putLong((int) block + 8, 0);
+    }
+
+    /*
+     * Allocates space at the end of the heap, zeroed, growing the mapping if needed.
+     */
+    private long allocate(final long size) throws BucketException {
+
+        final long offset = map.getLong(24);
+        ensureMapped(offset + size);
+        for (long i = offset; i < offset + size; i++) {
+            map.put((int) i, (byte) 0);
+        }
+        map.putLong(24, offset + size);
+        return offset;
+    }
+
+    private long postingsStart(final long key_block) {
+        return key_block + KEY_BLOCK_HEADER_SIZE + map.getInt((int) key_block + 12);
+    }
+
+    private boolean keyEquals(final long key_block, final byte[] key) {
+
+        if (map.getInt((int) key_block + 12) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (map.get((int) key_block + KEY_BLOCK_HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(final long key_block) {
+
+        final byte[] key = new byte[map.getInt((int) key_block + 12)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = map.get((int) key_block + KEY_BLOCK_HEADER_SIZE + i);
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static int hash(final byte[] key) {
+
+        int hash = Arrays.hashCode(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash == 0 ? 1 : hash; // 0 marks an empty slot
+    }
+
+    private int slotCount() {
+        return map.getInt(4);
+    }
+
+    private int keyCount() {
+        return map.getInt(8);
+    }
+
+    private long tableOffset() {
+        return map.getLong(16);
+    }
+
+    /*
+     * Opens and maps the file, creating an empty index if there is none.
+     */
+    private void open() throws BucketException {
+
+        if (channel != null) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(table_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final long size = channel.size();
+            mapped_size = 0;
+            ensureMapped(Math.max(size, INITIAL_MAPPED_SIZE));
+
+            if (size == 0) {
+                initialise(INITIAL_SLOT_COUNT);
+
+            } else if (map.getInt(0) != MAGIC) {
+                throw new BucketException("Index file for " + label + " is not a hash index: " + table_path);
+            }
+        } catch (final IOException e) {
+            channel = null;
+            throw new BucketException(e.getMessage());
+        }
+    }
+
+    /*
+     * Writes the header and an empty table to a new file.
+     */
+    private void initialise(final int slot_count) throws BucketException {
+
+        final long table_size = (long) slot_count * SLOT_SIZE;
+        ensureMapped(HEADER_SIZE + table_size);
+        map.putInt(0, MAGIC);
+        map.putInt(4, slot_count);
+        map.putInt(8, 0);
+        map.putLong(16, HEADER_SIZE);
+        map.putLong(24, HEADER_SIZE + table_size);
+    }
+
+    private void close() throws IOException {
+
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void ensureMapped(final long size) throws BucketException {
+
+        if (size <= mapped_size) {
+            return;
+        }
+        long new_size = Math.max(mapped_size, INITIAL_MAPPED_SIZE);
+        while (new_size < size) {
+            new_size *= 2;
+        }
+        if (new_size > Integer.MAX_VALUE) {
+            throw new BucketException("Index for " + label + " has exceeded its maximum size");
+        }
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, new_size);
+            mapped_size = new_size;
+
+        } catch (final IOException e) {
+            throw new BucketException(e.getMessage());
+        }
+    }
+}
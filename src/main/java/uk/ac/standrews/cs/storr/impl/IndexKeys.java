@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodings of field values as byte strings whose unsigned lexicographic order is the natural order of the values,
+ * so that they may be compared by ordered indexes without being decoded.
+ * <p>
+ * Each value is encoded as a tag byte followed by its payload, and is self-delimiting, so encodings may be appended
+ * to one another to form keys made of several values. Values of different types are ordered by their tags: nulls
+ * before booleans before integral numbers before floating point numbers before strings. Integral values of any width
+ * are encoded as longs, so int fields and long query bounds compare correctly, and likewise floats as doubles.
+ * <pre>
+ *     null      := 0x05
+ *     boolean   := 0x10 (0 | 1)
+ *     integral  := 0x20 long with its sign bit flipped, big-endian
+ *     floating  := 0x30 double bits, with the sign bit flipped if positive and all bits flipped if negative
+ *     string    := 0x40 utf8 with each 0x00 escaped as 0x00 0xFF, then 0x00 0x01
+ * </pre>
+ */
+final class IndexKeys {
+
+    static final byte NULL = 0x05;
+    static final byte BOOLEAN = 0x10;
+    static final byte INTEGRAL = 0x20;
+    static final byte FLOATING = 0x30;
+    static final byte STRING = 0x40;
+
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED_ZERO = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    private byte[] bytes;
+    private int length = 0;
+
+    /**
+     * Creates an empty key, to which values may be appended.
+     */
+    IndexKeys() {
+        bytes = new byte[32];
+    }
+
+    /**
+     * @return the encoding of the values appended so far
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Appends the encoding of a value.
+     *
+     * @param value the value
+     * @return this key
+     * @throws BucketException if values of the type of the given one cannot be ordered
+     */
+    IndexKeys append(final Object value) throws BucketException {
+
+        if (value == null) {
+            put(NULL);
+
+        } else if (value instanceof String) {
+            appendStringPrefix((String) value);
+            put(ESCAPE);
+            put(TERMINATOR);
+
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            put(INTEGRAL);
+            putLong(((Number) value).longValue() ^ Long.MIN_VALUE);
+
+        } else if (value instanceof Double || value instanceof Float) {
+            final long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            put(FLOATING);
+            putLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+
+        } else if (value instanceof Boolean) {
+            put(BOOLEAN);
+            put((byte) ((Boolean) value ? 1 : 0));
+
+        } else {
+            throw new BucketException("cannot index values of type: " + value.getClass().getName());
+        }
+        return this;
+    }
+
+    /**
+     * Appends the encoding of a string without its terminator, which is a prefix of the encoding of every string
+     * starting with the given one.
+     *
+     * @param prefix the string
+     * @return this key
+     */
+    IndexKeys appendStringPrefix(final String prefix) {
+
+        put(STRING);
+        for (final byte b : prefix.getBytes(StandardCharsets.UTF_8)) {
+            put(b);
+            if (b == ESCAPE) {
+                put(ESCAPED_ZERO);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param value the value
+     * @return the encoding of the value
+     * @throws BucketException if values of the type of the given one cannot be ordered
+     */
+    static byte[] encode(final Object value) throws BucketException {
+        return new IndexKeys().append(value).toByteArray();
+    }
+
+    /**
+     * @param key    an encoding of one or more values
+     * @param offset the offset of the start of a value in the encoding
+     * @return the length of the encoding of the value at the given offset
+     */
+    static int encodedLength(final byte[] key, final int offset) {
+
+        switch (key[offset]) {
+            case NULL:
+                return 1;
+            case BOOLEAN:
+                return 2;
+            case INTEGRAL:
+            case FLOATING:
+                return 9;
+            default:
+                int i = offset + 1;
+                while (!(key[i] == ESCAPE && key[i + 1] == TERMINATOR)) {
+                    i += key[i] == ESCAPE ? 2 : 1;
+                }
+                return i + 2 - offset;
+        }
+    }
+
+    /**
+     * @param key    an encoding of one or more values
+     * @param offset the offset of the start of a value in the encoding
+     * @return the value at the given offset, with integral values as longs and floating point values as doubles
+     */
+    static Object decode(final byte[] key, final int offset) {
+
+        switch (key[offset]) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return key[offset + 1] != 0;
+            case INTEGRAL:
+                return getLong(key, offset + 1) ^ Long.MIN_VALUE;
+            case FLOATING:
+                final long bits = getLong(key, offset + 1);
+                return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+            default:
+                final byte[] utf8 = new byte[encodedLength(key, offset)];
+                int length = 0;
+                for (int i = offset + 1; !(key[i] == ESCAPE && key[i + 1] == TERMINATOR); i++) {
+                    utf8[length++] = key[i];
+                    if (key[i] == ESCAPE) {
+                        i++;
+                    }
+                }
+                return new String(utf8, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Compares two byte strings as unsigned bytes, shorter strings first when one is a prefix of the other.
+     */
+    static int compare(final byte[] a, final byte[] b) {
+
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            final int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @return whether the first byte string starts with the second
+     */
+    static boolean startsWith(final byte[] key, final byte[] prefix) {
+
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long getLong(final byte[] bytes, final int offset) {
+
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void putLong(final long value) {
+
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            put((byte) (value >>> shift));
+        }
+    }
+
+    private void put(final byte b) {
+
+        if (length == bytes.length) {
+            bytes = Arrays.copyOf(bytes, length * 2);
+        }
+        bytes[length++] = b;
+    }
+}
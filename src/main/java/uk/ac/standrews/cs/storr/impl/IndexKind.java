@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+/**
+ * The kinds of index that may be kept over the records of an indexed bucket.
+ * The kind of each index is recorded by the prefix of the name of the directory holding it.
+ */
+public enum IndexKind {
+
+    /**
+     * A file per value, listing the ids of the records with that value, loaded into memory when first used.
+     */
+    FILES("INDEX"),
+
+    /**
+     * A memory-mapped hash table of values to the ids of the records with that value, in a single file: see {@link HashFileIndex}.
+     */
+    HASH("HASH"),
+
+    /**
+     * A B+tree of values in order, in a single memory-mapped file: see {@link BTreeIndex}. Indexes of this kind
+     * implement {@link uk.ac.standrews.cs.storr.interfaces.IOrderedBucketIndex}, so also answer range and prefix queries.
+     */
+    ORDERED("ORDERED"),
+
+    /**
+     * A B+tree of the values of several fields in order, in a single memory-mapped file: see {@link CompositeIndex}.
+     * The label of an index of this kind is the labels of the fields separated by commas, and indexes of this kind
+     * implement {@link uk.ac.standrews.cs.storr.interfaces.ICompositeBucketIndex}.
+     */
+    COMPOSITE("COMPOSITE");
+
+    private final String directory_prefix;
+
+    IndexKind(final String directory_prefix) {
+        this.directory_prefix = directory_prefix;
+    }
+
+    /**
+     * @param label the label being indexed
+     * @return the name of the directory holding an index of this kind over the label
+     */
+    String directoryName(final String label) {
+        return directory_prefix + label;
+    }
+
+    /**
+     * @param directory_name the name of an index directory
+     * @return the kind of the index held in the directory, or null if it is not an index directory
+     */
+    static IndexKind ofDirectory(final String directory_name) {
+
+        for (final IndexKind kind : values()) {
+            if (directory_name.startsWith(kind.directory_prefix)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param directory_name the name of an index directory of this kind
+     * @return the label indexed
+     */
+    String labelOf(final String directory_name) {
+        return directory_name.substring(directory_prefix.length());
+    }
+}
@@ -16,7 +16,6 @@
  */
 package uk.ac.standrews.cs.storr.impl;
 
-import org.apache.commons.lang.reflect.FieldUtils;
 import org.json.JSONException;
 import org.json.JSONWriter;
 import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
@@ -109,9 +108,9 @@ public abstract class JPO extends PersistentObject {
 
             Object value;
             try {
-                value = FieldUtils.readField(this, key, true);
-            } catch (IllegalAccessException e) {
-                throw new JSONException("Cannot access field: " + key + "," + e.getMessage());
+                value = getMetaData().getCodec().getField(this, key);
+            } catch (PersistentObjectException e) {
+                throw new JSONException(e.getMessage());
             }
             writer.key(key);
             if (field.isJPORef) {
@@ -174,9 +173,37 @@ public abstract class JPO extends PersistentObject {
         }
     }
 
+    // Binary Manipulation
+
+    /**
+     * JPO fields have no slots so are always written with their names.
+     */
+    void serializeToBinary(final BinaryRecordWriter writer, final boolean with_names) throws PersistentObjectException {
+
+        final Collection<JPOField> fields = getMetaData().getStorrFields();
+        writer.startRecord(true, fields.size());
+
+        for (final JPOField field : fields) {
+
+            final Object value = getMetaData().getCodec().getField(this, field.name);
+            if ((field.isJPORef || field.isLXPRef) && value == null) {
+                writer.writeField(field.name, "null"); // as in JSON, decoded by put
+            } else {
+                writer.writeField(field.name, value);
+            }
+        }
+    }
+
+    void readBinary(final BinaryRecordReader reader) throws PersistentObjectException {
+
+        for (int i = 0; i < reader.getFieldCount(); i++) {
+            put(reader.readName(), reader.readValue());
+        }
+    }
+
     // JSON Manipulation - read methods
 
-    private static Object readValue(final JSONReader reader) throws JSONException {
+    private Object readValue(final JSONReader reader) throws JSONException {
 
         if (reader.have(JSONReader.LONG)) {
             return reader.longValue();
@@ -188,7 +215,7 @@ public abstract class JPO extends PersistentObject {
             return reader.doubleValue();
         }
         if (reader.have(JSONReader.STRING)) {
-            return reader.stringValue().intern(); // keep the Strings the same whenever possible.
+            return canonical(reader.stringValue()); // keep the Strings the same whenever possible.
         }
         if (reader.have(JSONReader.BOOLEAN)) {
             return reader.booleanValue();
@@ -230,7 +257,7 @@ public abstract class JPO extends PersistentObject {
 
             while (!reader.isEndOfStream()) {
 
-                final String key = reader.key().intern(); // keep the keys identical whenever possible.
+                final String key = canonical(reader.key()); // keep the keys identical whenever possible.
                 final Object value = readValue(reader);
 
                 if (value != null) {
@@ -282,11 +309,7 @@ public abstract class JPO extends PersistentObject {
                 }
             }
         }
-        try {
-            FieldUtils.writeField(this, key, value, true);
-        } catch (IllegalAccessException e) {
-            throw new PersistentObjectException(e.getMessage());
-        }
+        getMetaData().getCodec().setField(this, key, value);
 
     }
 }
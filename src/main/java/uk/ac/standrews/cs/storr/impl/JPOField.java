@@ -16,6 +16,12 @@
  */
 package uk.ac.standrews.cs.storr.impl;
 
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 
 public class JPOField {
@@ -25,13 +31,77 @@ public class JPOField {
     public final boolean isLXPRef;
     public final boolean isJPORef;
 
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    // Handles onto the field, adapted to take and return Object; null if the field is not known.
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
     public JPOField(String name, Type type, boolean is_list, boolean is_lxp_ref, boolean is_jpo_ref) {
         this.name = name;
         this.type = type;
         this.isList = is_list;
         this.isLXPRef = is_lxp_ref;
         this.isJPORef = is_jpo_ref;
+        this.getter = null;
+        this.setter = null;
+    }
+
+    /**
+     * Creates a field description with handles through which the field is read and written.
+     *
+     * @param field the field, which must already be accessible
+     * @throws IllegalAccessException if the field is not accessible
+     */
+    JPOField(final Field field, final boolean is_list, final boolean is_lxp_ref, final boolean is_jpo_ref) throws IllegalAccessException {
+
+        this.name = field.getName();
+        this.type = field.getType();
+        this.isList = is_list;
+        this.isLXPRef = is_lxp_ref;
+        this.isJPORef = is_jpo_ref;
+
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        this.getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+        this.setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+    }
+
+    /**
+     * @return true if the field can be accessed through this description
+     */
+    boolean isAccessible() {
+        return getter != null;
+    }
+
+    /**
+     * @param record an instance of the class declaring the field
+     * @return the value of the field
+     * @throws PersistentObjectException if the field cannot be read
+     */
+    Object get(final Object record) throws PersistentObjectException {
+
+        try {
+            return getter.invokeExact(record);
+
+        } catch (final Throwable e) {
+            throw new PersistentObjectException("Cannot access field: " + name + "," + e.getMessage());
+        }
+    }
+
+    /**
+     * @param record an instance of the class declaring the field
+     * @param value  the value to be assigned to the field; a boxed value is unboxed for a primitive field
+     * @throws PersistentObjectException if the field cannot be written
+     */
+    void set(final Object record, final Object value) throws PersistentObjectException {
+
+        try {
+            setter.invokeExact(record, value);
 
+        } catch (final Throwable e) {
+            throw new PersistentObjectException("Cannot access field: " + name + "," + e.getMessage());
+        }
     }
 }
 
@@ -31,6 +31,7 @@ import java.util.Map;
 public class JPOMetadata extends PersistentMetaData {
 
     private final Map<String,JPOField> jpo_fields = new HashMap<>();
+    private PersistentObjectCodec codec = null; // created on first use, since the codec class may refer to the metadata class
 
 
     public JPOMetadata(Class metadata_class, final String type_name ) {
@@ -60,11 +61,22 @@ public class JPOMetadata extends PersistentMetaData {
                 boolean jpo_ref = type.equals( JPOReference.class );
 
 //                System.out.println( name + " : "+ type + " list? " + is_list + " store ref? " + store_ref);
-                jpo_fields.put( name, new JPOField( name,type,is_list,lxp_ref,jpo_ref ) );
+                jpo_fields.put( name, newField( field,type,is_list,lxp_ref,jpo_ref ) );
             }
         }
     }
 
+    private static JPOField newField(final Field field, final Class type, final boolean is_list, final boolean lxp_ref, final boolean jpo_ref) {
+
+        try {
+            return new JPOField( field,is_list,lxp_ref,jpo_ref );
+
+        } catch (IllegalAccessException e) {
+            // not accessible through a method handle, so left to reflection
+            return new JPOField( field.getName(),type,is_list,lxp_ref,jpo_ref );
+        }
+    }
+
     public Collection<JPOField> getStorrFields() {
         return jpo_fields.values();
     }
@@ -73,6 +85,17 @@ public class JPOMetadata extends PersistentMetaData {
         return jpo_fields.get(key);
     }
 
+    /**
+     * @return the codec through which the fields of instances of the class are accessed
+     */
+    PersistentObjectCodec getCodec() {
+
+        if (codec == null) {
+            codec = PersistentObjectCodec.forClass(metadata_class);
+        }
+        return codec;
+    }
+
     public Class getMetadataClass() {
         return metadata_class;
     }
@@ -22,6 +22,7 @@ import uk.ac.standrews.cs.storr.impl.exceptions.*;
 import uk.ac.standrews.cs.storr.interfaces.IBucket;
 import uk.ac.standrews.cs.storr.interfaces.IRepository;
 import uk.ac.standrews.cs.storr.interfaces.IStoreReference;
+import uk.ac.standrews.cs.storr.types.LXPBaseType;
 import uk.ac.standrews.cs.utilities.JSONReader;
 
 import java.util.ArrayList;
@@ -43,6 +44,15 @@ public abstract class LXP extends PersistentObject {
 
     private Object[] field_storage = new Object[INITIAL_SIZE];   // where the data lives in the LXP.
 
+    private static final Object UNDECODED = new Object();       // held in the storage of slots whose values have not yet been decoded
+    private BinaryRecordReader lazy_record = null;              // the serialized state from which undecoded slots are decoded
+    private int[] lazy_positions = null;                        // slot -> position of its field in lazy_record
+    private int undecoded_slots = 0;                            // lazy_record is dropped when this reaches zero
+
+    private PrimitiveSlots primitive_slots = null;              // the layout of the unboxed slots of a static LXP, null until one is used
+    private long[] primitive_longs = null;                      // unboxed INT, LONG and BOOLEAN values, see PrimitiveSlots
+    private double[] primitive_doubles = null;                  // unboxed DOUBLE values
+
     private int next_free_slot = 0;
 
     // Constructors
@@ -86,7 +96,7 @@ public abstract class LXP extends PersistentObject {
     public Object get(final int slot) throws KeyNotFoundException {
 
         try {
-            return field_storage[slot];
+            return field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         }
@@ -107,11 +117,11 @@ public abstract class LXP extends PersistentObject {
     public String getString(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
         try {
-            return (String) field_storage[slot];
+            return (String) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected String found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected String found: " + field(slot).getClass().getName());
         }
     }
 
@@ -125,12 +135,15 @@ public abstract class LXP extends PersistentObject {
      */
     public double getDouble(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
+        if (isUnboxed(slot, LXPBaseType.DOUBLE)) {
+            return primitive_doubles[primitive_slots.index(slot)];
+        }
         try {
-            return (Double) field_storage[slot];
+            return (Double) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected double found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected double found: " + field(slot).getClass().getName());
         }
     }
 
@@ -143,12 +156,15 @@ public abstract class LXP extends PersistentObject {
      */
     public int getInt(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
+        if (isUnboxed(slot, LXPBaseType.INT)) {
+            return (int) primitive_longs[primitive_slots.index(slot)];
+        }
         try {
-            return (Integer) field_storage[slot];
+            return (Integer) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected int found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected int found: " + field(slot).getClass().getName());
         }
     }
 
@@ -162,12 +178,15 @@ public abstract class LXP extends PersistentObject {
      */
     public boolean getBoolean(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
+        if (isUnboxed(slot, LXPBaseType.BOOLEAN)) {
+            return primitive_longs[primitive_slots.index(slot)] != 0;
+        }
         try {
-            return (Boolean) field_storage[slot];
+            return (Boolean) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected boolean found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected boolean found: " + field(slot).getClass().getName());
         }
     }
 
@@ -181,12 +200,15 @@ public abstract class LXP extends PersistentObject {
      */
     public long getLong(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
+        if (isUnboxed(slot, LXPBaseType.LONG)) {
+            return primitive_longs[primitive_slots.index(slot)];
+        }
         try {
-            return (Long) field_storage[slot];
+            return (Long) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected Long found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected Long found: " + field(slot).getClass().getName());
         }
     }
 
@@ -201,11 +223,11 @@ public abstract class LXP extends PersistentObject {
     public List getList(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
         try {
-            return (List) field_storage[slot];
+            return (List) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected String found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected String found: " + field(slot).getClass().getName());
         }
     }
 
@@ -220,11 +242,11 @@ public abstract class LXP extends PersistentObject {
     public IStoreReference getRef(final int slot) throws KeyNotFoundException, TypeMismatchFoundException {
 
         try {
-            return (IStoreReference) field_storage[slot];
+            return (IStoreReference) field(slot);
         } catch (final IndexOutOfBoundsException e) {
             throw new KeyNotFoundException(slot);
         } catch (final ClassCastException e) {
-            throw new TypeMismatchFoundException("expected String found: " + field_storage[slot].getClass().getName());
+            throw new TypeMismatchFoundException("expected String found: " + field(slot).getClass().getName());
         }
     }
 
@@ -258,7 +280,7 @@ public abstract class LXP extends PersistentObject {
         if (slot == null) {
             throw new KeyNotFoundException("No field with name " + label + " in " + this.getId());
         }
-        return field_storage[slot];
+        return field(slot);
     }
 
     //------------- Putters -------------
@@ -293,7 +315,9 @@ public abstract class LXP extends PersistentObject {
      */
     public void put(final int slot, final double value) {
 
-        putValue(slot, value);
+        if (!putUnboxed(slot, value)) {
+            putValue(slot, value);
+        }
     }
 
     /**
@@ -304,7 +328,9 @@ public abstract class LXP extends PersistentObject {
      */
     public void put(final int slot, final int value) {
 
-        putValue(slot, value);
+        if (!putUnboxed(slot, LXPBaseType.INT, value)) {
+            putValue(slot, value);
+        }
     }
 
     /**
@@ -315,7 +341,9 @@ public abstract class LXP extends PersistentObject {
      */
     public void put(final int slot, final boolean value) {
 
-        putValue(slot, value);
+        if (!putUnboxed(slot, LXPBaseType.BOOLEAN, value ? 1 : 0)) {
+            putValue(slot, value);
+        }
     }
 
     /**
@@ -326,7 +354,9 @@ public abstract class LXP extends PersistentObject {
      */
     public void put(final int slot, final long value) {
 
-        putValue(slot, value);
+        if (!putUnboxed(slot, LXPBaseType.LONG, value)) {
+            putValue(slot, value);
+        }
     }
 
     /**
@@ -360,17 +390,126 @@ public abstract class LXP extends PersistentObject {
     public void put(final String key, final Object value) {
 
         check(key);
-        field_storage[getMetaData().getSlot(key)] = value;
+        putValue(getMetaData().getSlot(key), value);
     }
 
     // Slot management
 
     private void putValue(final int slot, final Object value) {
 
+        if (putUnboxed(slot, value)) {
+            return;
+        }
         if (slot >= field_storage.length) {
             growStorage(slot);
         }
+        final Object previous = field_storage[slot];
         field_storage[slot] = value;
+        if (value == UNDECODED && previous != UNDECODED) {
+            undecoded_slots++;
+        } else if (value != UNDECODED && previous == UNDECODED) {
+            decoded();
+        }
+    }
+
+    // Unboxed slots
+
+    /**
+     * @return true if the slot is a primitive slot of a static LXP and has a value of the given type, which is held unboxed
+     */
+    private boolean isUnboxed(final int slot, final LXPBaseType type) {
+
+        return primitive_slots != null && primitive_slots.type(slot) != null && primitive_slots.isPresent(primitive_longs, slot) && primitive_slots.storedType(primitive_longs, slot) == type;
+    }
+
+    /**
+     * @return true if the slot is a primitive slot of a static LXP, allocating the unboxed storage when first needed
+     */
+    private boolean hasUnboxedSlot(final int slot) {
+
+        if (primitive_slots == null) {
+            final PrimitiveSlots layout = getMetaData().getPrimitiveSlots();
+            if (layout == null) {
+                return false;
+            }
+            primitive_longs = layout.newLongs();
+            primitive_doubles = layout.newDoubles();
+            primitive_slots = layout;
+        }
+        return primitive_slots.type(slot) != null;
+    }
+
+    /*
+     * Holds the value unboxed if it is consistent with the type of a primitive slot, otherwise records that the slot
+     * has no unboxed value so that its value is taken from the field storage.
+     */
+    private boolean putUnboxed(final int slot, final Object value) {
+
+        if (!hasUnboxedSlot(slot)) {
+            return false;
+        }
+        final LXPBaseType type = primitive_slots.type(slot);
+        if (value != null && value != UNDECODED && type.valueConsistentWithType(value)) {
+            if (value instanceof Double) {
+                return putUnboxed(slot, (double) (Double) value);
+            }
+            if (value instanceof Boolean) {
+                return putUnboxed(slot, type, (Boolean) value ? 1 : 0);
+            }
+            if (value instanceof Integer || value instanceof Long) {
+                return putUnboxed(slot, value instanceof Integer ? LXPBaseType.INT : LXPBaseType.LONG, ((Number) value).longValue());
+            }
+        }
+        primitive_slots.setPresent(primitive_longs, slot, false);
+        return false;
+    }
+
+    private boolean putUnboxed(final int slot, final LXPBaseType type, final long value) {
+
+        final boolean consistent = hasUnboxedSlot(slot) && (primitive_slots.type(slot) == type || (primitive_slots.type(slot) == LXPBaseType.LONG && type == LXPBaseType.INT));
+        if (consistent) {
+            primitive_longs[primitive_slots.index(slot)] = value;
+            primitive_slots.setStoredType(primitive_longs, slot, type); // an int in a LONG slot is returned as an Integer
+            unboxed(slot);
+        }
+        return consistent;
+    }
+
+    private boolean putUnboxed(final int slot, final double value) {
+
+        final boolean consistent = hasUnboxedSlot(slot) && primitive_slots.type(slot) == LXPBaseType.DOUBLE;
+        if (consistent) {
+            primitive_doubles[primitive_slots.index(slot)] = value;
+            unboxed(slot);
+        }
+        return consistent;
+    }
+
+    private void unboxed(final int slot) {
+
+        primitive_slots.setPresent(primitive_longs, slot, true);
+        if (slot < field_storage.length) {
+            final Object previous = field_storage[slot];
+            field_storage[slot] = null; // any previous or undecoded value is superseded
+            if (previous == UNDECODED) {
+                decoded();
+            }
+        }
+    }
+
+    private Object boxed(final int slot) {
+
+        final int index = primitive_slots.index(slot);
+        switch (primitive_slots.storedType(primitive_longs, slot)) {
+            case DOUBLE:
+                return primitive_doubles[index];
+            case BOOLEAN:
+                return primitive_longs[index] != 0;
+            case INT:
+                return (int) primitive_longs[index];
+            default:
+                return primitive_longs[index];
+        }
     }
 
     private void copyArray(final int new_size) {
@@ -410,7 +549,7 @@ public abstract class LXP extends PersistentObject {
 
             final String key = getMetaData().getFieldName(i);
             writer.key(key);
-            final Object value = field_storage[i];
+            final Object value = field(i);
 
             if (value instanceof ArrayList) {
                 writer.array();
@@ -453,9 +592,150 @@ public abstract class LXP extends PersistentObject {
         }
     }
 
+    // Binary Manipulation
+
+    void serializeToBinary(final BinaryRecordWriter writer, final boolean with_names) throws PersistentObjectException {
+
+        final int field_count = getMetaData().getFieldCount();
+        writer.startRecord(with_names, field_count);
+
+        for (int i = 0; i < field_count; i++) {
+            writer.writeField(getMetaData().getFieldName(i), field(i));
+        }
+    }
+
+    /**
+     * Reads the state of the record lazily: the names of the fields are read, so that the metadata of dynamic LXPs is
+     * complete, but each value is only decoded from the serialized state when its slot is first accessed.
+     */
+    void readBinary(final BinaryRecordReader reader) throws PersistentObjectException {
+
+        final int field_count = reader.getFieldCount();
+        final int[] slots = new int[field_count];
+        final int[] positions = new int[field_count];
+        int max_slot = -1;
+
+        if (reader.isNamed()) {
+            for (int i = 0; i < field_count; i++) {
+                final String key = reader.readName();
+                check(key);
+                slots[i] = getMetaData().getSlot(key);
+                positions[i] = reader.skipValue();
+                max_slot = Math.max(max_slot, slots[i]);
+            }
+        } else {
+            if (field_count != getMetaData().getFieldCount()) {
+                throw new PersistentObjectException("Record has " + field_count + " fields but its type has " + getMetaData().getFieldCount());
+            }
+            for (int i = 0; i < field_count; i++) {
+                slots[i] = i;
+                positions[i] = reader.skipValue();
+            }
+            max_slot = field_count - 1;
+        }
+
+        lazy_positions = new int[max_slot + 1];
+        for (int i = 0; i < field_count; i++) {
+            if (hasUnboxedSlot(slots[i])) {
+                putValue(slots[i], reader.readValueAt(positions[i])); // unboxed values take no more space decoded, so are decoded now
+            } else {
+                lazy_positions[slots[i]] = positions[i];
+                putValue(slots[i], UNDECODED);
+            }
+        }
+        if (undecoded_slots > 0) {
+            lazy_record = reader;
+        } else {
+            lazy_positions = null;
+        }
+    }
+
+    /**
+     * @param slot the slot number of the required field
+     * @return the value of the slot, decoding it if it has not yet been decoded
+     */
+    private Object field(final int slot) {
+
+        if (primitive_slots != null && primitive_slots.type(slot) != null && primitive_slots.isPresent(primitive_longs, slot)) {
+            return boxed(slot);
+        }
+        final Object value = field_storage[slot];
+        return value != UNDECODED ? value : decode(slot);
+    }
+
+    /*
+     * Locked so that racing threads decode the slot once and neither finds the serialized state already dropped.
+     */
+    private synchronized Object decode(final int slot) {
+
+        final Object value = field_storage[slot];
+        if (value != UNDECODED) {
+            return value;
+        }
+        try {
+            final Object decoded = lazy_record.readValueAt(lazy_positions[slot]);
+            field_storage[slot] = decoded;
+            decoded();
+            return decoded;
+
+        } catch (final PersistentObjectException e) {
+            throw new RuntimeException("Cannot decode slot " + slot + " of record " + getId(), e);
+        }
+    }
+
+    /**
+     * Records that an undecoded slot has been decoded or overwritten, dropping the serialized state after the last.
+     */
+    private synchronized void decoded() {
+
+        if (--undecoded_slots == 0) {
+            lazy_record = null;
+            lazy_positions = null;
+        }
+    }
+
+    @Override
+    int estimatedSize() {
+
+        int size = 64 + 8 * field_storage.length; // the object and its storage array
+        if (primitive_longs != null) {
+            size += 16 + 8 * primitive_longs.length;
+        }
+        if (primitive_doubles != null) {
+            size += 16 + 8 * primitive_doubles.length;
+        }
+        final BinaryRecordReader record = lazy_record;
+        final int[] positions = lazy_positions;
+        if (record != null && positions != null) {
+            size += record.size() + 4 * positions.length;
+        }
+        for (final Object value : field_storage) {
+            size += estimatedSize(value);
+        }
+        return size;
+    }
+
+    private static int estimatedSize(final Object value) {
+
+        if (value == null || value == UNDECODED) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof List) {
+            int size = 40 + 8 * ((List) value).size();
+            for (final Object element : (List) value) {
+                size += element instanceof PersistentObject ? 0 : estimatedSize(element); // records are cached separately
+            }
+            return size;
+        }
+        return 16; // boxed primitives and references
+    }
+
     // JSON Manipulation - read methods
 
-    private static Object readValue(final JSONReader reader) throws JSONException {
+    private Object readValue(final JSONReader reader) throws JSONException {
 
         if (reader.have(JSONReader.LONG)) {
             return reader.longValue();
@@ -467,7 +747,7 @@ public abstract class LXP extends PersistentObject {
             return reader.doubleValue();
         }
         if (reader.have(JSONReader.STRING)) {
-            return reader.stringValue().intern(); // keep the Strings the same whenever possible.
+            return canonical(reader.stringValue()); // keep the Strings the same whenever possible.
         }
         if (reader.have(JSONReader.BOOLEAN)) {
             return reader.booleanValue();
@@ -510,7 +790,7 @@ public abstract class LXP extends PersistentObject {
 
             while (!reader.isEndOfStream()) {
 
-                final String key = reader.key().intern(); // keep the keys identical whenever possible.
+                final String key = canonical(reader.key()); // keep the keys identical whenever possible.
                 final Object value = readValue(reader);
 
                 if (value != null) {
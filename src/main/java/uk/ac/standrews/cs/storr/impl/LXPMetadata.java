@@ -18,6 +18,7 @@ package uk.ac.standrews.cs.storr.impl;
 
 import uk.ac.standrews.cs.storr.impl.exceptions.LXPException;
 import uk.ac.standrews.cs.storr.interfaces.IReferenceType;
+import uk.ac.standrews.cs.storr.types.LXPBaseType;
 import uk.ac.standrews.cs.storr.types.LXP_LIST;
 import uk.ac.standrews.cs.storr.types.LXP_REF;
 import uk.ac.standrews.cs.storr.types.LXP_SCALAR;
@@ -35,6 +36,7 @@ public class LXPMetadata extends PersistentMetaData {
     private final Map<Integer, String> slot_to_field_name = new HashMap<>();
 
     private IReferenceType type = null;
+    private PrimitiveSlots primitive_slots = null;  // the layout of the unboxed slots of a static LXP class, null if none
 
     LXPMetadata() {
         super();
@@ -49,6 +51,7 @@ public class LXPMetadata extends PersistentMetaData {
     private void initialiseMaps(final Class c) {
 
         final Field[] fields = c.getDeclaredFields();
+        final Map<Integer, LXPBaseType> scalar_types = new HashMap<>();
         int next_slot = 0;
 
         for (final Field field : fields) {
@@ -67,12 +70,17 @@ public class LXPMetadata extends PersistentMetaData {
                     field_name_to_slot.put(field_name, slot_value);
                     slot_to_field_name.put(slot_value, field_name);
 
+                    if (field.isAnnotationPresent(LXP_SCALAR.class)) {
+                        scalar_types.put(slot_value, field.getAnnotation(LXP_SCALAR.class).type());
+                    }
+
 
                 } catch (final IllegalAccessException e) {
                     throw new RuntimeException("Illegal access for label: " + field.getName());
                 }
             }
         }
+        primitive_slots = PrimitiveSlots.of(scalar_types, next_slot);
     }
 
     private void checkDuplicates(final String field_name, final int slot_value) {
@@ -134,6 +142,13 @@ public class LXPMetadata extends PersistentMetaData {
         return result;
     }
 
+    /**
+     * @return the layout of the slots whose values are held unboxed, or null if there are none
+     */
+    PrimitiveSlots getPrimitiveSlots() {
+        return primitive_slots;
+    }
+
     public Set<String> getFields() {
         return field_name_to_slot.keySet();
     }
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A cache of the serialized state of records, held outside the Java heap in direct buffers, so that a large number
+ * of records can be kept in memory without enlarging the heap or lengthening garbage collection. A record found here
+ * need only be decoded, not read from its file.
+ * <p>
+ * The memory is divided into slabs, allocated when first needed, which are filled in turn. When the last slab is full
+ * the oldest is emptied and reused, evicting the records it holds, so records are evicted in the order in which they
+ * were cached. Space held by a record that is invalidated is reclaimed when its slab is reused.
+ * A record larger than a slab is not cached.
+ * <p>
+ * Each record is preceded in its slab by its oid and length, so the records in a slab can be found when it is reused.
+ * The location of each record is found through an open addressing table of oids and locations, which is also held
+ * outside the heap.
+ * <p>
+ * A record read from storage while it is being changed must not be cached after the change has invalidated it. Each
+ * invalidation therefore advances a generation number, and a record read is only cached if the generation of its oid
+ * has not changed since the read began. Generations are kept for groups of oids rather than for each one, so a record
+ * is occasionally not cached when another in its group has been invalidated.
+ */
+final class OffHeapRecordCache {
+
+    private static final int MAXIMUM_SLAB_SIZE = 1 << 20;
+    private static final int MINIMUM_SLAB_COUNT = 4;
+    private static final int RECORD_HEADER_SIZE = 8 + 4;    // oid, length
+
+    // locations are packed as slab:16 offset:24 length:24, where the offset is that of the record's header
+    private static final int OFFSET_SHIFT = 24;
+    private static final int SLAB_SHIFT = 48;
+    private static final long FIELD_MASK = (1L << 24) - 1;
+    private static final long ABSENT = -1;                  // not a location, since slabs are numbered from 0
+
+    private static final int TABLE_ENTRY_SIZE = 8 + 8;      // oid, location; an oid of 0 marks an empty entry
+    private static final int INITIAL_TABLE_ENTRIES = 1024;
+    private static final int GENERATION_GROUPS = 1024;
+
+    private final long capacity;
+    private final int slab_size;
+    private final ByteBuffer[] slabs;
+    private final int[] slab_fills;      // the number of bytes used in each slab other than the current one
+
+    private ByteBuffer table = newTable(INITIAL_TABLE_ENTRIES);
+    private int table_mask = INITIAL_TABLE_ENTRIES - 1;
+    private int table_size = 0;          // the number of oids in the table
+    private long zero_location = ABSENT; // the location of the record with oid 0, which cannot be held in the table
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_GROUPS); // advanced with the write lock held
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int current_slab = 0;
+    private int position = 0;           // the next free byte in the current slab
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity the number of bytes of memory to be used, rounded down to a whole number of slabs
+     */
+    OffHeapRecordCache(final long capacity) {
+
+        slab_size = (int) Math.max(1, Math.min(MAXIMUM_SLAB_SIZE, capacity / MINIMUM_SLAB_COUNT));
+        final int slab_count = (int) Math.min(1 << 16, Math.max(1, capacity / slab_size));
+
+        this.capacity = (long) slab_count * slab_size;
+        slabs = new ByteBuffer[slab_count];
+        slab_fills = new int[slab_count];
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param oid the oid of a record
+     * @return a copy of the serialized state of the record, or null if it is not cached
+     */
+    byte[] get(final long oid) {
+
+        lock.readLock().lock();
+        try {
+            final long location = find(oid);
+            if (location == ABSENT) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+
+            final byte[] record = new byte[(int) (location & FIELD_MASK)];
+            final ByteBuffer slab = slabs[(int) (location >>> SLAB_SHIFT)].duplicate();
+            slab.position((int) ((location >>> OFFSET_SHIFT) & FIELD_MASK) + RECORD_HEADER_SIZE);
+            slab.get(record);
+            return record;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param oid the oid of a record
+     * @return the generation of the oid, to be passed to {@link #put} with the state of the record read after this call
+     */
+    long generation(final long oid) {
+
+        return generations.get(slot(oid, GENERATION_GROUPS - 1));
+    }
+
+    /**
+     * Caches the serialized state of a record, replacing any state already cached, unless the record has been
+     * invalidated since it was read.
+     *
+     * @param oid        the oid of the record
+     * @param record     the serialized state of the record
+     * @param generation the generation of the oid before the record was read
+     */
+    void put(final long oid, final byte[] record, final long generation) {
+
+        if (RECORD_HEADER_SIZE + record.length > slab_size) {
+            invalidate(oid);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (generation(oid) != generation) {
+                return; // the record read may be out of date
+            }
+            if (position + RECORD_HEADER_SIZE + record.length > slab_size) {
+                nextSlab();
+            }
+            if (slabs[current_slab] == null) {
+                slabs[current_slab] = ByteBuffer.allocateDirect(slab_size);
+            }
+
+            final ByteBuffer slab = slabs[current_slab].duplicate();
+            slab.position(position);
+            slab.putLong(oid);
+            slab.putInt(record.length);
+            slab.put(record);
+
+            store(oid, location(current_slab, position, record.length));
+            position += RECORD_HEADER_SIZE + record.length;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void invalidate(final long oid) {
+
+        lock.writeLock().lock();
+        try {
+            generations.incrementAndGet(slot(oid, GENERATION_GROUPS - 1));
+            remove(oid);
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void invalidateAll() {
+
+        lock.writeLock().lock();
+        try {
+            for (int group = 0; group < GENERATION_GROUPS; group++) {
+                generations.incrementAndGet(group);
+            }
+            table = newTable(INITIAL_TABLE_ENTRIES);
+            table_mask = INITIAL_TABLE_ENTRIES - 1;
+            table_size = 0;
+            zero_location = ABSENT;
+            Arrays.fill(slab_fills, 0);
+            current_slab = 0;
+            position = 0;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+
+        lock.readLock().lock();
+        try {
+            return table_size + (zero_location == ABSENT ? 0 : 1);
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    //******** Private methods *********
+
+    /*
+     * Moves to the next slab, evicting the records it holds. Called with the write lock held.
+     */
+    private void nextSlab() {
+
+        slab_fills[current_slab] = position;
+        current_slab = (current_slab + 1) % slabs.length;
+        position = 0;
+
+        final ByteBuffer slab = slabs[current_slab];
+        for (int offset = 0; offset < slab_fills[current_slab]; ) {
+
+            final long oid = slab.getLong(offset);
+            final int length = slab.getInt(offset + 8);
+            if (find(oid) == location(current_slab, offset, length)) { // not since invalidated or cached again elsewhere
+                remove(oid);
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        slab_fills[current_slab] = 0;
+    }
+
+    private static long location(final int slab, final int offset, final int length) {
+
+        return ((long) slab << SLAB_SHIFT) | ((long) offset << OFFSET_SHIFT) | length;
+    }
+
+    /*
+     * The location of the record with an oid, or ABSENT.
+     */
+    private long find(final long oid) {
+
+        if (oid == 0) {
+            return zero_location;
+        }
+        for (int entry = slot(oid, table_mask); ; entry = (entry + 1) & table_mask) {
+
+            final long key = table.getLong(entry * TABLE_ENTRY_SIZE);
+            if (key == oid) {
+                return table.getLong(entry * TABLE_ENTRY_SIZE + 8);
+            }
+            if (key == 0) {
+                return ABSENT;
+            }
+        }
+    }
+
+    private void store(final long oid, final long location) {
+
+        if (oid == 0) {
+            zero_location = location;
+            return;
+        }
+        if ((table_size + 1) * 4L > (table_mask + 1) * 3L) {
+            grow();
+        }
+        for (int entry = slot(oid, table_mask); ; entry = (entry + 1) & table_mask) {
+
+            final long key = table.getLong(entry * TABLE_ENTRY_SIZE);
+            if (key == 0) {
+                table.putLong(entry * TABLE_ENTRY_SIZE, oid);
+                table_size++;
+            }
+            if (key == 0 || key == oid) {
+                table.putLong(entry * TABLE_ENTRY_SIZE + 8, location);
+                return;
+            }
+        }
+    }
+
+    /*
+     * Removes an oid from the table, moving back any later entries in its run that could then no longer be found.
+     */
+    private void remove(final long oid) {
+
+        if (oid == 0) {
+            zero_location = ABSENT;
+            return;
+        }
+
+        int hole = slot(oid, table_mask);
+        while (true) {
+            final long key = table.getLong(hole * TABLE_ENTRY_SIZE);
+            if (key == 0) {
+                return;
+            }
+            if (key == oid) {
+                break;
+            }
+            hole = (hole + 1) & table_mask;
+        }
+
+        for (int entry = (hole + 1) & table_mask; ; entry = (entry + 1) & table_mask) {
+
+            final long key = table.getLong(entry * TABLE_ENTRY_SIZE);
+            if (key == 0) {
+                break;
+            }
+            final int home = slot(key, table_mask);
+            if (((entry - home) & table_mask) >= ((entry - hole) & table_mask)) {
+                table.putLong(hole * TABLE_ENTRY_SIZE, key);
+                table.putLong(hole * TABLE_ENTRY_SIZE + 8, table.getLong(entry * TABLE_ENTRY_SIZE + 8));
+                hole = entry;
+            }
+        }
+        table.putLong(hole * TABLE_ENTRY_SIZE, 0);
+        table_size--;
+    }
+
+    private void grow() {
+
+        final ByteBuffer old_table = table;
+        final int old_entries = table_mask + 1;
+
+        table = newTable(old_entries * 2);
+        table_mask = old_entries * 2 - 1;
+        table_size = 0;
+
+        for (int entry = 0; entry < old_entries; entry++) {
+            final long key = old_table.getLong(entry * TABLE_ENTRY_SIZE);
+            if (key != 0) {
+                store(key, old_table.getLong(entry * TABLE_ENTRY_SIZE + 8));
+            }
+        }
+    }
+
+    private static ByteBuffer newTable(final int entries) {
+        return ByteBuffer.allocateDirect(entries * TABLE_ENTRY_SIZE); // zeroed, so every entry is empty
+    }
+
+    /*
+     * The oids are allocated from a random source but are mixed anyway so that sequential oids do not cluster.
+     */
+    private static int slot(final long oid, final int mask) {
+
+        long h = oid;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
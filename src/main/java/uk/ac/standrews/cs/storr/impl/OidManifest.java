@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent record of the oids held in a directory backed bucket, so that the oids and size of the bucket
+ * can be found without listing its directory.
+ * <p>
+ * The manifest consists of a snapshot file, holding a count followed by the oids, and an append-only log of
+ * additions and removals made since the snapshot was written. Readers replay any new log entries each time the
+ * manifest is consulted. When the log becomes long it is folded into a new snapshot and replaced by an empty log.
+ * Replaying a log over a snapshot that already includes its entries gives the same result, so a crash during
+ * compaction leaves the manifest consistent. The snapshot and log are only replaced, and only read together, with
+ * the log locked, so a reader never combines the snapshot and log of different compactions.
+ * <p>
+ * The state of the manifest is guarded by the lock shared by the manifests of the bucket in this JVM.
+ * <p>
+ * A bucket without a manifest, such as one created by an earlier version, has one built from a directory scan
+ * on first use; deleting the manifest files therefore forces it to be rebuilt.
+ */
+class OidManifest {
+
+    private static final String LOG_FILE_NAME = "OIDS";
+    private static final String SNAPSHOT_FILE_NAME = "OIDSNAPSHOT";
+
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 0;
+    private static final int LOG_ENTRY_SIZE = 1 + 8;
+    private static final int MIN_COMPACTION_SIZE = 4096; // number of log entries below which the log is never compacted
+
+    private static final Map<Path, Object> locks = new ConcurrentHashMap<>(); // one per manifest per JVM, since file locks are held per JVM
+
+    private final Path log_path;
+    private final Path snapshot_path;
+    private final Object lock;
+
+    private final Set<Long> oids = new LinkedHashSet<>();    // guarded by lock, as are the fields below
+    private List<Long> cached_oids = null;
+    private long log_position = 0;       // the length of the log that has been replayed into oids.
+    private Object log_identity = null;  // identifies the log file that has been replayed, to detect its replacement.
+
+    OidManifest(final DirectoryBackedBucket bucket) throws IOException {
+
+        final Path meta_path = bucket.dirPath().resolve(DirectoryBackedBucket.META_BUCKET_NAME);
+        log_path = meta_path.resolve(LOG_FILE_NAME);
+        snapshot_path = meta_path.resolve(SNAPSHOT_FILE_NAME);
+        lock = locks.computeIfAbsent(log_path.toAbsolutePath().normalize(), k -> new Object());
+
+        synchronized (lock) {
+            try (final FileChannel channel = FileChannel.open(log_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 final FileLock ignored = channel.lock()) {
+
+                if (!Files.exists(snapshot_path)) {
+                    final List<Long> scanned = new ArrayList<>();
+                    bucket.getLayout().addOids(bucket.dirPath().toFile(), scanned);
+                    writeSnapshot(scanned);
+                    channel.truncate(0);
+                }
+            }
+            reload(false);
+        }
+    }
+
+    /**
+     * @return the oids in the manifest, in the order in which they were added
+     */
+    List<Long> getOids() throws IOException {
+
+        synchronized (lock) {
+            refresh(false);
+            if (cached_oids == null) {
+                cached_oids = new ArrayList<>(oids);
+            }
+            return cached_oids;
+        }
+    }
+
+    int size() throws IOException {
+
+        synchronized (lock) {
+            refresh(false);
+            return oids.size();
+        }
+    }
+
+    /**
+     * @param candidates some oids
+     * @return those of the given oids that are in the manifest
+     */
+    List<Long> present(final Collection<Long> candidates) throws IOException {
+
+        synchronized (lock) {
+            refresh(false);
+            final List<Long> result = new ArrayList<>();
+            for (final Long oid : candidates) {
+                if (oids.contains(oid)) {
+                    result.add(oid);
+                }
+            }
+            return result;
+        }
+    }
+
+    void add(final long oid) throws IOException {
+        append(ADDED, Collections.singletonList(oid));
+    }
+
+    void addAll(final Collection<Long> added) throws IOException {
+        append(ADDED, added);
+    }
+
+    void remove(final long oid) throws IOException {
+        append(REMOVED, Collections.singletonList(oid));
+    }
+
+    //******** Private methods *********
+
+    private void append(final byte operation, final Collection<Long> changed) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(LOG_ENTRY_SIZE * changed.size());
+        for (final long oid : changed) {
+            buffer.put(operation);
+            buffer.putLong(oid);
+        }
+        buffer.flip();
+
+        // The log is only replaced while it is locked. If another process compacts it between it being opened and
+        // locked here, the entries would be appended to the replaced log, so the log is opened again.
+        synchronized (lock) {
+            while (true) {
+                final Object opened_identity = currentLogIdentity();
+                try (final FileChannel channel = FileChannel.open(log_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     final FileLock ignored = channel.lock()) {
+
+                    if (opened_identity == null || !opened_identity.equals(currentLogIdentity())) {
+                        continue;
+                    }
+
+                    long position = channel.size();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+
+                    refresh(true);
+                    final long log_entries = position / LOG_ENTRY_SIZE;
+                    if (log_entries > MIN_COMPACTION_SIZE && log_entries > oids.size()) {
+                        compact();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * The identity of the file now at the log path, or null if there is none.
+     */
+    private Object currentLogIdentity() throws IOException {
+
+        try {
+            return identity(Files.readAttributes(log_path, BasicFileAttributes.class));
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Called with the log locked.
+     */
+    private void compact() throws IOException {
+
+        writeSnapshot(oids);
+
+        final Path temp_path = log_path.resolveSibling(LOG_FILE_NAME + ".tmp");
+        Files.write(temp_path, new byte[0]);
+        Files.move(temp_path, log_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log_position = 0;
+        log_identity = identity(Files.readAttributes(log_path, BasicFileAttributes.class));
+    }
+
+    private void writeSnapshot(final Collection<Long> snapshot) throws IOException {
+
+        final Path temp_path = snapshot_path.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp_path)))) {
+            out.writeInt(snapshot.size());
+            for (final long oid : snapshot) {
+                out.writeLong(oid);
+            }
+        }
+        Files.move(temp_path, snapshot_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Reads the snapshot and replays the log from the start, with the log locked so that another process cannot
+     * replace them in between. Called with the lock held, and with the log locked if locked is true.
+     */
+    private void reload(final boolean locked) throws IOException {
+
+        if (locked) {
+            readSnapshotAndLog();
+            return;
+        }
+        while (true) {
+            final Object opened_identity = currentLogIdentity();
+            try (final FileChannel channel = FileChannel.open(log_path, StandardOpenOption.READ);
+                 final FileLock ignored = channel.lock(0, Long.MAX_VALUE, true)) {
+
+                if (opened_identity == null || !opened_identity.equals(currentLogIdentity())) {
+                    continue; // replaced between being opened and locked
+                }
+                readSnapshotAndLog();
+                return;
+            }
+        }
+    }
+
+    private void readSnapshotAndLog() throws IOException {
+
+        oids.clear();
+        cached_oids = null;
+        log_position = 0;
+        log_identity = null;
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot_path)))) {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                oids.add(in.readLong());
+            }
+        }
+        refresh(true);
+    }
+
+    /**
+     * Replays any entries appended to the log since it was last read, or reloads the manifest if the log has been replaced.
+     * Called with the lock held, and with the log locked if locked is true.
+     */
+    private void refresh(final boolean locked) throws IOException {
+
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(log_path, BasicFileAttributes.class);
+        } catch (final NoSuchFileException e) { // the bucket has been deleted
+            oids.clear();
+            cached_oids = null;
+            return;
+        }
+
+        final Object identity = identity(attributes);
+        if (log_identity != null && (!log_identity.equals(identity) || attributes.size() < log_position)) {
+            reload(locked);
+            return;
+        }
+        log_identity = identity;
+
+        final long available = (attributes.size() - log_position) / LOG_ENTRY_SIZE * LOG_ENTRY_SIZE;
+        if (available == 0) {
+            return;
+        }
+
+        try (final FileChannel channel = FileChannel.open(log_path, StandardOpenOption.READ)) {
+
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(available, LOG_ENTRY_SIZE * 4096));
+            for (long read = 0; read < available; ) {
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), available - read));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, log_position + read + buffer.position()) < 0) {
+                        throw new EOFException("oid manifest truncated: " + log_path);
+                    }
+                }
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    final byte operation = buffer.get();
+                    final long oid = buffer.getLong();
+                    if (operation == ADDED) {
+                        oids.add(oid);
+                    } else {
+                        oids.remove(oid);
+                    }
+                }
+                read += buffer.limit();
+            }
+        }
+        log_position += available;
+        cached_oids = null;
+    }
+
+    private static Object identity(final BasicFileAttributes attributes) {
+
+        final Object key = attributes.fileKey();
+        return key != null ? key : attributes.creationTime();
+    }
+}
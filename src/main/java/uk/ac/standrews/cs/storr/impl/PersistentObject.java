@@ -27,6 +27,8 @@ import static uk.ac.standrews.cs.storr.impl.Store.getNextFreePID;
 
 public abstract class PersistentObject {
 
+    static final int DEFAULT_ESTIMATED_SIZE = 256;
+
     protected long $$$$id$$$$id$$$$;
     protected IBucket $$$bucket$$$bucket$$$ = null;
 
@@ -50,6 +52,26 @@ public abstract class PersistentObject {
 
     public abstract IStoreReference getThisRef() throws PersistentObjectException;
 
+    /**
+     * @return a rough estimate of the number of bytes of heap occupied by this object, by which caches may be bounded
+     */
+    int estimatedSize() {
+        return DEFAULT_ESTIMATED_SIZE;
+    }
+
+    /**
+     * @param value a string read from the serialized state of this object
+     * @return the instance of the string pooled by the store holding this object, or the string itself if there is none
+     */
+    String canonical(final String value) {
+
+        final IBucket bucket = $$$bucket$$$bucket$$$;
+        if (bucket == null || bucket.getRepository() == null || bucket.getRepository().getStore() == null) {
+            return value;
+        }
+        return bucket.getRepository().getStore().getStringDictionary().canonical(value);
+    }
+
     /**
      * Writes the state of the LXP to a Bucket.
      *
@@ -62,10 +84,28 @@ public abstract class PersistentObject {
         serializeToJSON(writer);
     }
 
+    /**
+     * Writes the state of the record to a Bucket in the binary encoding.
+     *
+     * @param writer     the writer to which the state is written.
+     * @param bucket     the bucket to which the record is written.
+     * @param with_names true if the names of the fields are to be written, false if the record will be read with the same metadata.
+     * @throws PersistentObjectException if the record refers to a record that has not been made persistent.
+     */
+    void serializeToBinary(final BinaryRecordWriter writer, final IBucket bucket, final boolean with_names) throws PersistentObjectException {
+
+        this.$$$bucket$$$bucket$$$ = bucket;
+        serializeToBinary(writer, with_names);
+    }
+
     abstract void readJSON(final JSONReader reader, final boolean isObject) throws JSONException, PersistentObjectException;
 
     abstract void serializeToJSON(final JSONWriter writer) throws JSONException;
 
+    abstract void readBinary(final BinaryRecordReader reader) throws PersistentObjectException;
+
+    abstract void serializeToBinary(final BinaryRecordWriter writer, final boolean with_names) throws PersistentObjectException;
+
     /**
      * @return the metadata associated with the class extending LXP base.
      * This may be static or dynamically created.
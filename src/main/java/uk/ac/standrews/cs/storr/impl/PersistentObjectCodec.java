@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.apache.commons.lang.reflect.FieldUtils;
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.utilities.JSONReader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates instances of a class of persistent objects and accesses the fields of JPOs.
+ * <p>
+ * This class does so through method handles, looked up once per class: handles onto the constructors are held here,
+ * and handles onto the fields of JPOs in their {@link JPOField}s. This is used for classes for which no code was
+ * generated, such as JPO classes loaded dynamically. The annotation processor
+ * {@link uk.ac.standrews.cs.storr.processor.CodecProcessor} generates a subclass for each StaticLXP and JPO class
+ * compiled with it, named by appending {@value #GENERATED_CODEC_SUFFIX} to the name of the class, which constructs
+ * instances and accesses fields directly wherever they are accessible, and defers to this class otherwise.
+ * The generated codec is used when present.
+ *
+ * @param <T> the class of persistent objects
+ */
+public class PersistentObjectCodec<T extends PersistentObject> {
+
+    public static final String GENERATED_CODEC_SUFFIX = "_StorrCodec";
+
+    private static final Map<Class<?>, PersistentObjectCodec<?>> codecs = new ConcurrentHashMap<>();
+
+    private final Class<T> record_class;
+
+    // Handles onto the constructors adapted to return PersistentObject, looked up on first use.
+    private volatile MethodHandle no_arg_constructor = null;
+    private volatile MethodHandle json_constructor = null;
+
+    private static final MethodType NO_ARG_CONSTRUCTOR_TYPE = MethodType.methodType(PersistentObject.class);
+    private static final MethodType JSON_CONSTRUCTOR_TYPE = MethodType.methodType(PersistentObject.class, long.class, JSONReader.class, IBucket.class);
+
+    protected PersistentObjectCodec(final Class<T> record_class) {
+        this.record_class = record_class;
+    }
+
+    /**
+     * @param record_class a class of persistent objects
+     * @param <T>          the class of persistent objects
+     * @return the generated codec for the class if there is one, otherwise a reflective codec
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends PersistentObject> PersistentObjectCodec<T> forClass(final Class<T> record_class) {
+
+        return (PersistentObjectCodec<T>) codecs.computeIfAbsent(record_class, PersistentObjectCodec::create);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PersistentObjectCodec<?> create(final Class<?> record_class) {
+
+        try {
+            final Class<?> generated = Class.forName(record_class.getName() + GENERATED_CODEC_SUFFIX, true, record_class.getClassLoader());
+            return (PersistentObjectCodec<?>) generated.getConstructor().newInstance();
+
+        } catch (final ClassNotFoundException e) {
+            // no codec was generated for the class
+
+        } catch (final ReflectiveOperationException | ClassCastException e) {
+            // the generated codec is not usable, perhaps having been generated for an earlier version of the class
+        }
+        return new PersistentObjectCodec(record_class);
+    }
+
+    /**
+     * @return true if this codec was generated for its class
+     */
+    public boolean isGenerated() {
+        return false;
+    }
+
+    /**
+     * @return a new instance created with the no argument constructor of the class
+     * @throws PersistentObjectException if the instance cannot be created
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance() throws PersistentObjectException {
+
+        try {
+            return (T) (PersistentObject) noArgConstructor().invokeExact();
+
+        } catch (final PersistentObjectException e) {
+            throw e;
+
+        } catch (final Throwable e) {
+            throw new PersistentObjectException("Error in reflective call of constructor in class " + record_class.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * @param id     the id of the instance
+     * @param reader a reader over the state of the instance in JSON
+     * @param bucket the bucket from which the instance is read
+     * @return a new instance created with the (long, JSONReader, IBucket) constructor of the class
+     * @throws PersistentObjectException if the instance cannot be created
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance(final long id, final JSONReader reader, final IBucket bucket) throws PersistentObjectException {
+
+        try {
+            return (T) (PersistentObject) jsonConstructor().invokeExact(id, reader, bucket);
+
+        } catch (final PersistentObjectException e) {
+            throw e;
+
+        } catch (final Throwable e) {
+            throw new PersistentObjectException("Error in reflective call of constructor in class " + record_class.getName() + ": " + e);
+        }
+    }
+
+    /**
+     * @param record a JPO
+     * @param name   the name of one of its fields
+     * @return the value of the field
+     * @throws PersistentObjectException if the field cannot be read
+     */
+    public Object getField(final T record, final String name) throws PersistentObjectException {
+
+        final JPOField field = jpoField(record, name);
+        if (field != null) {
+            return field.get(record);
+        }
+
+        try {
+            return FieldUtils.readField(record, name, true);
+
+        } catch (final IllegalAccessException | IllegalArgumentException e) {
+            throw new PersistentObjectException("Cannot access field: " + name + "," + e.getMessage());
+        }
+    }
+
+    /**
+     * @param record a JPO
+     * @param name   the name of one of its fields
+     * @param value  the value to be assigned to the field
+     * @throws PersistentObjectException if the field cannot be written
+     */
+    public void setField(final T record, final String name, final Object value) throws PersistentObjectException {
+
+        final JPOField field = jpoField(record, name);
+        if (field != null) {
+            field.set(record, value);
+            return;
+        }
+
+        try {
+            FieldUtils.writeField(record, name, value, true);
+
+        } catch (final IllegalAccessException | IllegalArgumentException e) {
+            throw new PersistentObjectException("Cannot access field: " + name + "," + e.getMessage());
+        }
+    }
+
+    /*
+     * The description of the named field if it is a JPO field accessible through method handles, otherwise null.
+     */
+    private static JPOField jpoField(final PersistentObject record, final String name) {
+
+        if (record instanceof JPO) {
+            final JPOField field = ((JPO) record).getMetaData().get(name);
+            if (field != null && field.isAccessible()) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private MethodHandle noArgConstructor() throws PersistentObjectException {
+
+        MethodHandle constructor = no_arg_constructor;
+        if (constructor == null) {
+            try {
+                constructor = unreflect(record_class.getDeclaredConstructor(), NO_ARG_CONSTRUCTOR_TYPE);
+                no_arg_constructor = constructor;
+
+            } catch (final NoSuchMethodException | IllegalAccessException | SecurityException e) {
+                throw new PersistentObjectException("Error in reflective call of constructor in class " + record_class.getName() + ": " + e);
+            }
+        }
+        return constructor;
+    }
+
+    private MethodHandle jsonConstructor() throws PersistentObjectException {
+
+        MethodHandle constructor = json_constructor;
+        if (constructor == null) {
+            try {
+                constructor = unreflect(record_class.getConstructor(long.class, JSONReader.class, IBucket.class), JSON_CONSTRUCTOR_TYPE);
+                json_constructor = constructor;
+
+            } catch (final NoSuchMethodException e) {
+                throw new PersistentObjectException("Error in reflective constructor call - class " + record_class.getName() + " must implement constructors with the following signature: Constructor(long persistent_object_id, JSONReader reader, IBucket bucket )");
+
+            } catch (final IllegalAccessException | SecurityException e) {
+                throw new PersistentObjectException("Error in reflective call of constructor in class " + record_class.getName() + ": " + e);
+            }
+        }
+        return constructor;
+    }
+
+    private static MethodHandle unreflect(final Constructor<?> constructor, final MethodType type) throws IllegalAccessException {
+
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor).asType(type);
+    }
+}
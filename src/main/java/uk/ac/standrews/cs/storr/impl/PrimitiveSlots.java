@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.types.LXPBaseType;
+
+import java.util.Map;
+
+/**
+ * The layout of the primitive slots of a StaticLXP class: those annotated as INT, LONG, BOOLEAN or DOUBLE scalars.
+ * The values of such slots are held unboxed, INT, LONG and BOOLEAN values in a long[] and DOUBLE values in a double[].
+ * The long[] is followed by a bit per primitive slot recording whether the slot has a value, and then by a bit per
+ * primitive slot recording whether a LONG slot holds an int, so that the value is returned as the Integer stored.
+ */
+final class PrimitiveSlots {
+
+    private static final int NONE = -1;
+
+    private final LXPBaseType[] types;      // slot -> type of the slot if it is primitive, otherwise null
+    private final int[] indices;            // slot -> index of its value in the long[] or double[]
+    private final int[] presence_bits;      // slot -> number of the bit recording whether it has a value
+    private final int long_count;
+    private final int double_count;
+    private final int bit_words;            // the number of longs holding each set of bits
+
+    private PrimitiveSlots(final Map<Integer, LXPBaseType> slot_types, final int slot_count) {
+
+        types = new LXPBaseType[slot_count];
+        indices = new int[slot_count];
+        presence_bits = new int[slot_count];
+
+        int longs = 0;
+        int doubles = 0;
+        int bits = 0;
+        for (int slot = 0; slot < slot_count; slot++) {
+
+            final LXPBaseType type = slot_types.get(slot);
+            if (isPrimitive(type)) {
+                types[slot] = type;
+                indices[slot] = type == LXPBaseType.DOUBLE ? doubles++ : longs++;
+                presence_bits[slot] = bits++;
+            } else {
+                indices[slot] = NONE;
+                presence_bits[slot] = NONE;
+            }
+        }
+        long_count = longs;
+        double_count = doubles;
+        bit_words = (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * @param slot_types the types of the scalar slots of a class
+     * @param slot_count the number of slots of the class
+     * @return the layout of the primitive slots, or null if there are none
+     */
+    static PrimitiveSlots of(final Map<Integer, LXPBaseType> slot_types, final int slot_count) {
+
+        for (final LXPBaseType type : slot_types.values()) {
+            if (isPrimitive(type)) {
+                return new PrimitiveSlots(slot_types, slot_count);
+            }
+        }
+        return null;
+    }
+
+    long[] newLongs() {
+        return new long[long_count + 2 * bit_words];
+    }
+
+    double[] newDoubles() {
+        return double_count == 0 ? null : new double[double_count];
+    }
+
+    /**
+     * @param slot a slot number
+     * @return the type of the slot if it is primitive, otherwise null
+     */
+    LXPBaseType type(final int slot) {
+        return slot >= 0 && slot < types.length ? types[slot] : null;
+    }
+
+    int index(final int slot) {
+        return indices[slot];
+    }
+
+    boolean isPresent(final long[] longs, final int slot) {
+        return isSet(longs, long_count, slot);
+    }
+
+    void setPresent(final long[] longs, final int slot, final boolean present) {
+        set(longs, long_count, slot, present);
+    }
+
+    /**
+     * @param longs the unboxed values of a record
+     * @param slot a primitive slot number
+     * @return the type of the value held in the slot: INT for an int held in a LONG slot, otherwise the type of the slot
+     */
+    LXPBaseType storedType(final long[] longs, final int slot) {
+        return types[slot] == LXPBaseType.LONG && isSet(longs, long_count + bit_words, slot) ? LXPBaseType.INT : types[slot];
+    }
+
+    /**
+     * Records the type of the value held in the slot, which is either the type of the slot or INT for a LONG slot.
+     */
+    void setStoredType(final long[] longs, final int slot, final LXPBaseType stored_type) {
+        set(longs, long_count + bit_words, slot, stored_type != types[slot]);
+    }
+
+    private boolean isSet(final long[] longs, final int offset, final int slot) {
+
+        final int bit = presence_bits[slot];
+        return (longs[offset + bit / Long.SIZE] & (1L << bit)) != 0;
+    }
+
+    private void set(final long[] longs, final int offset, final int slot, final boolean value) {
+
+        final int bit = presence_bits[slot];
+        if (value) {
+            longs[offset + bit / Long.SIZE] |= 1L << bit;
+        } else {
+            longs[offset + bit / Long.SIZE] &= ~(1L << bit);
+        }
+    }
+
+    private static boolean isPrimitive(final LXPBaseType type) {
+        return type == LXPBaseType.INT || type == LXPBaseType.LONG || type == LXPBaseType.BOOLEAN || type == LXPBaseType.DOUBLE;
+    }
+}
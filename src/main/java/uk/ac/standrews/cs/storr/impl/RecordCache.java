@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The cache of records loaded by a bucket.
+ * <p>
+ * Records are always held in a weak tier, so that a record still referenced elsewhere is found rather than loaded
+ * again, giving one copy of each record in memory. Under {@link CachePolicy#FREQUENCY} the records used most
+ * frequently and recently are also held in a strong tier, which keeps them when they are no longer referenced.
+ * The strong tier is bounded either by the number of records or, if a byte budget is given, by their estimated size.
+ */
+final class RecordCache {
+
+    private final CachePolicy policy;
+    private final int maximum_size;
+    private volatile long byte_budget;
+
+    private final Cache<Long, PersistentObject> weak;
+    private final WindowTinyLfuCache<PersistentObject> strong;  // null under the WEAK policy
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param policy       the policy of the cache
+     * @param maximum_size the maximum number of records held
+     * @param byte_budget  the maximum estimated size of the records held strongly, or 0 if bounded by number of records
+     */
+    RecordCache(final CachePolicy policy, final int maximum_size, final long byte_budget) {
+
+        this.policy = policy;
+        this.maximum_size = maximum_size;
+        this.byte_budget = byte_budget;
+
+        weak = CacheBuilder.newBuilder().maximumSize(maximum_size).weakValues().build();
+        strong = policy == CachePolicy.FREQUENCY ?
+                byte_budget > 0 ?
+                        new WindowTinyLfuCache<>(byte_budget, PersistentObject::estimatedSize) :
+                        new WindowTinyLfuCache<>(maximum_size, record -> 1) :
+                null;
+    }
+
+    CachePolicy getPolicy() {
+        return policy;
+    }
+
+    int getMaximumSize() {
+        return maximum_size;
+    }
+
+    long getByteBudget() {
+        return byte_budget;
+    }
+
+    /**
+     * Changes the byte budget of a cache whose strong tier is bounded by a byte budget, evicting records if it is reduced.
+     *
+     * @param byte_budget the new budget
+     */
+    void setByteBudget(final long byte_budget) {
+
+        if (strong == null || this.byte_budget == 0 || byte_budget <= 0) {
+            throw new IllegalStateException("Cache is not bounded by a byte budget");
+        }
+        this.byte_budget = byte_budget;
+        strong.setMaximumWeight(byte_budget);
+    }
+
+    /**
+     * @return the estimated size in bytes of the records held strongly, or 0 if the strong tier is not bounded by size
+     */
+    long cachedBytes() {
+        return strong != null && byte_budget > 0 ? strong.weight() : 0;
+    }
+
+    long lookupCount() {
+        return lookups.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @param id     the id of the required record
+     * @param loader loads the record if it is not held
+     * @return the record
+     * @throws ExecutionException if the record is not held and cannot be loaded
+     */
+    PersistentObject get(final long id, final Callable<PersistentObject> loader) throws ExecutionException {
+
+        lookups.increment();
+        if (strong != null) {
+            final PersistentObject record = strong.get(id);
+            if (record != null) {
+                return record;
+            }
+        }
+        final PersistentObject record = weak.get(id, () -> {
+            misses.increment();
+            return loader.call();
+        });
+        if (strong != null) {
+            strong.put(id, record);
+        }
+        return record;
+    }
+
+    /**
+     * @param id the id of a record
+     * @return the record if it is held, otherwise null
+     */
+    PersistentObject getIfPresent(final long id) {
+
+        if (strong != null) {
+            final PersistentObject record = strong.peek(id);
+            if (record != null) {
+                return record;
+            }
+        }
+        return weak.getIfPresent(id);
+    }
+
+    void put(final long id, final PersistentObject record) {
+
+        weak.put(id, record);
+        if (strong != null) {
+            strong.put(id, record);
+        }
+    }
+
+    void putAll(final Map<Long, PersistentObject> records) {
+
+        for (final Map.Entry<Long, PersistentObject> entry : records.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void invalidate(final long id) {
+
+        weak.invalidate(id);
+        if (strong != null) {
+            strong.invalidate(id);
+        }
+    }
+
+    /**
+     * @return the number of records held
+     */
+    long size() {
+        return weak.size();
+    }
+
+    /**
+     * @return a copy of the records held
+     */
+    Map<Long, PersistentObject> asMap() {
+
+        final Map<Long, PersistentObject> records = strong != null ? strong.asMap() : new HashMap<>();
+        records.putAll(weak.asMap());
+        return records;
+    }
+}
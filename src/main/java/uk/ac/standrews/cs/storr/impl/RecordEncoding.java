@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.utilities.FileManipulation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The encoding in which a bucket writes its records.
+ * The encoding is recorded in the META directory of the bucket; buckets with no recorded encoding are JSON.
+ * Records are read in whichever encoding they were written, so a bucket may safely hold a mixture, for instance while it is being converted.
+ * JSON remains the export format: it is used by toString and serializeToJSON regardless of the encoding of the bucket.
+ */
+public enum RecordEncoding {
+
+    /**
+     * Records are written as JSON objects keyed by field name.
+     */
+    JSON,
+
+    /**
+     * Records are written in the compact binary form defined by {@link BinaryRecordWriter}:
+     * fields in slot order, each prefixed by its length, with values in fixed width or length prefixed form.
+     */
+    BINARY;
+
+    private static final String ENCODING_FILE_NAME = "ENCODING";
+
+    /**
+     * @param record the serialized state of a record
+     * @return the encoding in which the record was written
+     */
+    static RecordEncoding of(final byte[] record) {
+
+        return BinaryRecordWriter.isBinary(record) ? BINARY : JSON;
+    }
+
+    /**
+     * @param bucket_directory the directory of the bucket
+     * @return the encoding recorded for the bucket, or JSON if none has been recorded
+     * @throws IOException if the encoding cannot be read
+     */
+    static RecordEncoding getEncoding(final Path bucket_directory) throws IOException {
+
+        final Path encoding_path = encodingPath(bucket_directory);
+        if (!Files.exists(encoding_path)) {
+            return JSON;
+        }
+        try (final BufferedReader reader = Files.newBufferedReader(encoding_path, FileManipulation.FILE_CHARSET)) {
+            return valueOf(reader.readLine().trim());
+        }
+    }
+
+    /**
+     * Records the encoding of a bucket in its META directory.
+     *
+     * @param bucket_directory the directory of the bucket
+     * @param encoding         the encoding to be recorded
+     * @throws IOException if the encoding cannot be written
+     */
+    static void setEncoding(final Path bucket_directory, final RecordEncoding encoding) throws IOException {
+
+        final Path encoding_path = encodingPath(bucket_directory);
+        final Path temp_path = encoding_path.resolveSibling(ENCODING_FILE_NAME + ".tmp");
+
+        try (final BufferedWriter writer = Files.newBufferedWriter(temp_path, FileManipulation.FILE_CHARSET)) {
+            writer.write(encoding.name());
+            writer.newLine();
+        }
+        Files.move(temp_path, encoding_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path encodingPath(final Path bucket_directory) {
+        return bucket_directory.resolve(DirectoryBackedBucket.META_BUCKET_NAME).resolve(ENCODING_FILE_NAME);
+    }
+}
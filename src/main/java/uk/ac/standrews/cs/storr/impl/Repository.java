@@ -48,6 +48,7 @@ public class Repository implements IRepository {
     private final File repository_directory;
 
     private final Map<String, IBucket> bucket_cache;
+    private final ChangeJournal change_journal;
 
     Repository(IStore store, String repository_name, final Path base_path) throws RepositoryException {
 
@@ -73,6 +74,13 @@ public class Repository implements IRepository {
                 throw new RepositoryException(repository_directory.getAbsolutePath() + " exists but is not a directory");
             }
         }
+
+        try {
+            change_journal = store.getChangeNotification() == ChangeNotification.JOURNAL ? new ChangeJournal(repository_path) : null;
+
+        } catch (IOException e) {
+            throw new RepositoryException("Cannot open change journal for repository: " + repository_name);
+        }
     }
 
     @Override
@@ -91,6 +99,22 @@ public class Repository implements IRepository {
         return bucket;
     }
 
+    @Override
+    public IBucket makeBucket(final String bucket_name, BucketKind kind, BucketLayout layout) throws RepositoryException {
+
+        IBucket bucket = BucketKind.createBucket(this, bucket_name, kind, layout);
+        bucket_cache.put(bucket_name, bucket);
+        return bucket;
+    }
+
+    @Override
+    public <T extends PersistentObject> IBucket<T> makeBucket(final String bucket_name, BucketKind kind, Class<T> bucketType, BucketLayout layout) throws RepositoryException {
+
+        IBucket bucket = BucketKind.createBucket(this, bucket_name, bucketType, kind, layout);
+        bucket_cache.put(bucket_name, bucket);
+        return bucket;
+    }
+
     @Override
     public <T extends LXP> IIdtoLXPMap<T> makeIdtoLXPMap(String name, Class<T> bucketType) throws RepositoryException {
             return new IdtoILXPMap( name, this, bucketType, true );
@@ -117,8 +141,11 @@ public class Repository implements IRepository {
         }
 
         try {
+            final IBucket bucket = bucket_cache.remove(name);
+            if (bucket instanceof DirectoryBackedBucket) {
+                ((DirectoryBackedBucket) bucket).closeFiles();
+            }
             FileManipulation.deleteDirectory(getBucketPath(name));
-            bucket_cache.remove(name);
 
         } catch (IOException e) {
             throw new RepositoryException("Cannot delete $$$bucket$$$bucket$$$: " + name);
@@ -180,6 +207,11 @@ public class Repository implements IRepository {
         return repository_name;
     }
 
+    @Override
+    public ChangeJournal getChangeJournal() {
+        return change_journal;
+    }
+
     @Override
     public IStore getStore() {
         return store;
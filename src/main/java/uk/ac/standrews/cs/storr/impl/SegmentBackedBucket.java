@@ -0,0 +1,619 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IRepository;
+import uk.ac.standrews.cs.utilities.FileManipulation;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bucket which appends serialized records to a small number of large segment files rather than
+ * writing each record to a file of its own.
+ * An append-only index file maps each oid to the segment, offset and length of the latest version of the record.
+ * Updates and deletions append to the segments and index; the space used by superseded versions is not reclaimed.
+ * <p>
+ * The segments and the index live directly in the bucket directory so that the Watcher sees changes made by other processes.
+ * Appends from different processes are serialised using a lock on the index file.
+ * <p>
+ * The index file and segments are kept open for reading. The index file is read again only when its length has changed,
+ * or from the start when it has been replaced, and records are looked up without holding the lock on the bucket.
+ */
+public class SegmentBackedBucket<T extends PersistentObject> extends DirectoryBackedBucket<T> {
+
+    private static final String SEGMENT_FILE_NAME_PREFIX = "SEGMENT";
+    private static final String SEGMENT_INDEX_FILE_NAME = "SEGMENTINDEX";
+    private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 8 + 4; // oid, segment, offset, length
+    private static final int DELETED = -1;                      // length recorded for a deleted oid
+    private static final int CONVERSION_BATCH_SIZE = 1000;      // records appended at a time when changing the encoding
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentBackedBucket.class.getName());
+
+    private static final Map<Path, Object> append_locks = new ConcurrentHashMap<>(); // one per bucket per JVM, since file locks are held per JVM
+
+    private final Path index_path;
+    private final Object append_lock;
+    private final Map<Long, SegmentEntry> index = new ConcurrentHashMap<>();  // oid -> location of latest version.
+    private final Set<Long> written_order = new LinkedHashSet<>();           // oids in the index in order of first write, guarded by this.
+    private final Map<Integer, FileChannel> segment_readers = new ConcurrentHashMap<>();
+    private volatile FileChannel index_reader = null;
+    private volatile long index_position = 0;    // the length of the index file that has been read into the index.
+    private volatile List<Long> cached_oids = null;
+
+    SegmentBackedBucket(final IRepository repository, final String bucket_name, final boolean create_bucket) throws RepositoryException {
+
+        super(repository, bucket_name, BucketKind.SEGMENTED, create_bucket);
+        index_path = directory.toPath().resolve(SEGMENT_INDEX_FILE_NAME);
+        append_lock = append_locks.computeIfAbsent(index_path.toAbsolutePath().normalize(), k -> new Object());
+        initIndex();
+    }
+
+    SegmentBackedBucket(final IRepository repository, final String bucket_name, final Class<T> bucketType, final boolean create_bucket) throws RepositoryException {
+
+        super(repository, bucket_name, BucketKind.SEGMENTED, bucketType, create_bucket);
+        index_path = directory.toPath().resolve(SEGMENT_INDEX_FILE_NAME);
+        append_lock = append_locks.computeIfAbsent(index_path.toAbsolutePath().normalize(), k -> new Object());
+        initIndex();
+    }
+
+    @Override
+    public BucketKind getKind() {
+        return BucketKind.SEGMENTED;
+    }
+
+    @Override
+    public boolean contains(final long id) {
+
+        refreshIndex();
+        return index.containsKey(id);
+    }
+
+    @Override
+    public List<Long> getOids() {
+
+        refreshIndex();
+        List<Long> oids = cached_oids;
+        if (oids == null) {
+            synchronized (this) {
+                if (cached_oids == null) {
+                    cached_oids = new ArrayList<>(written_order);
+                }
+                oids = cached_oids;
+            }
+        }
+        return oids;
+    }
+
+    @Override
+    public int size() throws BucketException {
+
+        refreshIndex();
+        return index.size();
+    }
+
+    @Override
+    public void makePersistent(final T record) throws BucketException {
+
+        checkConsistency(record);
+        append(Collections.singletonList(record.getId()), Collections.singletonList(serialize(record)), true);
+        cacheObject(record);
+    }
+
+    /**
+     * Writes a number of records to the bucket, appending them to the segments and index in a single write of each.
+     */
+    @Override
+    public void makePersistentAll(final Collection<T> records) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>(records.size());
+        final Set<Long> distinct_ids = new HashSet<>();
+        for (final T record : records) {
+            if (!distinct_ids.add(record.getId())) {
+                throw new BucketException("records may not be overwritten - use update");
+            }
+            ids.add(record.getId());
+        }
+        checkConsistency(records);
+
+        final List<byte[]> serialized = new ArrayList<>(records.size());
+        for (final T record : records) {
+            serialized.add(serialize(record));
+        }
+        append(ids, serialized, true);
+
+        for (final T record : records) {
+            cacheObject(record);
+        }
+    }
+
+    @Override
+    public void delete(final long oid) throws BucketException {
+
+        if (!contains(oid)) {
+            throw new BucketException("Record with id: " + oid + " does not exist");
+        }
+        try {
+            appendIndexEntries(Collections.singletonList(new IndexUpdate(oid, new SegmentEntry(0, 0, DELETED))));
+        } catch (final IOException e) {
+            throw new BucketException("Unsuccessful delete of oid: " + oid);
+        }
+        evictObject(oid);
+    }
+
+    /**
+     * Makes the shadow copy written by update the current version of the record, by appending it to the segments.
+     *
+     * @param oid - the oid to swizzle
+     */
+    @Override
+    public void swizzle(final long oid) {
+
+        final Path shadow_location = transactionsPath(oid);
+        if (!shadow_location.toFile().exists()) {
+            throw new RuntimeException("******* Transaction error:Shadow file does not exist *******");
+        }
+        if (!contains(oid)) {
+            throw new RuntimeException("******* Transaction error: Primary record does not exist *******");
+        }
+        try {
+            append(Collections.singletonList(oid), Collections.singletonList(Files.readAllBytes(shadow_location)), false);
+            forgetSerialized(oid);
+        } catch (final IOException | BucketException e) {
+            throw new RuntimeException("******* Transaction error: Primary record cannot be replaced by shadow *******");
+        }
+        if (!shadow_location.toFile().delete()) {
+            throw new RuntimeException("******* Transaction error: Shadow file cannot be deleted *******");
+        }
+    }
+
+    /**
+     * Appends a new version of each record not in the encoding of the bucket, in batches.
+     * The records are converted by the calling thread since appends to the segments are serialized anyway.
+     */
+    @Override
+    void convertRecords(final int threads) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        final List<byte[]> converted = new ArrayList<>();
+
+        for (final long oid : getOids()) {
+            try {
+                if (RecordEncoding.of(readRecord(oid)) != getEncoding()) {
+                    ids.add(oid);
+                    converted.add(serialize(loader(oid)));
+                }
+            } catch (final IOException e) {
+                throw new BucketException(e);
+            }
+            if (ids.size() == CONVERSION_BATCH_SIZE) {
+                append(ids, converted, false);
+                ids.clear();
+                converted.clear();
+            }
+        }
+        if (!ids.isEmpty()) {
+            append(ids, converted, false);
+        }
+    }
+
+    @Override
+    void setLayout(final BucketLayout new_layout) throws BucketException {
+
+        if (new_layout != BucketLayout.FLAT) {
+            throw new BucketException("Segmented buckets do not hold records in files");
+        }
+    }
+
+    @Override
+    public void changeLayout(final BucketLayout new_layout, final int threads) throws BucketException {
+        setLayout(new_layout);
+    }
+
+    /**
+     * called by Watcher service
+     * The files are reopened and the index is read again from the start.
+     */
+    @Override
+    public synchronized void invalidateCache() {
+
+        super.invalidateCache();
+        resetIndex();
+        refreshIndexQuietly();
+    }
+
+    /**
+     * called by Watcher service
+     * The index identifies any records that have been changed, so the names of the changed files are not needed
+     * unless the index file itself has been replaced.
+     */
+    @Override
+    public void invalidateCache(final Map<String, WatchEvent.Kind<?>> changes) {
+
+        final WatchEvent.Kind<?> index_change = changes.get(SEGMENT_INDEX_FILE_NAME);
+        if (index_change != null && index_change != StandardWatchEventKinds.ENTRY_MODIFY) {
+            invalidateCache();
+        } else {
+            refreshIndexQuietly();
+        }
+    }
+
+    @Override
+    void closeFiles() {
+
+        synchronized (this) {
+            resetIndex();
+        }
+    }
+
+    /**
+     * Reads any entries appended by other processes, so that cached copies of records they have changed or deleted are
+     * not returned, whether or not changes are reported through the Watcher or the repository journal.
+     */
+    @Override
+    void checkForChanges() {
+
+        super.checkForChanges();
+        refreshIndex();
+    }
+
+    @Override
+    byte[] readRecord(final long id) throws IOException {
+
+        refreshIndex();
+        final SegmentEntry entry = index.get(id);
+        if (entry == null) {
+            throw new FileNotFoundException("no record with id: " + id);
+        }
+
+        try {
+            return readSegment(entry);
+
+        } catch (final ClosedChannelException e) { // the segments were closed while being read, so reopen them
+            return readSegment(entry);
+        }
+    }
+
+    //******** Private methods *********
+
+    /*
+     * Appends records to the segments, writing each segment once, and then appends their index entries in one write.
+     * New records are checked not to be in the bucket once the index is locked, so that no other writer can add
+     * them between the check and the append.
+     */
+    private void append(final List<Long> oids, final List<byte[]> records, final boolean new_records) throws BucketException {
+
+        synchronized (append_lock) {
+            try (final FileChannel index_channel = FileChannel.open(index_path, StandardOpenOption.WRITE);
+                 final FileLock ignored = index_channel.lock()) {
+
+                if (new_records) {
+                    refreshIndex();
+                    for (final long oid : oids) {
+                        if (index.containsKey(oid)) {
+                            throw new BucketException("records may not be overwritten - use update");
+                        }
+                    }
+                }
+
+                final List<IndexUpdate> updates = new ArrayList<>();
+                int segment = lastSegment();
+                long offset = Files.size(segmentPath(segment));
+
+                int next = 0;
+                while (next < records.size()) {
+
+                    if (offset > 0 && offset + records.get(next).length > MAX_SEGMENT_SIZE) {
+                        segment++;
+                        offset = 0;
+                    }
+
+                    final int first = next;
+                    final long start = offset;
+                    do {
+                        updates.add(new IndexUpdate(oids.get(next), new SegmentEntry(segment, offset, records.get(next).length)));
+                        offset += records.get(next).length;
+                        next++;
+                    } while (next < records.size() && offset + records.get(next).length <= MAX_SEGMENT_SIZE);
+
+                    writeSegment(segment, start, records.subList(first, next));
+                }
+                writeIndexEntries(index_channel, updates);
+
+            } catch (final IOException e) {
+                throw new BucketException(e);
+            }
+        }
+        refreshIndex();
+    }
+
+    private byte[] readSegment(final SegmentEntry entry) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        final FileChannel channel = segmentReader(entry.segment);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new EOFException("truncated segment: " + entry.segment);
+            }
+        }
+        return buffer.array();
+    }
+
+    private void writeSegment(final int segment, final long offset, final List<byte[]> records) throws IOException {
+
+        int length = 0;
+        for (final byte[] record : records) {
+            length += record.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (final byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        try (final FileChannel segment_channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeFully(segment_channel, buffer, offset);
+        }
+    }
+
+    private void appendIndexEntries(final List<IndexUpdate> updates) throws IOException {
+
+        synchronized (append_lock) {
+            try (final FileChannel index_channel = FileChannel.open(index_path, StandardOpenOption.WRITE);
+                 final FileLock ignored = index_channel.lock()) {
+
+                writeIndexEntries(index_channel, updates);
+            }
+        }
+        refreshIndex();
+    }
+
+    private static void writeIndexEntries(final FileChannel index_channel, final List<IndexUpdate> updates) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * updates.size());
+        for (final IndexUpdate update : updates) {
+            buffer.putLong(update.oid);
+            buffer.putInt(update.entry.segment);
+            buffer.putLong(update.entry.offset);
+            buffer.putInt(update.entry.length);
+        }
+        buffer.flip();
+        writeFully(index_channel, buffer, index_channel.size());
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+
+        long next = position;
+        while (buffer.hasRemaining()) {
+            next += channel.write(buffer, next);
+        }
+    }
+
+    private void initIndex() throws RepositoryException {
+
+        try {
+            FileManipulation.createFileIfDoesNotExist(index_path);
+            if (!Files.exists(segmentPath(0))) {
+                FileManipulation.createFileIfDoesNotExist(segmentPath(0));
+            }
+        } catch (final IOException e) {
+            throw new RepositoryException("Cannot create segment index for bucket: " + getName());
+        }
+        refreshIndex();
+    }
+
+    /**
+     * Reads any entries appended to the index file since it was last read.
+     * The length of the open index file is checked without holding the lock on the bucket.
+     */
+    private void refreshIndex() {
+
+        try {
+            final FileChannel channel = index_reader;
+            if (channel != null && channel.size() == index_position) {
+                return;
+            }
+        } catch (final IOException e) {
+            // closed by another thread, so reopen it below
+        }
+
+        try {
+            synchronized (this) {
+                readIndex();
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read segment index for bucket: " + getName(), e);
+        }
+    }
+
+    /*
+     * Refreshes the index for the Watcher, which must not be stopped by an exception. If the index cannot be read,
+     * the records and index are forgotten and are read again when next used.
+     */
+    private void refreshIndexQuietly() {
+
+        try {
+            synchronized (this) {
+                readIndex();
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read segment index for bucket: " + getName(), e);
+            synchronized (this) {
+                super.invalidateCache();
+                resetIndex();
+            }
+        }
+    }
+
+    private void readIndex() throws IOException {
+
+        try {
+            if (index_reader == null || !index_reader.isOpen()) {
+                index_reader = FileChannel.open(index_path, StandardOpenOption.READ);
+            }
+            final FileChannel channel = index_reader;
+
+            final long length = channel.size();
+            if (length < index_position) { // index has been replaced - start again
+                clearIndex();
+            }
+            if (length - index_position < INDEX_ENTRY_SIZE) {
+                return;
+            }
+
+            final long entries = (length - index_position) / INDEX_ENTRY_SIZE;
+            final List<Long> superseded = new ArrayList<>();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(entries * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE * 4096));
+
+            for (long read = 0; read < entries; ) {
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), (entries - read) * INDEX_ENTRY_SIZE));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, index_position + buffer.position()) < 0) {
+                        throw new EOFException("segment index truncated while being read for bucket: " + getName());
+                    }
+                }
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    final long oid = buffer.getLong();
+                    final SegmentEntry entry = new SegmentEntry(buffer.getInt(), buffer.getLong(), buffer.getInt());
+                    if (entry.length == DELETED) {
+                        if (index.remove(oid) != null) {
+                            written_order.remove(oid);
+                            evictObject(oid);
+                        }
+                    } else if (index.put(oid, entry) != null) {
+                        superseded.add(oid);
+                    } else {
+                        written_order.add(oid);
+                    }
+                    read++;
+                }
+                index_position += buffer.limit();
+            }
+            cached_oids = null;
+
+            for (final long oid : superseded) {
+                refreshObject(oid); // the index is now up to date so the new versions can be read
+            }
+
+        } catch (final NoSuchFileException e) { // the bucket has been deleted
+            resetIndex();
+        }
+    }
+
+    /*
+     * Forgets the index and closes the files, which are reopened when next read.
+     */
+    private void resetIndex() {
+
+        clearIndex();
+        closeQuietly(index_reader);
+        index_reader = null;
+        for (final Iterator<FileChannel> readers = segment_readers.values().iterator(); readers.hasNext(); ) {
+            closeQuietly(readers.next());
+            readers.remove();
+        }
+    }
+
+    private void clearIndex() {
+
+        index.clear();
+        written_order.clear();
+        index_position = 0;
+        cached_oids = null;
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // nothing more can be done with it
+            }
+        }
+    }
+
+    private int lastSegment() {
+
+        int segment = 0;
+        while (Files.exists(segmentPath(segment + 1))) {
+            segment++;
+        }
+        return segment;
+    }
+
+    private FileChannel segmentReader(final int segment) throws IOException {
+
+        FileChannel channel = segment_readers.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+            final FileChannel existing = segment_readers.putIfAbsent(segment, channel);
+            if (existing != null) {
+                channel.close();
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    private Path segmentPath(final int segment) {
+        return directory.toPath().resolve(SEGMENT_FILE_NAME_PREFIX + segment);
+    }
+
+    /*
+     * The location of a version of a record in the segments.
+     */
+    private static class SegmentEntry {
+
+        final int segment;
+        final long offset;
+        final int length;
+
+        SegmentEntry(final int segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class IndexUpdate {
+
+        final long oid;
+        final SegmentEntry entry;
+
+        IndexUpdate(final long oid, final SegmentEntry entry) {
+            this.oid = oid;
+            this.entry = entry;
+        }
+    }
+}
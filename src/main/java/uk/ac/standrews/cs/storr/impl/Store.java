@@ -41,18 +41,46 @@ import static uk.ac.standrews.cs.storr.impl.Repository.repositoryNameIsLegal;
 public class Store implements IStore {
 
     private final static String REPO_DIR_NAME = "REPOS";
+    private final static String STRING_DICTIONARY_FILE_NAME = "STRINGS";
     private static final SecureRandom RANDOM = new SecureRandom();
 
     private final Path repository_path;
     private final Map<String, IRepository> repository_cache;
     private static Store instance;
 
+    private final ChangeNotification change_notification;
     private Watcher watcher;
     private ITransactionManager transaction_manager;
     private TypeFactory type_factory;
+    private StringDictionary string_dictionary;
+    private final CacheManager cache_manager = new CacheManager();
 
     public Store(Path store_path) throws StoreException {
 
+        this(store_path, ChangeNotification.WATCHER);
+    }
+
+    /**
+     * @param store_path          the directory in which the store is held
+     * @param change_notification the mechanism by which buckets learn of changes made by other processes
+     * @throws StoreException if the store cannot be opened
+     */
+    public Store(Path store_path, ChangeNotification change_notification) throws StoreException {
+
+        this(store_path, change_notification, true);
+    }
+
+    /**
+     * @param store_path          the directory in which the store is held
+     * @param change_notification the mechanism by which buckets learn of changes made by other processes
+     * @param code_strings        true if strings recurring in the binary records written may be given codes held in the
+     *                            store's dictionary file, false if that file is not to be written, for instance by a
+     *                            process that only reads the store; codes already in the file are read in either case
+     * @throws StoreException if the store cannot be opened
+     */
+    public Store(Path store_path, ChangeNotification change_notification, boolean code_strings) throws StoreException {
+
+        this.change_notification = change_notification;
         repository_path = store_path.resolve(REPO_DIR_NAME);
         repository_cache = new HashMap<>();
 
@@ -62,8 +90,11 @@ public class Store implements IStore {
 
         try {
             watcher = new Watcher();
-            watcher.startService();
+            if (change_notification == ChangeNotification.WATCHER) {
+                watcher.startService();
+            }
 
+            string_dictionary = new StringDictionary(store_path.resolve(STRING_DICTIONARY_FILE_NAME), StringDictionary.DEFAULT_CAPACITY, !code_strings);
             transaction_manager = new TransactionManager(this);
             type_factory = new TypeFactory(this);
 
@@ -96,6 +127,16 @@ public class Store implements IStore {
         return instance;
     }
 
+    @Override
+    public CacheManager getCacheManager() {
+        return cache_manager;
+    }
+
+    @Override
+    public StringDictionary getStringDictionary() {
+        return string_dictionary;
+    }
+
     @Override
     public ITransactionManager getTransactionManager() {
         return transaction_manager;
@@ -163,6 +204,11 @@ public class Store implements IStore {
         return watcher;
     }
 
+    @Override
+    public ChangeNotification getChangeNotification() {
+        return change_notification;
+    }
+
     private void checkCreate(Path dir) throws StoreException {
 
         if (!Files.exists(dir)) {  // only create if it doesn't exist - try and make the directory
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded pool of the strings that recur across the records of a store, such as place names, occupations and
+ * common forenames, used in place of {@link String#intern()} so that records read from the store share one instance
+ * of each recurring value without filling the JVM string table.
+ * <p>
+ * Strings read from records are pooled in memory only, in a fixed number of slots chosen by hash. A string replaces
+ * the one in its slot only when it is seen there a second time in succession, so strings seen only once, such as
+ * identifiers, rarely displace recurring ones. Reading takes no locks and never changes the store.
+ * <p>
+ * A persistent dictionary also gives codes to strings written to records, held in an append-only file of length
+ * prefixed UTF-8 strings shared with other processes using the store, so that the codes may be written in records
+ * in place of the strings themselves. Each code is the position of its string in the file. Short strings are given
+ * codes when they are written a second time, until the dictionary reaches its capacity. Codes are never reassigned,
+ * so a record written with a code can always be read. A read-only dictionary reads the codes already in the file
+ * but gives codes to no more strings.
+ */
+public class StringDictionary {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final int MAX_ENTRY_LENGTH = 64; // longer strings are unlikely to recur
+
+    static final int NO_CODE = -1;
+
+    private static final int INITIAL_SIZE = 256;
+    private static final int CANDIDATES_PER_ENTRY = 4; // bounds the strings remembered as written once, relative to the capacity
+
+    private static final Map<Path, Object> locks = new ConcurrentHashMap<>(); // one per dictionary file per JVM, since file locks are held per JVM
+
+    private final Path path;   // null if the dictionary is not persistent
+    private final boolean read_only;
+    private final int capacity;
+    private final Object lock;
+
+    private final String[] pool;               // slot -> a recurring string read from records
+    private final int[] pool_candidates;       // slot -> hash of the string last seen once in the slot
+    private final int pool_mask;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();  // strings written once, not yet given codes
+    private volatile String[] entries = new String[INITIAL_SIZE];               // indexed by code; replaced when grown
+    private int size = 0;                                                       // guarded by lock
+    private long file_position = 0;                                             // the length of the file read into entries, guarded by lock
+
+    /**
+     * Creates a dictionary held only in memory, whose codes are not written in records.
+     *
+     * @param capacity the maximum number of strings pooled
+     */
+    public StringDictionary(final int capacity) {
+
+        this.path = null;
+        this.read_only = true;
+        this.capacity = capacity;
+        this.lock = new Object();
+
+        pool = new String[poolSlots(capacity)];
+        pool_candidates = new int[pool.length];
+        pool_mask = pool.length - 1;
+    }
+
+    /**
+     * Creates a persistent dictionary, reading any strings already in the given file.
+     *
+     * @param path     the file in which the dictionary is held, created when the first string is given a code
+     * @param capacity the maximum number of strings given codes, and of strings pooled
+     * @throws IOException if the file cannot be read
+     */
+    public StringDictionary(final Path path, final int capacity) throws IOException {
+
+        this(path, capacity, false);
+    }
+
+    /**
+     * Creates a persistent dictionary, reading any strings already in the given file.
+     *
+     * @param path      the file in which the dictionary is held, created when the first string is given a code
+     * @param capacity  the maximum number of strings given codes, and of strings pooled
+     * @param read_only true if no more strings are to be given codes, so that the file is never written
+     * @throws IOException if the file cannot be read
+     */
+    public StringDictionary(final Path path, final int capacity, final boolean read_only) throws IOException {
+
+        this.path = path;
+        this.read_only = read_only;
+        this.capacity = capacity;
+        this.lock = locks.computeIfAbsent(path.toAbsolutePath().normalize(), k -> new Object());
+
+        pool = new String[poolSlots(capacity)];
+        pool_candidates = new int[pool.length];
+        pool_mask = pool.length - 1;
+
+        synchronized (lock) {
+            if (path.toFile().exists()) {
+                try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    readNewEntries(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the codes of this dictionary may be written in records
+     */
+    public boolean isPersistent() {
+        return path != null;
+    }
+
+    /**
+     * @return the number of strings given codes
+     */
+    public int size() {
+
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Used when reading records, so takes no locks and never adds to the codes.
+     *
+     * @param value a string
+     * @return the instance of the string held in the dictionary or pool, pooling it if it recurs, otherwise the string itself
+     */
+    public String canonical(final String value) {
+
+        if (value == null || value.length() > MAX_ENTRY_LENGTH) {
+            return value;
+        }
+        final Integer code = codes.get(value);
+        if (code != null) {
+            return entries[code];
+        }
+
+        final int hash = value.hashCode();
+        final int slot = (hash ^ (hash >>> 16)) & pool_mask;
+        final String pooled = pool[slot];
+        if (value.equals(pooled)) {
+            return pooled;
+        }
+        if (pool_candidates[slot] == hash) {
+            pool[slot] = value; // racing threads may pool different instances, which does no harm
+        } else {
+            pool_candidates[slot] = hash;
+        }
+        return value;
+    }
+
+    /**
+     * Used when writing records.
+     *
+     * @param value a string
+     * @return the code of the string, giving it one if it is admitted, or NO_CODE if it has none or the dictionary is not persistent
+     */
+    int code(final String value) {
+
+        if (!isPersistent() || value == null) {
+            return NO_CODE;
+        }
+        final Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (read_only || value.length() > MAX_ENTRY_LENGTH || !admit(value)) {
+            return NO_CODE;
+        }
+        return add(value);
+    }
+
+    /**
+     * @param code a code written in a record
+     * @return the string with the code
+     * @throws PersistentObjectException if there is no string with the code
+     */
+    String get(final int code) throws PersistentObjectException {
+
+        final String[] current = entries;
+        if (code >= 0 && code < current.length && current[code] != null) {
+            return current[code];
+        }
+
+        synchronized (lock) {
+            try {
+                if (code >= size && isPersistent() && path.toFile().exists()) {
+                    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        readNewEntries(channel); // added by another process
+                    }
+                }
+            } catch (final IOException e) {
+                throw new PersistentObjectException("Cannot read string dictionary: " + e.getMessage());
+            }
+            if (code < 0 || code >= size) {
+                throw new PersistentObjectException("No string with code " + code + " in string dictionary");
+            }
+            return entries[code];
+        }
+    }
+
+    /*
+     * The number of slots in the pool: the capacity rounded up to a power of two.
+     */
+    private static int poolSlots(final int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    }
+
+    /*
+     * Admits a string when it is written for the second time. The strings written once are forgotten when there are
+     * too many, so a string that recurs only after many others may not be admitted.
+     */
+    private boolean admit(final String value) {
+
+        if (candidates.putIfAbsent(value, Boolean.TRUE) == null) {
+
+            if (candidates.size() > CANDIDATES_PER_ENTRY * capacity) {
+                candidates.clear();
+            }
+            return false;
+        }
+        candidates.remove(value);
+        return true;
+    }
+
+    private int add(final String value) {
+
+        synchronized (lock) {
+
+            final Integer existing = codes.get(value);
+            if (existing != null) {
+                return existing;
+            }
+
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 final FileLock ignored = channel.lock()) {
+
+                readNewEntries(channel); // strings added by other processes take the next codes
+
+                final Integer added_elsewhere = codes.get(value);
+                if (added_elsewhere != null) {
+                    return added_elsewhere;
+                }
+                if (size >= capacity) {
+                    return NO_CODE;
+                }
+
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                final ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+                entry.putInt(bytes.length).put(bytes).flip();
+
+                while (entry.hasRemaining()) {
+                    file_position += channel.write(entry, file_position);
+                }
+                return store(value);
+
+            } catch (final IOException e) {
+                return NO_CODE; // the string is used without a code
+            }
+        }
+    }
+
+    /*
+     * Reads the complete entries written since the file was last read. Called with the lock held.
+     */
+    private void readNewEntries(final FileChannel channel) throws IOException {
+
+        final long length = channel.size();
+        if (length <= file_position) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (length - file_position));
+        while (buffer.hasRemaining() && channel.read(buffer, file_position + buffer.position()) >= 0) ;
+        buffer.flip();
+
+        while (buffer.remaining() >= Integer.BYTES) {
+
+            final int entry_length = buffer.getInt(buffer.position());
+            if (buffer.remaining() < Integer.BYTES + entry_length) {
+                break; // an entry still being written by another process
+            }
+            buffer.getInt();
+            final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), entry_length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + entry_length);
+            file_position += Integer.BYTES + entry_length;
+
+            store(value);
+        }
+    }
+
+    /*
+     * Gives the next code to a string. Called with the lock held.
+     */
+    private int store(final String value) {
+
+        String[] current = entries;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[size] = value;
+        entries = current; // publish the entry before its code
+
+        codes.put(value, size);
+        return size++;
+    }
+}
@@ -49,6 +49,7 @@ public class StringtoILXPMap<T extends LXP> implements IStringtoILXPMap<T> {
     protected StringtoILXPMap(final String map_name, final IRepository repository, BucketKind kind, Class<T> bucketType, boolean create_map) throws RepositoryException {
 
             bucket = new DirectoryBackedMapBucket(repository, map_name, kind, bucketType, create_map);
+            repository.getStore().getCacheManager().register(bucket);
             this.repository = repository;
     }
 
@@ -21,6 +21,7 @@ import uk.ac.standrews.cs.storr.interfaces.IBucket;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static java.nio.file.StandardWatchEventKinds.*;
@@ -72,7 +73,22 @@ public class Watcher {
                 throw new RuntimeException("WatchKey not recognized");
             }
 
-            b.invalidateCache();
+            final Map<String, WatchEvent.Kind<?>> changes = new LinkedHashMap<>();
+            boolean overflowed = false;
+
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    overflowed = true;
+                } else {
+                    changes.put(event.context().toString(), event.kind()); // only the last change to each file matters
+                }
+            }
+
+            if (overflowed) {
+                b.invalidateCache(); // events have been lost so we don't know what has changed
+            } else if (!changes.isEmpty()) {
+                b.invalidateCache(changes);
+            }
 
             // reset the key
             key.reset(); // returns a boolean which indicates if the key is valid but we are not bothered!
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded cache using the W-TinyLFU policy (Einziger, Friedman and Manes, "TinyLFU: A Highly Efficient Cache
+ * Admission Policy", 2017).
+ * <p>
+ * New entries are held in a small LRU window. An entry leaving the window is admitted to the main cache only if it
+ * has been used more often than the entry that the main cache would evict to make room for it, so that a scan over
+ * many records used once does not displace records that are used repeatedly. The main cache is segmented: entries
+ * used again while on probation are promoted to a protected segment. Frequencies are approximated by a count-min
+ * sketch of 4-bit counters that are periodically halved, so that they reflect recent use.
+ * <p>
+ * Each entry has a weight, such as its estimated size in bytes, and the total weight of the entries is bounded.
+ * All operations are synchronized.
+ *
+ * @param <V> the type of the values held
+ */
+final class WindowTinyLfuCache<V> {
+
+    private static final double WINDOW_FRACTION = 0.01;     // of the maximum weight, held in the window
+    private static final double PROTECTED_FRACTION = 0.8;   // of the weight of the main cache, held in the protected segment
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ToIntFunction<V> weigher;
+    private final Map<Long, Node<V>> nodes = new HashMap<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final Segment<V> window = new Segment<>();
+    private final Segment<V> probation = new Segment<>();
+    private final Segment<V> protected_segment = new Segment<>();
+
+    private long maximum_weight;
+    private long window_maximum_weight;
+    private long protected_maximum_weight;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maximum_weight the maximum total weight of the entries
+     * @param weigher        gives the weight of each value, taken when the value is put
+     */
+    WindowTinyLfuCache(final long maximum_weight, final ToIntFunction<V> weigher) {
+
+        this.weigher = weigher;
+        setMaximumWeight(maximum_weight);
+    }
+
+    /**
+     * @param key the key of the required value
+     * @return the value, or null if it is not held
+     */
+    synchronized V get(final long key) {
+
+        sketch.increment(key);
+
+        final Node<V> node = nodes.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        onHit(node);
+        return node.value;
+    }
+
+    /**
+     * @param key the key of a value
+     * @return the value, or null if it is not held, without recording a use of the key
+     */
+    synchronized V peek(final long key) {
+
+        final Node<V> node = nodes.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Holds a value, which may be evicted immediately if it has been used less than the values already held.
+     *
+     * @param key   the key of the value
+     * @param value the value
+     */
+    synchronized void put(final long key, final V value) {
+
+        final Node<V> existing = nodes.get(key);
+        if (existing != null) {
+            segment(existing.segment).weight += weigher.applyAsInt(value) - existing.weight;
+            existing.weight = weigher.applyAsInt(value);
+            existing.value = value;
+            onHit(existing);
+
+        } else {
+            sketch.increment(key);
+
+            final Node<V> node = new Node<>(key, value, weigher.applyAsInt(value));
+            nodes.put(key, node);
+            window.addFirst(node);
+            node.segment = WINDOW;
+
+            sketch.ensureCapacity(nodes.size());
+        }
+        evict();
+    }
+
+    synchronized void invalidate(final long key) {
+
+        final Node<V> node = nodes.remove(key);
+        if (node != null) {
+            segment(node.segment).remove(node);
+        }
+    }
+
+    synchronized void invalidateAll() {
+
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protected_segment.clear();
+    }
+
+    /**
+     * Changes the maximum total weight of the entries, evicting entries if it is reduced.
+     *
+     * @param maximum_weight the new maximum weight
+     */
+    synchronized void setMaximumWeight(final long maximum_weight) {
+
+        this.maximum_weight = Math.max(0, maximum_weight);
+        window_maximum_weight = Math.max(1, (long) (this.maximum_weight * WINDOW_FRACTION));
+        protected_maximum_weight = (long) ((this.maximum_weight - window_maximum_weight) * PROTECTED_FRACTION);
+
+        evict();
+        while (protected_segment.weight > protected_maximum_weight) {
+            demote();
+        }
+    }
+
+    synchronized long getMaximumWeight() {
+        return maximum_weight;
+    }
+
+    synchronized long weight() {
+        return window.weight + probation.weight + protected_segment.weight;
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    synchronized long hitCount() {
+        return hits;
+    }
+
+    synchronized long missCount() {
+        return misses;
+    }
+
+    /**
+     * @return a copy of the entries held
+     */
+    synchronized Map<Long, V> asMap() {
+
+        final Map<Long, V> copy = new HashMap<>();
+        for (final Node<V> node : nodes.values()) {
+            copy.put(node.key, node.value);
+        }
+        return copy;
+    }
+
+    //******** Private methods *********
+
+    private void onHit(final Node<V> node) {
+
+        switch (node.segment) {
+
+            case WINDOW:
+                window.moveToFirst(node);
+                break;
+
+            case PROBATION:
+                probation.remove(node);
+                protected_segment.addFirst(node);
+                node.segment = PROTECTED;
+                while (protected_segment.weight > protected_maximum_weight) {
+                    demote();
+                }
+                break;
+
+            default:
+                protected_segment.moveToFirst(node);
+        }
+    }
+
+    /*
+     * Moves the least recently used protected entry back to probation.
+     */
+    private void demote() {
+
+        final Node<V> node = protected_segment.last;
+        protected_segment.remove(node);
+        probation.addFirst(node);
+        node.segment = PROBATION;
+    }
+
+    /*
+     * Moves entries that overflow the window to probation as candidates for admission, then while the cache is
+     * too heavy evicts whichever of the oldest candidate and the least recently used probation entry is used
+     * less often.
+     */
+    private void evict() {
+
+        int candidates = 0;
+        while (window.weight > window_maximum_weight && window.last != null) {
+
+            final Node<V> node = window.last;
+            window.remove(node);
+            probation.addFirst(node);
+            node.segment = PROBATION;
+            candidates++;
+        }
+
+        Node<V> candidate = candidates > 0 ? oldestCandidate(candidates) : null;
+
+        while (weight() > maximum_weight) {
+
+            final Node<V> victim = probation.last != null ? probation.last : protected_segment.last != null ? protected_segment.last : window.last;
+
+            if (candidate == null) {
+                remove(victim);
+
+            } else if (candidate == victim) {  // only candidates are on probation
+                candidate = previous(candidate, --candidates);
+                remove(victim);
+
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                remove(victim);
+                candidate = previous(candidate, --candidates);  // admitted; the next candidate competes
+
+            } else {
+                final Node<V> rejected = candidate;
+                candidate = previous(candidate, --candidates);
+                remove(rejected);
+            }
+        }
+    }
+
+    private Node<V> oldestCandidate(final int candidates) {
+
+        Node<V> node = probation.first;
+        for (int i = 1; i < candidates; i++) {
+            node = node.next;
+        }
+        return node;
+    }
+
+    private Node<V> previous(final Node<V> candidate, final int remaining_candidates) {
+        return remaining_candidates > 0 ? candidate.previous : null;
+    }
+
+    private void remove(final Node<V> node) {
+
+        nodes.remove(node.key);
+        segment(node.segment).remove(node);
+    }
+
+    private Segment<V> segment(final int segment) {
+
+        switch (segment) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protected_segment;
+        }
+    }
+
+    private static final class Node<V> {
+
+        final long key;
+        V value;
+        int weight;
+        int segment;
+        Node<V> previous;   // towards the most recently used
+        Node<V> next;       // towards the least recently used
+
+        Node(final long key, final V value, final int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /*
+     * A doubly linked list of nodes from most to least recently used.
+     */
+    private static final class Segment<V> {
+
+        Node<V> first;
+        Node<V> last;
+        long weight;
+
+        void addFirst(final Node<V> node) {
+
+            node.previous = null;
+            node.next = first;
+            if (first != null) {
+                first.previous = node;
+            } else {
+                last = node;
+            }
+            first = node;
+            weight += node.weight;
+        }
+
+        void remove(final Node<V> node) {
+
+            if (node.previous != null) {
+                node.previous.next = node.next;
+            } else {
+                first = node.next;
+            }
+            if (node.next != null) {
+                node.next.previous = node.previous;
+            } else {
+                last = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToFirst(final Node<V> node) {
+
+            if (node != first) {
+                remove(node);
+                addFirst(node);
+            }
+        }
+
+        void clear() {
+
+            first = null;
+            last = null;
+            weight = 0;
+        }
+    }
+
+    /*
+     * A count-min sketch of 4-bit counters, four to a key, packed sixteen to a long. When the number of increments
+     * reaches ten times the number of counters the counters are halved, so that old uses are forgotten.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MINIMUM_SIZE = 16;
+
+        private long[] table = new long[MINIMUM_SIZE];
+        private int sample_size = 10 * MINIMUM_SIZE;
+        private int additions = 0;
+
+        /*
+         * Enlarges the sketch, forgetting its counts, if it has become too small for the number of keys held.
+         */
+        void ensureCapacity(final int key_count) {
+
+            if (key_count > table.length && table.length < (1 << 30)) {
+                table = new long[Integer.highestOneBit(key_count - 1) << 1];
+                sample_size = table.length * 10 > 0 ? table.length * 10 : Integer.MAX_VALUE;
+                additions = 0;
+            }
+        }
+
+        int frequency(final long key) {
+
+            final int hash = spread(key);
+            final int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+
+            for (int i = 0; i < 4; i++) {
+                final int index = indexOf(hash, i);
+                final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(final long key) {
+
+            final int hash = spread(key);
+            final int start = (hash & 3) << 2;
+            boolean added = false;
+
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), start + i);
+            }
+            if (added && ++additions == sample_size) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(final int index, final int counter) {
+
+            final int offset = counter << 2;
+            final long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions = additions >>> 1;
+        }
+
+        private int indexOf(final int hash, final int i) {
+
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & (table.length - 1);
+        }
+
+        private static int spread(final long key) {
+
+            int x = Long.hashCode(key);
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -24,7 +24,9 @@ import uk.ac.standrews.cs.storr.impl.transaction.interfaces.ITransaction;
 import uk.ac.standrews.cs.storr.interfaces.IBucket;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by al on 05/01/15.
@@ -195,8 +197,14 @@ public class Transaction implements ITransaction {
     }
 
     private void swizzle_records() {
+
+        // Group the updates by bucket, so that each bucket can maintain its indexes once for the whole transaction.
+        Map<IBucket, List<Long>> updates_by_bucket = new LinkedHashMap<>();
         for (OverwriteRecord p : updates) {
-            p.bucket.swizzle(p.oid);
+            updates_by_bucket.computeIfAbsent(p.bucket, bucket -> new ArrayList<>()).add(p.oid);
+        }
+        for (Map.Entry<IBucket, List<Long>> entry : updates_by_bucket.entrySet()) {
+            entry.getKey().swizzleAll(entry.getValue());
         }
     }
 }
@@ -22,7 +22,10 @@ import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The interface for a Bucket (a repository of OID records).
@@ -53,6 +56,16 @@ public interface IBucket<T extends PersistentObject> {
      */
     void makePersistent(T record) throws BucketException;
 
+    /**
+     * Synchronously writes the states of a number of records to a $$$bucket$$$bucket$$$.
+     * All the records are checked before any is written.
+     * When this operation returns data is stored resiliently.
+     *
+     * @param records whose states are to be written.
+     * @throws BucketException if any record is already in the $$$bucket$$$bucket$$$, is inconsistent with its type, or if an error occurs during the operation.
+     */
+    void makePersistentAll(Collection<T> records) throws BucketException;
+
     /**
      * Updates the state of the specified record in the store.
      * Must be performed in the context of a transaction
@@ -78,7 +91,8 @@ public interface IBucket<T extends PersistentObject> {
 
     /**
      * @param cache_size - set the size of the object cache being implemented by the $$$bucket$$$bucket$$$
-     * @throws Exception if the cache size if smaller than the currently set cache size (i.e. cannot loose cached information
+     * The size may be reduced, in which case cached records beyond the new size are evicted.
+     * @throws Exception if the cache cannot be resized
      */
     void setCacheSize( int cache_size ) throws Exception;
 
@@ -93,6 +107,14 @@ public interface IBucket<T extends PersistentObject> {
      */
     IInputStream<T> getInputStream() throws BucketException;
 
+    /**
+     * @param read_ahead the number of records to be read ahead of the record being used
+     * @param threads    the number of threads with which to read ahead
+     * @return an input Stream containing all the OID records in this Bucket, whose iterators read records ahead of use
+     * @throws BucketException if an error occurs during the operation.
+     */
+    IInputStream<T> getInputStream(int read_ahead, int threads) throws BucketException;
+
     /**
      * @return an output Stream which supports the writing of records to this Bucket
      */
@@ -154,6 +176,19 @@ public interface IBucket<T extends PersistentObject> {
      */
     void swizzle(long oid);
 
+    /**
+     * Used by transaction API only.
+     * Swizzles the records of a transaction that are in this $$$bucket$$$bucket$$$ together, so that any work
+     * that depends on the records, such as maintaining indexes, may be done once for all of them.
+     *
+     * @param oids - the oids to swizzle, in the order in which they were updated
+     */
+    default void swizzleAll(List<Long> oids) {
+        for (final long oid : oids) {
+            swizzle(oid);
+        }
+    }
+
     /**
      * Used by transaction API only.
      *
@@ -171,4 +206,11 @@ public interface IBucket<T extends PersistentObject> {
      * Used to invalidate cached information when updates to underlying data structures are updated
      */
     void invalidateCache();
+
+    /**
+     * Used to invalidate cached information about records held in files that have been changed
+     *
+     * @param changes - the names of the changed files, relative to the bucket directory, mapped to the last kind of change made to each
+     */
+    void invalidateCache(Map<String, WatchEvent.Kind<?>> changes);
 }
@@ -61,4 +61,13 @@ public interface IBucketIndex<T extends LXP> {
      * @throws BucketException if one is thrown during the underlying $$$bucket$$$bucket$$$ operations
      */
     void add(T record) throws IOException, BucketException;
+
+    /**
+     * Removes a record from the index, as it was when it was added.
+     *
+     * @param record the record to be removed
+     * @throws IOException     if exception is thrown during operations
+     * @throws BucketException if one is thrown during the underlying $$$bucket$$$bucket$$$ operations
+     */
+    void remove(T record) throws IOException, BucketException;
 }
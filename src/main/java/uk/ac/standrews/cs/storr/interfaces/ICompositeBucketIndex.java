@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.interfaces;
+
+import uk.ac.standrews.cs.storr.impl.LXP;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+
+import java.util.List;
+
+/**
+ * An index of records by the values of an ordered list of fields, such as (surname, forename initial, birth year).
+ * Records are found by the values of all the fields, or of the first few of them.
+ * The range and prefix queries of {@link IOrderedBucketIndex}, and {@link #values(String)}, apply to the first field.
+ */
+public interface ICompositeBucketIndex<T extends LXP> extends IOrderedBucketIndex<T> {
+
+    /**
+     * @return the labels of the fields indexed, in order
+     */
+    List<String> getLabels();
+
+    /**
+     * @param leading_values - the values of the first fields, in order, e.g. ("SMITH", "J") or ("SMITH", "J", 1855);
+     *                       null matches a record in which the field is missing or null
+     * @return a stream of the records with these values in the first fields, in order of the values of all the fields
+     * @throws BucketException if more values are given than there are fields, a value cannot be indexed, or the underlying index cannot be read
+     */
+    IInputStream<T> lookup(Object... leading_values) throws BucketException;
+
+    /**
+     * @param leading_values - the values of the first fields, in order
+     * @return the ids of the records with these values in the first fields, in order of the values of all the fields
+     * @throws BucketException if more values are given than there are fields, a value cannot be indexed, or the underlying index cannot be read
+     */
+    List<Long> lookupValues(Object... leading_values) throws BucketException;
+}
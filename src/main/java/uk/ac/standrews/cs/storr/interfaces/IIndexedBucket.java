@@ -16,9 +16,11 @@
  */
 package uk.ac.standrews.cs.storr.interfaces;
 
+import uk.ac.standrews.cs.storr.impl.IndexKind;
 import uk.ac.standrews.cs.storr.impl.LXP;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Augments the functionality of a $$$bucket$$$bucket$$$ with indexes.
@@ -30,11 +32,37 @@ import java.io.IOException;
 public interface IIndexedBucket<T extends LXP> extends IBucket<T> {
 
     /**
+     * Adds a hash index over a label, built from the records already in the bucket.
+     *
      * @param label - the label to add - for example "name" will add an index of names over records such as [name: string, age: int]
      * @throws IOException if an IO exception occurs in the underlying implementation
      */
     void addIndex(String label) throws IOException;
 
+    /**
+     * Adds an index over a label, built from the records already in the bucket.
+     *
+     * @param label - the label to add
+     * @param kind  - the kind of index to keep over the label
+     * @throws IOException if an IO exception occurs in the underlying implementation, or the label is already indexed
+     */
+    void addIndex(String label, IndexKind kind) throws IOException;
+
+    /**
+     * Adds a composite index over several labels, built from the records already in the bucket. Records are found in
+     * the index by the values of all the labels, or of the first few of them.
+     *
+     * @param labels - the labels to index, in order, e.g. ["surname", "forename_initial", "birth_year"]
+     * @throws IOException if an IO exception occurs in the underlying implementation, or the labels are already indexed
+     */
+    void addIndex(List<String> labels) throws IOException;
+
+    /**
+     * @param labels - the labels over which you wish to acquire the composite index, in order
+     * @return the composite index associated with the labels or null if there isn't one.
+     */
+    ICompositeBucketIndex<T> getIndex(List<String> labels);
+
     /**
      * @param label - the label over which you wish to acquire the index
      * @return the index associated with the label or null if there isn't one.
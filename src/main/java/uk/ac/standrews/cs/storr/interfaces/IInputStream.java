@@ -19,13 +19,29 @@ package uk.ac.standrews.cs.storr.interfaces;
 
 import uk.ac.standrews.cs.storr.impl.PersistentObject;
 
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Provides an input stream of labelled cross product records.
- * Does not implement any functionality other than that provided by Iterable.
+ * Provides the functionality of Iterable, and Java streams over the records.
  * Provided for competeness to match @class IOutputStream
  *
  * @author al
  */
 public interface IInputStream<T extends PersistentObject> extends Iterable<T> {
 
+    /**
+     * @return a sequential stream of the records
+     */
+    default Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream of the records, which are read as they are reached in each split
+     */
+    default Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.interfaces;
+
+import uk.ac.standrews.cs.storr.impl.LXP;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+
+import java.util.List;
+
+/**
+ * An index that keeps the values of a field in order, so that it can answer range and prefix queries.
+ * Integral values (int and long) are ordered together, as are floating point values; values of different types are
+ * ordered by type. Bounds should be of the same type as the values indexed.
+ */
+public interface IOrderedBucketIndex<T extends LXP> extends IBucketIndex<T> {
+
+    /**
+     * @param from - the least value to be included, or null for no lower bound
+     * @param to   - the greatest value to be included, or null for no upper bound
+     * @return a stream of the records with values between the bounds inclusive, in order of value
+     * @throws BucketException if a bound cannot be indexed or the underlying index cannot be read
+     */
+    IInputStream<T> range(Object from, Object to) throws BucketException;
+
+    /**
+     * @param from - the least value to be included, or null for no lower bound
+     * @param to   - the greatest value to be included, or null for no upper bound
+     * @return the ids of the records with values between the bounds inclusive, in order of value
+     * @throws BucketException if a bound cannot be indexed or the underlying index cannot be read
+     */
+    List<Long> rangeValues(Object from, Object to) throws BucketException;
+
+    /**
+     * @param prefix - the start of the string values to be included, e.g. "MAC"
+     * @return a stream of the records with string values starting with the prefix, in order of value
+     * @throws BucketException if the underlying index cannot be read
+     */
+    IInputStream<T> prefix(String prefix) throws BucketException;
+
+    /**
+     * @param prefix - the start of the string values to be included
+     * @return the ids of the records with string values starting with the prefix, in order of value
+     * @throws BucketException if the underlying index cannot be read
+     */
+    List<Long> prefixValues(String prefix) throws BucketException;
+
+    /**
+     * @return a stream of all the indexed records, in order of value
+     * @throws BucketException if the underlying index cannot be read
+     */
+    IInputStream<T> ascending() throws BucketException;
+}
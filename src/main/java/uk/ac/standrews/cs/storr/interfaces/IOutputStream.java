@@ -23,7 +23,7 @@ import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
  * Provides the interface to an output stream of labelled cross product records.
  * Created by al on 28/04/2014.
  */
-public interface IOutputStream<T extends PersistentObject> {
+public interface IOutputStream<T extends PersistentObject> extends AutoCloseable {
 
     /**
      * Add a record to the stream
@@ -32,4 +32,19 @@ public interface IOutputStream<T extends PersistentObject> {
      * @throws BucketException if one is thrown during the underlying $$$bucket$$$bucket$$$ operations
      */
     void add(T record) throws BucketException;
+
+    /**
+     * Writes any records that have been added to the stream but not yet written
+     *
+     * @throws BucketException if one is thrown during the underlying $$$bucket$$$bucket$$$ operations
+     */
+    void flush() throws BucketException;
+
+    /**
+     * Writes any records that have been added to the stream but not yet written, and releases any resources held by the stream
+     *
+     * @throws BucketException if one is thrown during the underlying $$$bucket$$$bucket$$$ operations
+     */
+    @Override
+    void close() throws BucketException;
 }
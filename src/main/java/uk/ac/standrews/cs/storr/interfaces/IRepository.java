@@ -17,6 +17,8 @@
 package uk.ac.standrews.cs.storr.interfaces;
 
 import uk.ac.standrews.cs.storr.impl.BucketKind;
+import uk.ac.standrews.cs.storr.impl.BucketLayout;
+import uk.ac.standrews.cs.storr.impl.ChangeJournal;
 import uk.ac.standrews.cs.storr.impl.LXP;
 import uk.ac.standrews.cs.storr.impl.PersistentObject;
 import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
@@ -53,6 +55,31 @@ public interface IRepository {
      */
     <T extends PersistentObject> IBucket<T> makeBucket(final String name, BucketKind kind, Class<T> bucketType) throws RepositoryException;
 
+    /**
+     * This method creates a new $$$bucket$$$bucket$$$ whose records are arranged using the given layout.
+     *
+     * @param name   - the name of the $$$bucket$$$bucket$$$ to be created.
+     * @param kind   - the implementation kind of the $$$bucket$$$bucket$$$ - see @class BucketKind
+     * @param layout - the arrangement of records within the $$$bucket$$$bucket$$$ - see @class BucketLayout
+     * @return the newly created repository
+     * @throws RepositoryException if a $$$bucket$$$bucket$$$ with the name previously exists or if something goes wrong.
+     */
+    IBucket makeBucket(String name, BucketKind kind, BucketLayout layout) throws RepositoryException;
+
+    /**
+     * This method creates a new $$$bucket$$$bucket$$$ that is constrained to contain OID records compatible with T,
+     * whose records are arranged using the given layout.
+     *
+     * @param name       - the name of the $$$bucket$$$bucket$$$ to be created.
+     * @param kind       - the implementation kind of the $$$bucket$$$bucket$$$ - see @class BucketKind
+     * @param bucketType - the type being used to create instances in this $$$bucket$$$bucket$$$
+     * @param layout     - the arrangement of records within the $$$bucket$$$bucket$$$ - see @class BucketLayout
+     * @param <T>        the (Java) type which all LXP derived objects in this $$$bucket$$$bucket$$$ are expected to be of
+     * @return the newly created repository
+     * @throws RepositoryException if a $$$bucket$$$bucket$$$ with the name previously exists or if something goes wrong.
+     */
+    <T extends PersistentObject> IBucket<T> makeBucket(final String name, BucketKind kind, Class<T> bucketType, BucketLayout layout) throws RepositoryException;
+
     <T extends LXP> IIdtoLXPMap<T> makeIdtoLXPMap(final String name, Class<T> bucketType ) throws RepositoryException;
 
     <T extends LXP> IStringtoILXPMap<T> makeStringtoLXPMap(final String name, Class<T> bucketType ) throws RepositoryException;
@@ -134,4 +161,9 @@ public interface IRepository {
      * @return the store which contains the repository
      */
     IStore getStore();
+
+    /**
+     * @return the journal of changes made to the buckets in the repository, or null if the store uses the Watcher
+     */
+    ChangeJournal getChangeJournal();
 }
@@ -16,6 +16,9 @@
  */
 package uk.ac.standrews.cs.storr.interfaces;
 
+import uk.ac.standrews.cs.storr.impl.CacheManager;
+import uk.ac.standrews.cs.storr.impl.ChangeNotification;
+import uk.ac.standrews.cs.storr.impl.StringDictionary;
 import uk.ac.standrews.cs.storr.impl.TypeFactory;
 import uk.ac.standrews.cs.storr.impl.Watcher;
 import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
@@ -81,4 +84,19 @@ public interface IStore {
      * @return the watcher that is watching this store instance.
      */
     Watcher getWatcher();
+
+    /**
+     * @return the mechanism by which buckets in this store learn of changes made by other processes.
+     */
+    ChangeNotification getChangeNotification();
+
+    /**
+     * @return the dictionary of strings recurring in the records of this store.
+     */
+    StringDictionary getStringDictionary();
+
+    /**
+     * @return the manager dividing the memory budget of this store among the caches of its buckets.
+     */
+    CacheManager getCacheManager();
 }
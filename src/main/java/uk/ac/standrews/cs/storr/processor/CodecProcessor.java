@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.processor;
+
+import uk.ac.standrews.cs.storr.impl.PersistentObjectCodec;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates a {@link PersistentObjectCodec} for each concrete class with fields annotated as LXP_SCALAR, LXP_REF,
+ * LXP_LIST or JPO_FIELD. The generated codec constructs instances of the class directly and, for JPOs, reads and
+ * writes the annotated fields directly; fields and constructors that are not accessible from the package of the class
+ * are left to the reflective codec.
+ * <p>
+ * The processor is registered as a service, so is run by javac for any code compiled with storr on its class path.
+ */
+@SupportedAnnotationTypes({
+        "uk.ac.standrews.cs.storr.types.LXP_SCALAR",
+        "uk.ac.standrews.cs.storr.types.LXP_REF",
+        "uk.ac.standrews.cs.storr.types.LXP_LIST",
+        "uk.ac.standrews.cs.storr.types.JPO_FIELD"})
+public class CodecProcessor extends AbstractProcessor {
+
+    private static final String JPO_CLASS_NAME = "uk.ac.standrews.cs.storr.impl.JPO";
+    private static final String JPO_FIELD_NAME = "uk.ac.standrews.cs.storr.types.JPO_FIELD";
+    private static final String PERSISTENT_OBJECT_EXCEPTION_NAME = "uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException";
+    private static final String[] JSON_CONSTRUCTOR_PARAMETERS = {"long", "uk.ac.standrews.cs.utilities.JSONReader", "uk.ac.standrews.cs.storr.interfaces.IBucket"};
+
+    private final Set<String> generated = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment round) {
+
+        final Set<TypeElement> classes = new LinkedHashSet<>();
+        for (final TypeElement annotation : annotations) {
+            for (final Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.FIELD && element.getEnclosingElement() instanceof TypeElement) {
+                    classes.add((TypeElement) element.getEnclosingElement());
+                }
+            }
+        }
+
+        for (final TypeElement record_class : classes) {
+            if (isCodecTarget(record_class) && generated.add(record_class.getQualifiedName().toString())) {
+                try {
+                    generate(record_class);
+
+                } catch (final IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Cannot generate codec: " + e.getMessage(), record_class);
+                }
+            }
+        }
+        return false; // the annotations are also used at run time
+    }
+
+    private static boolean isCodecTarget(final TypeElement record_class) {
+
+        final Set<Modifier> modifiers = record_class.getModifiers();
+        return record_class.getKind() == ElementKind.CLASS
+                && !modifiers.contains(Modifier.ABSTRACT)
+                && !modifiers.contains(Modifier.PRIVATE)
+                && (record_class.getNestingKind() == NestingKind.TOP_LEVEL || modifiers.contains(Modifier.STATIC));
+    }
+
+    private void generate(final TypeElement record_class) throws IOException {
+
+        final String package_name = processingEnv.getElementUtils().getPackageOf(record_class).getQualifiedName().toString();
+        final String binary_name = processingEnv.getElementUtils().getBinaryName(record_class).toString();
+        final String codec_name = binary_name.substring(package_name.isEmpty() ? 0 : package_name.length() + 1) + PersistentObjectCodec.GENERATED_CODEC_SUFFIX;
+        final String class_name = record_class.getQualifiedName().toString();
+
+        final List<VariableElement> fields = isJPO(record_class) ? accessibleJPOFields(record_class, package_name) : Collections.emptyList();
+
+        try (final PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(package_name.isEmpty() ? codec_name : package_name + "." + codec_name, record_class).openWriter())) {
+
+            if (!package_name.isEmpty()) {
+                out.println("package " + package_name + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Codec for " + class_name + ", generated by " + CodecProcessor.class.getName() + ".");
+            out.println(" */");
+            out.println("@SuppressWarnings(\"unchecked\")");
+            out.println("public final class " + codec_name + " extends " + PersistentObjectCodec.class.getName() + "<" + class_name + "> {");
+            out.println();
+            out.println("    public " + codec_name + "() {");
+            out.println("        super(" + class_name + ".class);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public boolean isGenerated() {");
+            out.println("        return true;");
+            out.println("    }");
+
+            if (hasAccessibleConstructor(record_class, package_name, new String[0])) {
+                out.println();
+                out.println("    @Override");
+                out.println("    public " + class_name + " newInstance() {");
+                out.println("        return new " + class_name + "();");
+                out.println("    }");
+            }
+
+            if (hasAccessibleConstructor(record_class, package_name, JSON_CONSTRUCTOR_PARAMETERS)) {
+                out.println();
+                out.println("    @Override");
+                out.println("    public " + class_name + " newInstance(final long id, final uk.ac.standrews.cs.utilities.JSONReader reader, final uk.ac.standrews.cs.storr.interfaces.IBucket bucket) throws " + PERSISTENT_OBJECT_EXCEPTION_NAME + " {");
+                out.println("        return new " + class_name + "(id, reader, bucket);");
+                out.println("    }");
+            }
+
+            if (!fields.isEmpty()) {
+                out.println();
+                out.println("    @Override");
+                out.println("    public Object getField(final " + class_name + " record, final String name) throws " + PERSISTENT_OBJECT_EXCEPTION_NAME + " {");
+                out.println("        switch (name) {");
+                for (final VariableElement field : fields) {
+                    out.println("            case \"" + field.getSimpleName() + "\":");
+                    out.println("                return record." + field.getSimpleName() + ";");
+                }
+                out.println("            default:");
+                out.println("                return super.getField(record, name);");
+                out.println("        }");
+                out.println("    }");
+
+                out.println();
+                out.println("    @Override");
+                out.println("    public void setField(final " + class_name + " record, final String name, final Object value) throws " + PERSISTENT_OBJECT_EXCEPTION_NAME + " {");
+                out.println("        try {");
+                out.println("            switch (name) {");
+                for (final VariableElement field : fields) {
+                    out.println("                case \"" + field.getSimpleName() + "\":");
+                    out.println("                    record." + field.getSimpleName() + " = " + conversion(field.asType()) + ";");
+                    out.println("                    return;");
+                }
+                out.println("                default:");
+                out.println("                    super.setField(record, name, value);");
+                out.println("            }");
+                out.println("        } catch (final ClassCastException | NullPointerException e) {");
+                out.println("            throw new " + PERSISTENT_OBJECT_EXCEPTION_NAME + "(\"Cannot access field: \" + name + \",\" + e.getMessage());");
+                out.println("        }");
+                out.println("    }");
+            }
+            out.println("}");
+        }
+    }
+
+    private boolean isJPO(final TypeElement record_class) {
+
+        final TypeElement jpo = processingEnv.getElementUtils().getTypeElement(JPO_CLASS_NAME);
+        return jpo != null && processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(record_class.asType()), processingEnv.getTypeUtils().erasure(jpo.asType()));
+    }
+
+    /*
+     * The non-static JPO_FIELD fields of the class and its superclasses that can be assigned from the package of the class.
+     * Fields hidden by fields of the same name in subclasses are left to the reflective codec.
+     */
+    private List<VariableElement> accessibleJPOFields(final TypeElement record_class, final String package_name) {
+
+        final List<VariableElement> result = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+
+        TypeElement type = record_class;
+        while (type != null) {
+            for (final VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+
+                final boolean annotated = hasAnnotation(field, JPO_FIELD_NAME);
+                if (annotated && names.add(field.getSimpleName().toString()) && !field.getModifiers().contains(Modifier.STATIC)
+                        && !field.getModifiers().contains(Modifier.FINAL) && isAccessible(field, package_name)) {
+                    result.add(field);
+                }
+            }
+            final TypeMirror superclass = type.getSuperclass();
+            type = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return result;
+    }
+
+    private boolean hasAccessibleConstructor(final TypeElement record_class, final String package_name, final String[] parameter_types) {
+
+        for (final ExecutableElement constructor : ElementFilter.constructorsIn(record_class.getEnclosedElements())) {
+
+            final List<? extends VariableElement> parameters = constructor.getParameters();
+            if (parameters.size() != parameter_types.length || !isAccessible(constructor, package_name) || !throwsOnly(constructor, PERSISTENT_OBJECT_EXCEPTION_NAME)) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < parameter_types.length; i++) {
+                matches &= processingEnv.getTypeUtils().erasure(parameters.get(i).asType()).toString().equals(parameter_types[i]);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAccessible(final Element member, final String package_name) {
+
+        final Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        final String member_package = processingEnv.getElementUtils().getPackageOf(member).getQualifiedName().toString();
+        return member_package.equals(package_name);
+    }
+
+    /*
+     * True if the only checked exception declared by the constructor is the given one.
+     */
+    private boolean throwsOnly(final ExecutableElement constructor, final String exception_name) {
+
+        final TypeMirror runtime_exception = processingEnv.getElementUtils().getTypeElement(RuntimeException.class.getName()).asType();
+        final TypeMirror error = processingEnv.getElementUtils().getTypeElement(Error.class.getName()).asType();
+
+        for (final TypeMirror thrown : constructor.getThrownTypes()) {
+            if (!thrown.toString().equals(exception_name)
+                    && !processingEnv.getTypeUtils().isSubtype(thrown, runtime_exception)
+                    && !processingEnv.getTypeUtils().isSubtype(thrown, error)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasAnnotation(final Element element, final String annotation_name) {
+
+        for (final AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (annotation.getAnnotationType().toString().equals(annotation_name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * An expression converting the Object variable value to the type of a field, as values read from a record are
+     * boxed and numbers may have been read with a different width.
+     */
+    private String conversion(final TypeMirror type) {
+
+        switch (type.getKind()) {
+            case INT:
+                return "((Number) value).intValue()";
+            case LONG:
+                return "((Number) value).longValue()";
+            case DOUBLE:
+                return "((Number) value).doubleValue()";
+            case FLOAT:
+                return "((Number) value).floatValue()";
+            case SHORT:
+                return "((Number) value).shortValue()";
+            case BYTE:
+                return "((Number) value).byteValue()";
+            case BOOLEAN:
+                return "(Boolean) value";
+            case CHAR:
+                return "(Character) value";
+            default:
+                return "(" + processingEnv.getTypeUtils().erasure(type) + ") value";
+        }
+    }
+}
@@ -89,16 +89,44 @@ public class Types {
      */
     static <T extends LXP> boolean checkStructuralConsistency(final T record, IReferenceType ref_type) {
 
-        Set<String> record_keys = record.getMetaData().getFields();
+        return checkFieldsPresent(record, ref_type) && checkValuesConsistent(record, ref_type);
+    }
 
-        Collection<String> required_labels = ref_type.getLabels();
+    /**
+     * Checks that a record has all the fields required by a type.
+     * This depends only on the metadata of the record, so need only be checked once for records sharing metadata.
+     *
+     * @param record   whose fields are to be checked
+     * @param ref_type the type being checked against
+     * @param <T>      the type of the record being checked
+     * @return true if all the required fields are present
+     */
+    public static <T extends LXP> boolean checkFieldsPresent(final T record, IReferenceType ref_type) {
+
+        Set<String> record_keys = record.getMetaData().getFields();
 
-        for (String label : required_labels) {
+        for (String label : ref_type.getLabels()) {
             if (!record_keys.contains(label)) {
                 // required label not present
                 ErrorHandling.error( "required label " + label + " not present in record " );
                 return false;
             }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the values of the fields required by a type are consistent with the types of those fields.
+     * The record must contain all the required fields - see @method checkFieldsPresent.
+     *
+     * @param record   whose values are to be checked
+     * @param ref_type the type being checked against
+     * @param <T>      the type of the record being checked
+     * @return true if all the values are consistent
+     */
+    public static <T extends LXP> boolean checkValuesConsistent(final T record, IReferenceType ref_type) {
+
+        for (String label : ref_type.getLabels()) {
             // required label is present now check the types of the keys in the record
             try {
                 Object value = record.get(label);
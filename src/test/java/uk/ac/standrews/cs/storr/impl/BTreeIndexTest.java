@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IIndexedBucket;
+import uk.ac.standrews.cs.storr.interfaces.IOrderedBucketIndex;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BTreeIndexTest extends CommonTest {
+
+    private static final int NUMBER_OF_RECORDS = 5000; // enough for internal nodes to split
+    private static final String[] SURNAMES = {"MACDONALD", "MACKAY", "MACLEOD", "MAXWELL", "MCDONALD", "SMITH", "MAC"};
+
+    @Test
+    public void encodingsAreOrderedAsValues() throws BucketException {
+
+        final Object[] ascending = {false, true, Long.MIN_VALUE, -2, 0, 1L, Long.MAX_VALUE,
+                Double.NEGATIVE_INFINITY, -1.5, -0.0, 0.0, 1e-300, 2.5, Double.POSITIVE_INFINITY,
+                "", "\u0000", "\u0000a", "a", "a\u0000", "ab", "é"};
+
+        for (int i = 0; i < ascending.length - 1; i++) {
+            assertTrue(ascending[i] + " < " + ascending[i + 1], IndexKeys.compare(IndexKeys.encode(ascending[i]), IndexKeys.encode(ascending[i + 1])) < 0);
+        }
+        for (final Object value : ascending) {
+            final byte[] encoding = IndexKeys.encode(value);
+            assertEquals(encoding.length, IndexKeys.encodedLength(encoding, 0));
+            final Object decoded = IndexKeys.decode(encoding, 0);
+            assertEquals(value instanceof Integer ? (long) (Integer) value : value, decoded);
+        }
+    }
+
+    @Test
+    public void rangeAndPrefixQueries() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("ORDERED", BucketKind.INDEXED);
+        bucket.addIndex("year", IndexKind.ORDERED);
+        bucket.addIndex("surname", IndexKind.ORDERED);
+
+        final Random random = new Random(42);
+        final TreeMap<Integer, List<Long>> years = new TreeMap<>();
+        final TreeMap<String, List<Long>> surnames = new TreeMap<>();
+
+        for (int i = 0; i < NUMBER_OF_RECORDS; i++) {
+
+            final int year = 1800 + random.nextInt(100);
+            final String surname = SURNAMES[random.nextInt(SURNAMES.length)] + " " + i;
+
+            final DynamicLXP record = new DynamicLXP();
+            record.put("year", year);
+            record.put("surname", surname);
+            bucket.makePersistent(record);
+
+            add(years, year, record.getId());
+            add(surnames, surname, record.getId());
+        }
+
+        final IOrderedBucketIndex<DynamicLXP> year_index = (IOrderedBucketIndex<DynamicLXP>) bucket.getIndex("year");
+        final IOrderedBucketIndex<DynamicLXP> surname_index = (IOrderedBucketIndex<DynamicLXP>) bucket.getIndex("surname");
+
+        assertEquals(flatten(years.subMap(1855, true, 1860, true)), year_index.rangeValues(1855, 1860L));
+        assertEquals(flatten(years.headMap(1810, true)), year_index.rangeValues(null, 1810));
+        assertEquals(flatten(years), year_index.rangeValues(null, null));
+        assertEquals(sorted(years.get(1877)), year_index.values("1877")); // ordered by id within a value
+        assertTrue(year_index.values("not a year").isEmpty());
+        assertEquals(100, year_index.keySet().size());
+
+        assertEquals(flatten(surnames.subMap("MAC", "MAD")), surname_index.prefixValues("MAC"));
+        assertTrue(surname_index.prefixValues("MACZ").isEmpty());
+        assertEquals(flatten(surnames.subMap("S", "T")), surname_index.rangeValues("S", "T"));
+
+        int previous = Integer.MIN_VALUE;
+        int count = 0;
+        for (final DynamicLXP record : year_index.range(1855, 1860)) {
+            final int year = (Integer) record.get("year");
+            assertTrue(year >= previous && year >= 1855 && year <= 1860);
+            previous = year;
+            count++;
+        }
+        assertEquals(flatten(years.subMap(1855, true, 1860, true)).size(), count);
+    }
+
+    private static <K> void add(final Map<K, List<Long>> map, final K key, final long id) {
+
+        if (!map.containsKey(key)) {
+            map.put(key, new ArrayList<Long>());
+        }
+        map.get(key).add(id);
+    }
+
+    private static List<Long> flatten(final SortedMap<?, List<Long>> map) {
+
+        final List<Long> ids = new ArrayList<>();
+        for (final List<Long> value_ids : map.values()) {
+            ids.addAll(sorted(value_ids));
+        }
+        return ids;
+    }
+
+    private static List<Long> sorted(final List<Long> ids) {
+
+        final List<Long> copy = new ArrayList<>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+}
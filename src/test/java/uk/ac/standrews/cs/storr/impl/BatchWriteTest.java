@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.storr.interfaces.IOutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchWriteTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "BATCH";
+
+    @Test
+    public synchronized void batchIsWrittenToDirectoryBucket() throws RepositoryException, BucketException {
+
+        checkBatchIsWritten(repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class));
+    }
+
+    @Test
+    public synchronized void batchIsWrittenToSegmentBucket() throws RepositoryException, BucketException {
+
+        checkBatchIsWritten(repository.makeBucket(BUCKET_NAME, BucketKind.SEGMENTED, Person.class));
+    }
+
+    @Test
+    public synchronized void existingRecordsAreRejected() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        final Person existing = new Person(1, "home");
+        bucket.makePersistent(existing);
+
+        try {
+            bucket.makePersistentAll(Arrays.asList(new Person(2, "home"), existing));
+            fail("existing record overwritten");
+        } catch (final BucketException e) {
+            // expected
+        }
+        assertEquals(1, bucket.size());
+    }
+
+    @Test
+    public synchronized void outputStreamWritesInBatches() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        final IOutputStream<Person> stream = new BucketBackedOutputStream<>(bucket, 10);
+
+        for (int i = 0; i < 25; i++) {
+            stream.add(new Person(i, "home"));
+        }
+        assertEquals(20, bucket.size());
+
+        stream.flush();
+        assertEquals(25, bucket.size());
+    }
+
+    @Test
+    public synchronized void asyncOutputStreamWritesAllRecords() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+
+        try (final IOutputStream<Person> stream = new AsyncBucketBackedOutputStream<>(bucket, 100, 4, 50)) {
+            for (int i = 0; i < 2000; i++) {
+                stream.add(new Person(i, "home"));
+            }
+            stream.flush();
+            assertEquals(2000, bucket.size());
+        }
+    }
+
+    @Test
+    public synchronized void asyncOutputStreamReportsFailures() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        final Person existing = new Person(1, "home");
+        bucket.makePersistent(existing);
+
+        final IOutputStream<Person> stream = new AsyncBucketBackedOutputStream<>(bucket, 10, 2, 5);
+        stream.add(existing);
+        try {
+            stream.close();
+            fail("failure not reported");
+        } catch (final BucketException e) {
+            // expected
+        }
+    }
+
+    private static void checkBatchIsWritten(final IBucket<Person> bucket) throws BucketException {
+
+        final List<Person> records = new ArrayList<>();
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final Person record = new Person(i, "home");
+            records.add(record);
+            ids.add(record.getId());
+        }
+
+        bucket.makePersistentAll(records);
+
+        assertEquals(ids, bucket.getOids());
+        assertEquals(new Person(500, "home"), bucket.getObjectById(ids.get(500)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BucketLayoutTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "SHARDS";
+
+    @Before
+    public void setUp() throws RepositoryException, IOException, StoreException, URISyntaxException {
+
+        super.setUp();
+        store = new Store(store_path, ChangeNotification.JOURNAL); // the Watcher does not see changes to shards
+        repository = store.getRepository(REPOSITORY_NAME);
+    }
+
+    @Test
+    public synchronized void shardedRecordsAreRetrievable() throws RepositoryException, BucketException, StoreException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class, BucketLayout.SHARDED);
+        final List<Long> ids = persistRecords(bucket, 50);
+
+        assertEquals(BucketLayout.SHARDED, ((DirectoryBackedBucket) bucket).getLayout());
+        assertTrue(Files.exists(bucket.filePath(ids.get(0))));
+        assertFalse(Files.exists(repository.getRepositoryPath().resolve(BUCKET_NAME).resolve(String.valueOf(ids.get(0)))));
+        assertEquals(new HashSet<>(ids), new HashSet<>(bucket.getOids()));
+        assertEquals(50, bucket.size());
+
+        final IBucket<Person> reopened = new Store(store_path, ChangeNotification.JOURNAL).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        assertEquals(BucketLayout.SHARDED, ((DirectoryBackedBucket) reopened).getLayout());
+        assertEquals(new Person(7, "home"), reopened.getObjectById(ids.get(7)));
+    }
+
+    @Test
+    public synchronized void layoutCanBeChanged() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        final List<Long> ids = persistRecords(bucket, 50);
+
+        final DirectoryBackedBucket<Person> directory_bucket = (DirectoryBackedBucket<Person>) bucket;
+        assertEquals(BucketLayout.FLAT, directory_bucket.getLayout());
+
+        directory_bucket.changeLayout(BucketLayout.SHARDED, 4);
+        assertEquals(new HashSet<>(ids), new HashSet<>(bucket.getOids()));
+        assertEquals(new Person(3, "home"), bucket.getObjectById(ids.get(3)));
+
+        directory_bucket.changeLayout(BucketLayout.FLAT, 4);
+        assertEquals(new HashSet<>(ids), new HashSet<>(bucket.getOids()));
+        assertEquals(50, bucket.size());
+        assertTrue(Files.exists(repository.getRepositoryPath().resolve(BUCKET_NAME).resolve(String.valueOf(ids.get(9)))));
+    }
+
+    @Test(expected = RepositoryException.class)
+    public synchronized void shardsAreNotUsedWithTheWatcher() throws RepositoryException, StoreException {
+
+        new Store(store_path).getRepository(REPOSITORY_NAME).makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class, BucketLayout.SHARDED);
+    }
+
+    private static List<Long> persistRecords(final IBucket<Person> bucket, final int count) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Person record = new Person(i, "home");
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+}
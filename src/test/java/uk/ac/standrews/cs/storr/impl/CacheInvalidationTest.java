@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.impl.transaction.interfaces.ITransaction;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.*;
+
+public class CacheInvalidationTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "CACHED";
+
+    private IBucket<Person> bucket;
+    private IBucket<Person> other_bucket;
+
+    @Before
+    public void setUp() throws RepositoryException, IOException, StoreException, URISyntaxException {
+
+        super.setUp();
+        store.getWatcher().stopService(); // events are delivered explicitly by the tests
+
+        bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        final Store other_store = new Store(store_path);
+        other_store.getWatcher().stopService();
+        other_bucket = other_store.getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+    }
+
+    @Test
+    public synchronized void ownWritesDoNotInvalidate() throws BucketException {
+
+        final Person person = new Person(1, "home");
+        bucket.makePersistent(person);
+
+        bucket.invalidateCache(Collections.singletonMap(String.valueOf(person.getId()), ENTRY_MODIFY));
+
+        assertSame(person, bucket.getObjectById(person.getId()));
+    }
+
+    @Test
+    public synchronized void externalWritesInvalidateOnlyTheirRecords() throws BucketException {
+
+        final Person person1 = new Person(1, "home");
+        final Person person2 = new Person(2, "home");
+        other_bucket.makePersistent(person1);
+        other_bucket.makePersistent(person2);
+
+        final Person cached1 = bucket.getObjectById(person1.getId());
+        final Person cached2 = bucket.getObjectById(person2.getId());
+
+        bucket.invalidateCache(Collections.singletonMap(String.valueOf(person1.getId()), ENTRY_MODIFY));
+
+        final Person refreshed1 = bucket.getObjectById(person1.getId());
+        assertNotSame(cached1, refreshed1);
+        assertEquals(cached1, refreshed1);
+        assertSame(cached2, bucket.getObjectById(person2.getId()));
+    }
+
+    @Test
+    public synchronized void externalDeletionsAreSeen() throws BucketException {
+
+        final Person person1 = new Person(1, "home");
+        final Person person2 = new Person(2, "home");
+        other_bucket.makePersistent(person1);
+        other_bucket.makePersistent(person2);
+
+        final Person cached2 = bucket.getObjectById(person2.getId());
+        assertEquals(2, bucket.size());
+
+        other_bucket.delete(person1.getId());
+        bucket.invalidateCache(Collections.singletonMap(String.valueOf(person1.getId()), ENTRY_DELETE));
+
+        assertFalse(bucket.contains(person1.getId()));
+        assertEquals(Collections.singletonList(person2.getId()), bucket.getOids());
+        assertEquals(1, bucket.size());
+        assertSame(cached2, bucket.getObjectById(person2.getId()));
+    }
+
+    @Test(expected = BucketException.class)
+    public synchronized void ownDeletionsAreSeen() throws BucketException {
+
+        final Person person = new Person(1, "home");
+        bucket.makePersistent(person);
+        assertSame(person, bucket.getObjectById(person.getId()));
+
+        bucket.delete(person.getId());
+        bucket.getObjectById(person.getId());
+    }
+
+    @Test
+    public synchronized void ownUpdatesAreSeen() throws Exception {
+
+        final Person person = new Person(1, "home");
+        bucket.makePersistent(person);
+        assertSame(person, bucket.getObjectById(person.getId()));
+
+        final Person copy = other_bucket.getObjectById(person.getId());
+        copy.address = "away";
+
+        final ITransaction transaction = store.getTransactionManager().beginTransaction();
+        bucket.update(copy);
+        transaction.commit();
+
+        assertEquals("away", bucket.getObjectById(person.getId()).address);
+    }
+}
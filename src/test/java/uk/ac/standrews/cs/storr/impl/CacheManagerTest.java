@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CacheManagerTest extends CommonTest {
+
+    private static final long BUDGET = 1 << 20;
+
+    @Test
+    public void budgetFollowsUse() throws RepositoryException, BucketException {
+
+        final CacheManager manager = store.getCacheManager();
+        manager.setByteBudget(BUDGET);
+
+        final DirectoryBackedBucket<DynamicLXP> busy = makeBucket("BUSY");
+        final DirectoryBackedBucket<DynamicLXP> idle = makeBucket("IDLE");
+        assertEquals(CachePolicy.FREQUENCY, busy.getCachePolicy());
+
+        final List<Long> ids = addRecords(busy, 100);
+        addRecords(idle, 100);
+
+        for (int round = 0; round < 10; round++) {
+            for (final long id : ids) {
+                busy.getObjectById(id);
+            }
+        }
+        manager.rebalance();
+
+        assertTrue(busy.getCacheByteBudget() > idle.getCacheByteBudget());
+        assertTrue(busy.getCacheByteBudget() + idle.getCacheByteBudget() <= BUDGET);
+        assertTrue(manager.getCachedBytes() <= BUDGET);
+    }
+
+    @Test
+    public void cachesShrinkWithBudget() throws RepositoryException, BucketException {
+
+        final CacheManager manager = store.getCacheManager();
+        manager.setByteBudget(BUDGET);
+
+        final DirectoryBackedBucket<DynamicLXP> bucket = makeBucket("SHRUNK");
+        addRecords(bucket, 1000);
+        assertTrue(manager.getCachedBytes() > 20000);
+
+        manager.setByteBudget(20000);
+        assertTrue(bucket.getCacheByteBudget() <= 20000);
+        assertTrue(manager.getCachedBytes() <= 20000);
+    }
+
+    @Test
+    public void bucketsOpenedBeforeTheBudgetTakeAShare() throws RepositoryException, BucketException {
+
+        final DirectoryBackedBucket<DynamicLXP> early = makeBucket("EARLY");
+        final DirectoryBackedBucket<DynamicLXP> weak = makeBucket("WEAK");
+        weak.setCachePolicy(CachePolicy.WEAK);
+        assertEquals(CachePolicy.WEAK, early.getCachePolicy());
+
+        final CacheManager manager = store.getCacheManager();
+        manager.setByteBudget(BUDGET);
+
+        assertEquals(CachePolicy.FREQUENCY, early.getCachePolicy());
+        assertTrue(early.getCacheByteBudget() > 0);
+        assertEquals(CachePolicy.WEAK, weak.getCachePolicy());
+    }
+
+    private DirectoryBackedBucket<DynamicLXP> makeBucket(final String name) throws RepositoryException {
+
+        final IBucket<DynamicLXP> bucket = repository.makeBucket(name, BucketKind.DIRECTORYBACKED);
+        return (DirectoryBackedBucket<DynamicLXP>) bucket;
+    }
+
+    private static List<Long> addRecords(final DirectoryBackedBucket<DynamicLXP> bucket, final int count) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final DynamicLXP record = new DynamicLXP();
+            record.put("name", "record number " + i);
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+}
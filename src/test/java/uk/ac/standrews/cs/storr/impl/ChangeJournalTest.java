@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.impl.transaction.exceptions.TransactionFailedException;
+import uk.ac.standrews.cs.storr.impl.transaction.interfaces.ITransaction;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.storr.interfaces.IStore;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ChangeJournalTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "JOURNALLED";
+
+    private IStore writer_store;
+    private IBucket<Person> writer;
+    private IBucket<Person> reader;
+
+    @Before
+    public void setUp() throws RepositoryException, IOException, StoreException, URISyntaxException {
+
+        super.setUp();
+
+        writer_store = new Store(store_path, ChangeNotification.JOURNAL);
+        writer = writer_store.getRepository(REPOSITORY_NAME).makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        reader = new Store(store_path, ChangeNotification.JOURNAL).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+    }
+
+    @Test
+    public synchronized void ownWritesDoNotInvalidate() throws BucketException {
+
+        final Person person = new Person(1, "home");
+        writer.makePersistent(person);
+
+        assertSame(person, writer.getObjectById(person.getId()));
+    }
+
+    @Test
+    public synchronized void deletionsAreSeen() throws BucketException {
+
+        final Person person1 = new Person(1, "home");
+        final Person person2 = new Person(2, "home");
+        writer.makePersistent(person1);
+        writer.makePersistent(person2);
+
+        final Person cached2 = reader.getObjectById(person2.getId());
+        reader.getObjectById(person1.getId());
+
+        writer.delete(person1.getId());
+
+        assertEquals(Collections.singletonList(person2.getId()), reader.getOids());
+        assertFalse(reader.contains(person1.getId()));
+        assertSame(cached2, reader.getObjectById(person2.getId()));
+    }
+
+    @Test
+    public synchronized void updatesAreSeen() throws BucketException, StoreException, TransactionFailedException {
+
+        final Person person = new Person(1, "home");
+        writer.makePersistent(person);
+
+        final Person cached = reader.getObjectById(person.getId());
+
+        final ITransaction txn = writer_store.getTransactionManager().beginTransaction();
+        person.address = "away";
+        writer.update(person);
+        txn.commit();
+
+        final Person updated = reader.getObjectById(person.getId());
+        assertNotSame(cached, updated);
+        assertEquals("away", updated.address);
+    }
+}
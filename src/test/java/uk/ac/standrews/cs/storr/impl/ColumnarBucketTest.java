@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarBucketTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "COLUMNS";
+
+    /*
+     * The type of a StaticLXP class is held statically, so typed LXP buckets are only usable with the first store
+     * created in the JVM; all the checks on typed columnar buckets are therefore made in one test.
+     */
+    @Test
+    public synchronized void recordsAreMaterializedAndScanned() throws RepositoryException, BucketException, StoreException {
+
+        final IBucket<Birth> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.COLUMNAR, Birth.class);
+        final List<Long> ids = persistRecords(bucket, 20);
+
+        assertEquals(new HashSet<>(ids), new HashSet<>(bucket.getOids()));
+        assertEquals(20, bucket.size());
+
+        final IBucket<Birth> reopened = new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Birth.class);
+        final Birth record = reopened.getObjectById(ids.get(7));
+        assertEquals("surname 7", record.getString(Birth.SURNAME));
+        assertEquals("forename 7", record.getString(Birth.FORENAME));
+        assertEquals(1807, record.getInt(Birth.YEAR));
+        assertEquals("place 7", record.getString(Birth.PLACE));
+        assertEquals(1007L, record.getLong(Birth.REGISTRATION));
+        assertEquals(10.0, record.getDouble(Birth.WEIGHT), 0.0);
+        assertFalse(record.getBoolean(Birth.REGISTERED));
+
+        bucket.delete(ids.get(0));
+
+        final Iterator<Birth> scan = ((ColumnarBucket<Birth>) bucket).scan(Birth.SURNAME, Birth.YEAR);
+        int count = 0;
+        while (scan.hasNext()) {
+            final Birth scanned = scan.next();
+            count++;
+            assertEquals(ids.get(count), (Long) scanned.getId());
+            assertEquals("surname " + count, scanned.getString(Birth.SURNAME));
+            assertEquals(1800 + count, scanned.getInt(Birth.YEAR));
+            assertNull(scanned.get(Birth.PLACE));
+        }
+        assertEquals(19, count);
+
+        reopened.delete(ids.get(1)); // seen through the change in length of the rows file
+        assertFalse(bucket.contains(ids.get(1)));
+        assertEquals(18, bucket.size());
+
+        assertEquals("surname 3", bucket.getObjectById(ids.get(3)).getString(Birth.SURNAME));
+        reopened.delete(ids.get(3)); // a cached record deleted by another store is not returned
+        try {
+            bucket.getObjectById(ids.get(3));
+            fail("deleted record returned");
+        } catch (final BucketException e) {
+            assertEquals(17, bucket.size());
+        }
+
+        bucket.invalidateCache(); // reopens the files
+        assertEquals(17, bucket.getOids().size());
+        assertEquals("surname 2", bucket.getObjectById(ids.get(2)).getString(Birth.SURNAME));
+    }
+
+    @Test(expected = RepositoryException.class)
+    public synchronized void untypedColumnarBucketIsRejected() throws RepositoryException {
+
+        repository.makeBucket(BUCKET_NAME, BucketKind.COLUMNAR);
+    }
+
+    private static List<Long> persistRecords(final IBucket<Birth> bucket, final int count) throws BucketException {
+
+        final List<Birth> records = new ArrayList<>();
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Birth record = new Birth("surname " + i, "forename " + i, 1800 + i, "place " + i);
+            record.put(Birth.REGISTRATION, 1000L + i);
+            record.put(Birth.WEIGHT, 3.0 + i);
+            record.put(Birth.REGISTERED, i % 2 == 0);
+            records.add(record);
+            ids.add(record.getId());
+        }
+        bucket.makePersistentAll(records);
+        return ids;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.interfaces.ICompositeBucketIndex;
+import uk.ac.standrews.cs.storr.interfaces.IIndexedBucket;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompositeIndexTest extends CommonTest {
+
+    private static final List<String> BLOCKING_KEY = Arrays.asList("surname", "initial", "year");
+
+    @Test
+    public void recordsAreFoundByLeadingValues() throws Exception {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("COMPOSITE", BucketKind.INDEXED);
+
+        final Map<List<Object>, List<Long>> expected = new HashMap<>();
+        final String[] surnames = {"SMITH", "SMITHSON", "JONES"};
+        final String[] initials = {"J", "M", null};
+
+        for (int i = 0; i < 600; i++) {
+            final List<Object> values = Arrays.asList(surnames[i % 3], initials[(i / 3) % 3], 1850 + i % 7);
+            final DynamicLXP record = new DynamicLXP();
+            record.put("surname", values.get(0));
+            if (values.get(1) != null) {
+                record.put("initial", values.get(1)); // otherwise missing, so indexed as null
+            }
+            record.put("year", values.get(2));
+            bucket.makePersistent(record);
+            expected.computeIfAbsent(values, key -> new ArrayList<>()).add(record.getId());
+
+            if (i == 300) {
+                bucket.addIndex(BLOCKING_KEY); // half built from existing records, half as they are written
+            }
+        }
+
+        final ICompositeBucketIndex<DynamicLXP> index = bucket.getIndex(BLOCKING_KEY);
+        assertEquals(BLOCKING_KEY, index.getLabels());
+        assertSame(index, bucket.getIndex("surname,initial,year"));
+
+        assertEquals(sorted(expected.get(Arrays.asList("SMITH", "J", 1853))), index.lookupValues("SMITH", "J", 1853));
+        assertEquals(sorted(expected.get(Arrays.asList("JONES", null, 1850))), index.lookupValues("JONES", null, 1850L));
+        assertTrue(index.lookupValues("SMITH", "J", 1900).isEmpty());
+
+        assertEquals(idsMatching(expected, "SMITH", "M"), sorted(index.lookupValues("SMITH", "M")));
+        assertEquals(idsMatching(expected, "SMITH"), sorted(index.lookupValues("SMITH"))); // not SMITHSON
+        assertEquals(idsMatching(expected, "SMITH"), sorted(index.values("SMITH")));
+        final List<Long> smiths_and_smithsons = new ArrayList<>(idsMatching(expected, "SMITH"));
+        smiths_and_smithsons.addAll(idsMatching(expected, "SMITHSON"));
+        assertEquals(sorted(smiths_and_smithsons), sorted(index.prefixValues("SMITH")));
+        assertEquals(600, index.lookupValues().size());
+        assertTrue(index.keySet().contains("[JONES, null, 1850]"));
+
+        int count = 0;
+        for (final DynamicLXP record : index.lookup("JONES", "J")) {
+            assertEquals("JONES", record.get("surname"));
+            assertEquals("J", record.get("initial"));
+            count++;
+        }
+        assertEquals(idsMatching(expected, "JONES", "J").size(), count);
+
+        try {
+            index.lookupValues("SMITH", "J", 1853, "extra");
+            fail("more values than fields were accepted");
+        } catch (final BucketException e) {
+            // expected
+        }
+    }
+
+    private static List<Long> idsMatching(final Map<List<Object>, List<Long>> expected, final Object... leading_values) {
+
+        final List<Long> ids = new ArrayList<>();
+        for (final Map.Entry<List<Object>, List<Long>> entry : expected.entrySet()) {
+            if (entry.getKey().subList(0, leading_values.length).equals(Arrays.asList(leading_values))) {
+                ids.addAll(entry.getValue());
+            }
+        }
+        return sorted(ids);
+    }
+
+    private static List<Long> sorted(final List<Long> ids) {
+
+        final List<Long> copy = new ArrayList<>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+}
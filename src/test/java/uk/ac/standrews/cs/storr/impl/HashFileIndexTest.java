@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucketIndex;
+import uk.ac.standrews.cs.storr.interfaces.IIndexedBucket;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HashFileIndexTest extends CommonTest {
+
+    private static final int NUMBER_OF_VALUES = 2000; // enough to rehash the table more than once
+
+    @Test
+    public void recordsAreFoundByValue() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("INDEXED", BucketKind.INDEXED);
+        bucket.addIndex("surname");
+
+        final List<Long> smith_ids = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+
+            final DynamicLXP record = new DynamicLXP();
+            record.put("surname", i % 3 == 0 ? "smith" : "surname " + i);
+            bucket.makePersistent(record);
+
+            if (i % 3 == 0) {
+                smith_ids.add(record.getId());
+            }
+        }
+
+        final IBucketIndex<DynamicLXP> index = bucket.getIndex("surname");
+
+        assertEquals(smith_ids, index.values("smith")); // in order of addition, across overflow blocks
+        assertEquals(1, index.values("surname 1999").size());
+        assertTrue(index.values("jones").isEmpty());
+        assertEquals(NUMBER_OF_VALUES - smith_ids.size() + 1, index.keySet().size());
+
+        int count = 0;
+        for (final DynamicLXP record : index.records("smith")) {
+            assertEquals("smith", record.getString(record.getMetaData().getSlot("surname")));
+            count++;
+        }
+        assertEquals(smith_ids.size(), count);
+        assertFalse(index.records("jones").iterator().hasNext());
+    }
+
+    @Test
+    public void indexIsReadFromItsFile() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("INDEXED", BucketKind.INDEXED);
+        bucket.addIndex("surname");
+
+        for (int i = 0; i < NUMBER_OF_VALUES; i++) {
+            final DynamicLXP record = new DynamicLXP();
+            record.put("surname", "surname " + i % 100);
+            bucket.makePersistent(record);
+        }
+
+        final Path dir = ((DirectoryBackedIndexedBucket) bucket).dirPath().resolve("INDICES").resolve(IndexKind.HASH.directoryName("surname"));
+        final HashFileIndex reopened = new HashFileIndex("surname", dir, (DirectoryBackedIndexedBucket) bucket);
+
+        assertEquals(100, reopened.keySet().size());
+        assertEquals(NUMBER_OF_VALUES / 100, reopened.values("surname 42").size());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucketIndex;
+import uk.ac.standrews.cs.storr.interfaces.IIndexedBucket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class IndexBackfillTest extends CommonTest {
+
+    private static final int NUMBER_OF_RECORDS = 3000;
+    private static final int NUMBER_OF_VALUES = 10;
+
+    @Test
+    public void indexesAreBuiltFromExistingRecordsWhileBeingWritten() throws Exception {
+
+        final IIndexedBucket<DynamicLXP> bucket = populatedBucket();
+
+        // Keep writing while the indexes are built.
+        final AtomicBoolean building = new AtomicBoolean(true);
+        final List<Long> written = new ArrayList<>();
+        final Thread writer = new Thread(() -> {
+            try {
+                while (building.get() || written.size() < 100) {
+                    written.add(write(bucket, written.size()));
+                }
+            } catch (final BucketException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+
+        bucket.addIndex("hashed", IndexKind.HASH);
+        bucket.addIndex("ordered", IndexKind.ORDERED);
+        building.set(false);
+        writer.join();
+
+        final int total = NUMBER_OF_RECORDS + written.size();
+        assertEquals(total, bucket.size());
+
+        for (final String label : new String[]{"hashed", "ordered"}) {
+
+            final IBucketIndex<DynamicLXP> index = bucket.getIndex(label);
+            int count = 0;
+            for (int value = 0; value < NUMBER_OF_VALUES; value++) {
+                final List<Long> ids = index.values(String.valueOf(value));
+                assertEquals(ids.size(), ids.stream().distinct().count());
+                count += ids.size();
+            }
+            assertEquals(label, total, count);
+        }
+    }
+
+    @Test
+    public void fileIndexesAreBuiltRecordByRecord() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = populatedBucket();
+        bucket.addIndex("hashed", IndexKind.FILES);
+        write(bucket, 0);
+
+        assertEquals(NUMBER_OF_RECORDS / NUMBER_OF_VALUES + 1, bucket.getIndex("hashed").values("0").size());
+    }
+
+    @Test
+    public void valuesThatArePrefixesOfOthersKeepAllTheirRecords() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("PREFIXES", BucketKind.INDEXED);
+        // Ids are positive, so the first byte of an id in an entry is at least 0x80, and the entries of "Ren" fall on
+        // both sides of those of "René", whose extension starts with the byte 0xC3.
+        final String[] surnames = {"Ren", "René", "Renée"};
+        final List<DynamicLXP> records = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final DynamicLXP record = new DynamicLXP();
+            record.put("surname", surnames[i % surnames.length]);
+            records.add(record);
+        }
+        bucket.makePersistentAll(records);
+
+        bucket.addIndex("surname", IndexKind.HASH);
+
+        final DynamicLXP later = new DynamicLXP();
+        later.put("surname", "Ren"); // added after loading, to a value whose postings fill their block
+        bucket.makePersistent(later);
+
+        final IBucketIndex<DynamicLXP> index = bucket.getIndex("surname");
+        assertEquals(101, index.values("Ren").size());
+        assertEquals(100, index.values("René").size());
+        assertEquals(100, index.values("Renée").size());
+        assertEquals(3, index.keySet().size());
+    }
+
+    @Test
+    public void failedBuildsLeaveNoIndex() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = populatedBucket();
+        final DynamicLXP record = new DynamicLXP();
+        record.put("hashed", String.join("", Collections.nCopies(BTreeIndex.MAXIMUM_VALUE_LENGTH, "x")));
+        bucket.makePersistent(record);
+
+        try {
+            bucket.addIndex("hashed", IndexKind.ORDERED);
+            fail("value too long to index");
+        } catch (final IOException e) {
+            // expected
+        }
+        assertNull(bucket.getIndex("hashed"));
+        assertFalse(Files.exists(indexPath(bucket, IndexKind.ORDERED, "hashed")));
+
+        bucket.addIndex("hashed", IndexKind.HASH);
+        assertEquals(NUMBER_OF_RECORDS / NUMBER_OF_VALUES, bucket.getIndex("hashed").values("0").size());
+    }
+
+    @Test
+    public void interruptedBuildsAreRemovedWhenReopened() throws RepositoryException, BucketException, IOException {
+
+        final IIndexedBucket<DynamicLXP> bucket = populatedBucket();
+        bucket.addIndex("ordered", IndexKind.ORDERED);
+
+        // Leave the index as a build that stopped before completing would.
+        final Path path = indexPath(bucket, IndexKind.ORDERED, "ordered");
+        Files.createFile(path.resolveSibling(path.getFileName() + ".BUILDING"));
+
+        final IIndexedBucket<DynamicLXP> reopened = (IIndexedBucket<DynamicLXP>) BucketKind.getBucket((Repository) repository, "BACKFILLED");
+        assertNull(reopened.getIndex("ordered"));
+        assertFalse(Files.exists(path));
+
+        reopened.addIndex("ordered", IndexKind.ORDERED);
+        assertEquals(NUMBER_OF_RECORDS / NUMBER_OF_VALUES, reopened.getIndex("ordered").values("0").size());
+    }
+
+    private static Path indexPath(final IIndexedBucket<DynamicLXP> bucket, final IndexKind kind, final String label) {
+        return ((DirectoryBackedIndexedBucket<DynamicLXP>) bucket).dirPath().resolve("INDICES").resolve(kind.directoryName(label));
+    }
+
+    private IIndexedBucket<DynamicLXP> populatedBucket() throws RepositoryException, BucketException {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("BACKFILLED", BucketKind.INDEXED);
+        final List<DynamicLXP> records = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_RECORDS; i++) {
+            final DynamicLXP record = new DynamicLXP();
+            record.put("hashed", String.valueOf(i % NUMBER_OF_VALUES));
+            record.put("ordered", i % NUMBER_OF_VALUES);
+            records.add(record);
+        }
+        bucket.makePersistentAll(records);
+        return bucket;
+    }
+
+    private static long write(final IIndexedBucket<DynamicLXP> bucket, final int i) throws BucketException {
+
+        final DynamicLXP record = new DynamicLXP();
+        record.put("hashed", String.valueOf(i % NUMBER_OF_VALUES));
+        record.put("ordered", i % NUMBER_OF_VALUES);
+        bucket.makePersistent(record);
+        return record.getId();
+    }
+}
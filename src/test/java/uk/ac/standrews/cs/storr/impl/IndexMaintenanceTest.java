@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.transaction.interfaces.ITransaction;
+import uk.ac.standrews.cs.storr.interfaces.IIndexedBucket;
+import uk.ac.standrews.cs.storr.interfaces.IOrderedBucketIndex;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class IndexMaintenanceTest extends CommonTest {
+
+    @Test
+    public void indexesFollowUpdatesAndDeletes() throws Exception {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("MAINTAINED", BucketKind.INDEXED);
+        bucket.addIndex("surname", IndexKind.HASH);
+        bucket.addIndex("year", IndexKind.ORDERED);
+        bucket.addIndex("place", IndexKind.FILES);
+
+        final DynamicLXP smith = record("smith", 1855, "fife");
+        final DynamicLXP jones = record("jones", 1860, "fife");
+        bucket.makePersistent(smith);
+        bucket.makePersistent(jones);
+
+        final ITransaction transaction = store.getTransactionManager().beginTransaction();
+        smith.put("surname", "smyth");
+        smith.put("place", "perth");
+        jones.put("year", 1870);
+        bucket.update(smith);
+        bucket.update(jones);
+
+        assertEquals(Collections.singletonList(smith.getId()), bucket.getIndex("surname").values("smith")); // not until commit
+        transaction.commit();
+
+        assertTrue(bucket.getIndex("surname").values("smith").isEmpty());
+        assertEquals(Collections.singletonList(smith.getId()), bucket.getIndex("surname").values("smyth"));
+        assertEquals(Collections.singletonList(jones.getId()), bucket.getIndex("surname").values("jones"));
+        assertEquals(Arrays.asList(smith.getId(), jones.getId()), ((IOrderedBucketIndex<DynamicLXP>) bucket.getIndex("year")).rangeValues(1850, 1880));
+        assertTrue(((IOrderedBucketIndex<DynamicLXP>) bucket.getIndex("year")).rangeValues(1856, 1865).isEmpty());
+        assertEquals(Collections.singletonList(smith.getId()), bucket.getIndex("place").values("perth"));
+        assertEquals(Collections.singletonList(jones.getId()), bucket.getIndex("place").values("fife"));
+
+        bucket.delete(jones.getId());
+
+        assertTrue(bucket.getIndex("surname").values("jones").isEmpty());
+        assertFalse(bucket.getIndex("surname").keySet().contains("jones"));
+        assertEquals(Collections.singletonList(smith.getId()), ((IOrderedBucketIndex<DynamicLXP>) bucket.getIndex("year")).rangeValues(null, null));
+        assertTrue(bucket.getIndex("place").values("fife").isEmpty());
+    }
+
+    @Test
+    public void recordsThatCannotBeIndexedAreNotWritten() throws Exception {
+
+        final IIndexedBucket<DynamicLXP> bucket = (IIndexedBucket<DynamicLXP>) repository.makeBucket("MAINTAINED", BucketKind.INDEXED);
+        bucket.addIndex("surname", IndexKind.HASH);
+        bucket.addIndex("place", IndexKind.ORDERED);
+
+        final DynamicLXP smith = record("smith", 1855, "fife");
+        final DynamicLXP jones = record("jones", 1860, String.join("", Collections.nCopies(BTreeIndex.MAXIMUM_VALUE_LENGTH, "x")));
+
+        try {
+            bucket.makePersistentAll(Arrays.asList(smith, jones));
+            fail("place too long to index");
+        } catch (final BucketException e) {
+            // expected
+        }
+        assertEquals(0, bucket.size());
+        assertTrue(bucket.getIndex("surname").values("smith").isEmpty());
+    }
+
+    private static DynamicLXP record(final String surname, final int year, final String place) {
+
+        final DynamicLXP record = new DynamicLXP();
+        record.put("surname", surname);
+        record.put("year", year);
+        record.put("place", place);
+        return record;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class InputStreamTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "STREAMED";
+    private static final int RECORD_COUNT = 500;
+
+    private IBucket<Person> bucket;
+
+    @Before
+    public void createRecords() throws RepositoryException, BucketException {
+
+        bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+
+        final List<Person> records = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            records.add(new Person(i, "home"));
+        }
+        bucket.makePersistentAll(records);
+        bucket.invalidateCache();
+    }
+
+    @Test
+    public synchronized void readAheadPreservesOrder() throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        for (final Person person : bucket.getInputStream(16, 4)) {
+            ids.add(person.getId());
+        }
+
+        assertEquals(bucket.getOids(), ids);
+    }
+
+    @Test
+    public synchronized void streamsVisitAllRecords() throws BucketException {
+
+        final List<Long> ids = bucket.getInputStream().stream().map(Person::getId).collect(Collectors.toList());
+        assertEquals(bucket.getOids(), ids);
+
+        final long in_parallel = bucket.getInputStream().parallelStream().filter(person -> person.address.equals("home")).count();
+        assertEquals(RECORD_COUNT, in_parallel);
+
+        final List<Long> ordered = bucket.getInputStream().parallelStream().map(Person::getId).collect(Collectors.toList());
+        assertEquals(bucket.getOids(), ordered);
+    }
+}
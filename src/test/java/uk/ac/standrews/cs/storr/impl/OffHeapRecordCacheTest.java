@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapRecordCacheTest extends CommonTest {
+
+    @Test
+    public void oldestSlabsAreReused() {
+
+        final OffHeapRecordCache cache = new OffHeapRecordCache(4000); // four slabs of 1000 bytes
+
+        for (long oid = 0; oid < 100; oid++) {
+            cache.put(oid, new byte[]{(byte) oid, 1, 2, 3, 4, 5, 6, 7, 8, 9}, cache.generation(oid));
+        }
+        assertTrue(cache.size() <= 400);
+        assertArrayEquals(new byte[]{99, 1, 2, 3, 4, 5, 6, 7, 8, 9}, cache.get(99));
+
+        for (long oid = 100; oid < 500; oid++) {
+            cache.put(oid, new byte[100], cache.generation(oid));
+        }
+        assertNull(cache.get(0));
+        assertTrue(cache.size() <= 40);
+        assertNotNull(cache.get(499));
+
+        cache.put(499, new byte[2000], cache.generation(499)); // larger than a slab
+        assertNull(cache.get(499));
+    }
+
+    @Test
+    public void invalidatedRecordsAreForgotten() {
+
+        final OffHeapRecordCache cache = new OffHeapRecordCache(1 << 20);
+        final Random random = new Random(1);
+        final long[] oids = new long[5000];
+        for (int i = 0; i < oids.length; i++) {
+            oids[i] = random.nextLong() & Long.MAX_VALUE;
+            cache.put(oids[i], ByteBuffer.allocate(8).putLong(oids[i]).array(), cache.generation(oids[i]));
+        }
+        for (int i = 0; i < oids.length; i += 3) {
+            cache.invalidate(oids[i]);
+        }
+
+        assertEquals(oids.length - (oids.length + 2) / 3, cache.size());
+        for (int i = 0; i < oids.length; i++) {
+            final byte[] record = cache.get(oids[i]);
+            if (i % 3 == 0) {
+                assertNull(record);
+            } else {
+                assertEquals(oids[i], ByteBuffer.wrap(record).getLong());
+            }
+        }
+    }
+
+    @Test
+    public void recordsInvalidatedWhileBeingReadAreNotCached() {
+
+        final OffHeapRecordCache cache = new OffHeapRecordCache(4000);
+
+        final long generation = cache.generation(7);
+        cache.invalidate(7); // the record is changed after being read
+        cache.put(7, new byte[]{1}, generation);
+        assertNull(cache.get(7));
+
+        cache.put(7, new byte[]{2}, cache.generation(7));
+        assertArrayEquals(new byte[]{2}, cache.get(7));
+    }
+
+    @Test
+    public void recordsAreDecodedFromCachedState() throws RepositoryException, BucketException {
+
+        final IBucket<DynamicLXP> bucket = repository.makeBucket("OFFHEAP", BucketKind.DIRECTORYBACKED);
+        final DirectoryBackedBucket<DynamicLXP> directory_bucket = (DirectoryBackedBucket<DynamicLXP>) bucket;
+        directory_bucket.setSerializedCacheSize(1 << 20);
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final DynamicLXP record = new DynamicLXP();
+            record.put("name", "name " + i);
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+
+        final DynamicLXP first = (DynamicLXP) directory_bucket.loader(ids.get(3)); // read from storage
+        final DynamicLXP second = (DynamicLXP) directory_bucket.loader(ids.get(3)); // decoded from the serialized cache
+        assertNotSame(first, second);
+        assertEquals("name 3", second.getString(second.getMetaData().getSlot("name")));
+
+        bucket.delete(ids.get(3));
+        try {
+            directory_bucket.loader(ids.get(3));
+            fail("deleted record was loaded");
+
+        } catch (final BucketException e) {
+            // expected, since the serialized state was discarded
+        }
+        assertTrue(directory_bucket.getSerializedCacheSize() > 0);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OidManifestTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "MANIFEST";
+
+    private IBucket<Person> bucket;
+
+    @Before
+    public void setUp() throws RepositoryException, IOException, StoreException, URISyntaxException {
+
+        super.setUp();
+        bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+    }
+
+    @Test
+    public synchronized void manifestTracksAdditionsAndDeletions() throws BucketException {
+
+        final List<Long> ids = persistRecords(10_000);
+
+        assertEquals(ids, bucket.getOids());
+        assertEquals(10_000, bucket.size());
+
+        for (int i = 0; i < 5_000; i++) {
+            bucket.delete(ids.get(i));
+        }
+
+        assertEquals(ids.subList(5_000, 10_000), bucket.getOids());
+        assertEquals(5_000, bucket.size());
+        assertFalse(bucket.getOids().contains(ids.get(0)));
+    }
+
+    @Test
+    public synchronized void manifestIsSharedAndRebuilt() throws BucketException, RepositoryException, StoreException, IOException {
+
+        final List<Long> ids = persistRecords(100);
+
+        final IBucket<Person> reopened = new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        assertEquals(ids, reopened.getOids());
+
+        bucket.delete(ids.get(0));
+        assertEquals(99, reopened.size());
+
+        final Path meta = repository.getRepositoryPath().resolve(BUCKET_NAME).resolve(DirectoryBackedBucket.META_BUCKET_NAME);
+        Files.delete(meta.resolve("OIDS"));
+        Files.delete(meta.resolve("OIDSNAPSHOT"));
+
+        final IBucket<Person> rebuilt = new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        assertEquals(99, rebuilt.size());
+    }
+
+    @Test
+    public synchronized void manifestIsReconciledWithRecordFiles() throws BucketException, IOException {
+
+        final List<Long> ids = persistRecords(2);
+
+        final Person unlisted = new Person(2, "home"); // its file written, but the manifest not updated
+        Files.copy(bucket.filePath(ids.get(0)), bucket.filePath(unlisted.getId()));
+        try {
+            bucket.makePersistent(unlisted);
+            fail("record overwritten");
+        } catch (final BucketException e) {
+            assertTrue(bucket.getOids().contains(unlisted.getId()));
+        }
+
+        final Person missing = bucket.getObjectById(ids.get(1)); // its file deleted, but the manifest not updated
+        Files.delete(bucket.filePath(missing.getId()));
+        bucket.makePersistentAll(Collections.singletonList(missing));
+
+        assertEquals(3, bucket.size());
+        assertEquals(new HashSet<>(Arrays.asList(ids.get(0), ids.get(1), unlisted.getId())), new HashSet<>(bucket.getOids()));
+    }
+
+    private List<Long> persistRecords(final int count) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Person record = new Person(i, "home");
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+}
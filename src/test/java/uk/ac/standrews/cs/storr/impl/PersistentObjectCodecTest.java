@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+
+import static org.junit.Assert.*;
+
+public class PersistentObjectCodecTest {
+
+    @Test
+    public void generatedCodecsAreUsed() throws PersistentObjectException {
+
+        assertTrue(PersistentObjectCodec.forClass(Person.class).isGenerated());
+        assertTrue(PersistentObjectCodec.forClass(Birth.class).isGenerated());
+        assertFalse(PersistentObjectCodec.forClass(DynamicLXP.class).isGenerated());
+
+        assertSame(PersistentObjectCodec.forClass(Person.class), PersistentObjectCodec.forClass(Person.class));
+        assertEquals(Birth.class, PersistentObjectCodec.forClass(Birth.class).newInstance().getClass());
+    }
+
+    @Test
+    public void fieldsAreAccessedDirectlyOrReflectively() throws PersistentObjectException {
+
+        final PersistentObjectCodec<Person> codec = PersistentObjectCodec.forClass(Person.class);
+        final Person person = codec.newInstance();
+
+        codec.setField(person, "address", "north street");  // accessible field
+        codec.setField(person, "age", 42);                  // private field
+
+        assertEquals(new Person(42, "north street"), person);
+        assertEquals("north street", codec.getField(person, "address"));
+        assertEquals(42, codec.getField(person, "age"));
+    }
+
+    @Test
+    public void reflectiveCodecCreatesInstancesAndAccessesFields() throws PersistentObjectException {
+
+        final PersistentObjectCodec<Person> codec = new PersistentObjectCodec<>(Person.class);
+        final Person person = codec.newInstance();
+
+        codec.setField(person, "address", "south street");
+        codec.setField(person, "age", 7);
+
+        assertFalse(codec.isGenerated());
+        assertEquals(new Person(7, "south street"), person);
+        assertEquals(7, codec.getField(person, "age"));
+    }
+
+    @Test(expected = PersistentObjectException.class)
+    public void reflectiveCodecRejectsMistypedValue() throws PersistentObjectException {
+
+        final PersistentObjectCodec<Person> codec = new PersistentObjectCodec<>(Person.class);
+        codec.setField(codec.newInstance(), "age", "seven");
+    }
+
+    @Test(expected = PersistentObjectException.class)
+    public void mistypedValueIsRejected() throws PersistentObjectException {
+
+        final PersistentObjectCodec<Person> codec = PersistentObjectCodec.forClass(Person.class);
+        codec.setField(codec.newInstance(), "address", 42);
+    }
+}
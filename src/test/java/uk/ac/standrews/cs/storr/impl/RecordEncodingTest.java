@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.*;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.storr.interfaces.IRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class RecordEncodingTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "ENCODED";
+
+    @Test
+    public synchronized void typedRecordsCanBeWrittenInBinary() throws RepositoryException, BucketException, StoreException, IOException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED, Person.class);
+        ((DirectoryBackedBucket) bucket).changeEncoding(RecordEncoding.BINARY, 1);
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final Person record = new Person(i, "home " + i);
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+
+        assertEquals(BinaryRecordWriter.MAGIC, Files.readAllBytes(bucket.filePath(ids.get(0)))[0]);
+
+        final IBucket<Person> reopened = new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        assertEquals(RecordEncoding.BINARY, ((DirectoryBackedBucket) reopened).getEncoding());
+        assertEquals(new Person(5, "home 5"), reopened.getObjectById(ids.get(5)));
+    }
+
+    @Test
+    public synchronized void existingBucketCanBeConverted() throws RepositoryException, BucketException, StoreException, IOException {
+
+        final IBucket<DynamicLXP> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED);
+        final DynamicLXP record = new DynamicLXP();
+        record.put("name", "a name");
+        record.put("count", 42);
+        record.put("big", 1L << 40);
+        record.put("ratio", 0.5);
+        record.put("flag", true);
+        record.put("list", new ArrayList<>(Arrays.asList(1, 2, 3)));
+        bucket.makePersistent(record);
+        final String json = record.toString();
+
+        final DirectoryBackedBucket directory_bucket = (DirectoryBackedBucket) bucket;
+        directory_bucket.changeEncoding(RecordEncoding.BINARY, 4);
+        assertEquals(BinaryRecordWriter.MAGIC, Files.readAllBytes(bucket.filePath(record.getId()))[0]);
+
+        final DynamicLXP read = (DynamicLXP) new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME).getObjectById(record.getId());
+        assertEquals("a name", read.getString(read.getMetaData().getSlot("name")));
+        assertEquals(42, read.getInt(read.getMetaData().getSlot("count")));
+        assertEquals(1L << 40, read.getLong(read.getMetaData().getSlot("big")));
+        assertEquals(0.5, read.getDouble(read.getMetaData().getSlot("ratio")), 0.0);
+        assertTrue(read.getBoolean(read.getMetaData().getSlot("flag")));
+        assertEquals(Arrays.asList(1, 2, 3), read.getList(read.getMetaData().getSlot("list")));
+        assertEquals(json, read.toString()); // JSON is still the export format
+
+        directory_bucket.changeEncoding(RecordEncoding.JSON, 4);
+        assertEquals('{', Files.readAllBytes(bucket.filePath(record.getId()))[0]);
+    }
+
+    @Test
+    public synchronized void boxedPrimitivesAreReadBackAsFromJSON() throws RepositoryException, BucketException, StoreException {
+
+        final IBucket<DynamicLXP> json_bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED);
+        final IBucket<DynamicLXP> binary_bucket = repository.makeBucket("BINARY", BucketKind.DIRECTORYBACKED);
+        ((DirectoryBackedBucket) binary_bucket).changeEncoding(RecordEncoding.BINARY, 1);
+
+        final Object[] values = {7, 1L << 40, 0.1, 0.1f, (short) 300, (byte) -5, true, 'c'};
+        final DynamicLXP json_record = new DynamicLXP();
+        final DynamicLXP binary_record = new DynamicLXP();
+        for (int i = 0; i < values.length; i++) {
+            json_record.put("field" + i, values[i]);
+            binary_record.put("field" + i, values[i]);
+        }
+        json_bucket.makePersistent(json_record);
+        binary_bucket.makePersistent(binary_record);
+
+        final IRepository reopened = new Store(store_path).getRepository(REPOSITORY_NAME);
+        final DynamicLXP json_read = (DynamicLXP) reopened.getBucket(BUCKET_NAME).getObjectById(json_record.getId());
+        final DynamicLXP binary_read = (DynamicLXP) reopened.getBucket("BINARY").getObjectById(binary_record.getId());
+
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i].getClass().getSimpleName(), json_read.get("field" + i), binary_read.get("field" + i));
+        }
+        assertEquals(0.1, binary_read.get("field3"));
+        assertEquals(300, binary_read.get("field4"));
+        assertEquals("c", binary_read.get("field7"));
+    }
+
+    @Test
+    public synchronized void binaryRecordsAreDecodedOnAccess() throws RepositoryException, BucketException, StoreException {
+
+        final IBucket<DynamicLXP> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.DIRECTORYBACKED);
+        ((DirectoryBackedBucket) bucket).changeEncoding(RecordEncoding.BINARY, 1);
+
+        final DynamicLXP record = new DynamicLXP();
+        for (int i = 0; i < 10; i++) {
+            record.put("field" + i, "value " + i);
+        }
+        bucket.makePersistent(record);
+
+        final DynamicLXP read = (DynamicLXP) new Store(store_path).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME).getObjectById(record.getId());
+        assertEquals(10, read.getFieldCount());
+
+        final int slot = read.getMetaData().getSlot("field7");
+        final List<String> values = IntStream.range(0, 100).parallel().mapToObj(i -> read.getString(slot)).distinct().collect(Collectors.toList());
+        assertEquals(Collections.singletonList("value 7"), values);
+
+        assertEquals("value 3", read.get("field3"));
+        assertEquals(record.toString(), read.toString());
+    }
+
+    @Test
+    public synchronized void segmentedBucketCanBeConverted() throws RepositoryException, BucketException {
+
+        final IBucket<Person> bucket = repository.makeBucket(BUCKET_NAME, BucketKind.SEGMENTED, Person.class);
+        final Person record = new Person(7, "segment");
+        bucket.makePersistent(record);
+
+        ((DirectoryBackedBucket) bucket).changeEncoding(RecordEncoding.BINARY, 1);
+        bucket.invalidateCache();
+
+        assertEquals(1, bucket.size());
+        assertEquals(record, bucket.getObjectById(record.getId()));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.impl.exceptions.StoreException;
+import uk.ac.standrews.cs.storr.impl.transaction.exceptions.TransactionFailedException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+import uk.ac.standrews.cs.storr.interfaces.IStore;
+import uk.ac.standrews.cs.storr.impl.transaction.interfaces.ITransaction;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SegmentBackedBucketTest extends CommonTest {
+
+    private static final String BUCKET_NAME = "SEGMENTS";
+
+    private IBucket<Person> bucket;
+
+    @Before
+    public void setUp() throws RepositoryException, IOException, StoreException, URISyntaxException {
+
+        super.setUp();
+        bucket = repository.makeBucket(BUCKET_NAME, BucketKind.SEGMENTED, Person.class);
+    }
+
+    @Test
+    public synchronized void recordsAreRetrievable() throws BucketException, RepositoryException {
+
+        final List<Long> ids = persistRecords(100);
+
+        assertEquals(BucketKind.SEGMENTED, bucket.getKind());
+        assertEquals(ids, bucket.getOids());
+        assertEquals(100, bucket.size());
+
+        for (int i = 0; i < ids.size(); i++) {
+            assertTrue(bucket.contains(ids.get(i)));
+            assertEquals(new Person(i, "home"), bucket.getObjectById(ids.get(i)));
+        }
+    }
+
+    @Test
+    public synchronized void deletedRecordsAreRemoved() throws BucketException {
+
+        final List<Long> ids = persistRecords(10);
+
+        bucket.delete(ids.get(3));
+
+        assertFalse(bucket.contains(ids.get(3)));
+        assertEquals(9, bucket.size());
+        assertFalse(bucket.getOids().contains(ids.get(3)));
+    }
+
+    @Test
+    public synchronized void updatesAreVisibleAfterCommit() throws BucketException, StoreException, TransactionFailedException {
+
+        final long id = persistRecords(1).get(0);
+
+        final ITransaction txn = store.getTransactionManager().beginTransaction();
+        final Person updated = bucket.getObjectById(id);
+        updated.address = "away";
+        bucket.update(updated);
+        txn.commit();
+
+        bucket.invalidateCache();
+        assertEquals(new Person(0, "away"), bucket.getObjectById(id));
+        assertEquals(1, bucket.size());
+    }
+
+    @Test
+    public synchronized void recordsSurviveReopening() throws BucketException, RepositoryException, StoreException, IOException {
+
+        final List<Long> ids = persistRecords(20);
+
+        final IStore reopened = new Store(store_path);
+        final IBucket<Person> reopened_bucket = reopened.getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+
+        assertEquals(BucketKind.SEGMENTED, reopened_bucket.getKind());
+        assertEquals(ids, reopened_bucket.getOids());
+        assertEquals(new Person(7, "home"), reopened_bucket.getObjectById(ids.get(7)));
+    }
+
+    @Test
+    public synchronized void recordsWrittenByAnotherStoreAreSeen() throws BucketException, RepositoryException, StoreException {
+
+        final List<Long> ids = persistRecords(5);
+
+        final IStore other = new Store(store_path);
+        final IBucket<Person> other_bucket = other.getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        final Person record = new Person(5, "elsewhere");
+        other_bucket.makePersistent(record);
+        other_bucket.delete(ids.get(0));
+
+        assertEquals(5, bucket.size());
+        assertTrue(bucket.contains(record.getId()));
+        assertFalse(bucket.contains(ids.get(0)));
+        assertEquals(new Person(5, "elsewhere"), bucket.getObjectById(record.getId()));
+
+        bucket.invalidateCache(); // reopens the files
+        assertEquals(5, bucket.getOids().size());
+        assertEquals(new Person(1, "home"), bucket.getObjectById(ids.get(1)));
+    }
+
+    @Test
+    public synchronized void cachedRecordsChangedByAnotherJournalledStoreAreSeen() throws Exception {
+
+        final IStore writer_store = new Store(store_path, ChangeNotification.JOURNAL);
+        final IBucket<Person> writer = writer_store.getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+        final IBucket<Person> reader = new Store(store_path, ChangeNotification.JOURNAL).getRepository(REPOSITORY_NAME).getBucket(BUCKET_NAME, Person.class);
+
+        final List<Long> ids = persistRecords(2);
+        assertEquals(new Person(0, "home"), reader.getObjectById(ids.get(0)));
+        assertEquals(new Person(1, "home"), reader.getObjectById(ids.get(1)));
+
+        final ITransaction txn = writer_store.getTransactionManager().beginTransaction();
+        final Person updated = writer.getObjectById(ids.get(0));
+        updated.address = "away";
+        writer.update(updated);
+        txn.commit();
+        writer.delete(ids.get(1));
+
+        assertEquals(new Person(0, "away"), reader.getObjectById(ids.get(0)));
+        try {
+            reader.getObjectById(ids.get(1));
+            fail("deleted record returned");
+        } catch (final BucketException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public synchronized void concurrentWritesOfARecordAddItOnce() throws Exception {
+
+        final Person record = new Person(1, "home");
+        final int threads = 8;
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    bucket.makePersistent(record);
+                    written.incrementAndGet();
+                } catch (final BucketException | InterruptedException e) {
+                    // another writer added it first
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(1, written.get());
+        assertEquals(1, bucket.size());
+        assertEquals(8 + 4 + 8 + 4, Files.size(repository.getRepositoryPath().resolve(BUCKET_NAME).resolve("SEGMENTINDEX"))); // one index entry
+    }
+
+    private List<Long> persistRecords(final int count) throws BucketException {
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Person record = new Person(i, "home");
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+}
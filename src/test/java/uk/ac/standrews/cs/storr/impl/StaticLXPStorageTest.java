@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.PersistentObjectException;
+import uk.ac.standrews.cs.storr.impl.exceptions.TypeMismatchFoundException;
+
+import static org.junit.Assert.*;
+
+public class StaticLXPStorageTest {
+
+    @Test
+    public void primitiveSlotsAreReadBack() {
+
+        final Birth birth = new Birth("smith", "john", 1850, "st andrews");
+        birth.put(Birth.REGISTRATION, 123456789012L);
+        birth.put(Birth.WEIGHT, 3.25);
+        birth.put(Birth.REGISTERED, true);
+
+        assertEquals(1850, birth.getInt(Birth.YEAR));
+        assertEquals(123456789012L, birth.getLong(Birth.REGISTRATION));
+        assertEquals(3.25, birth.getDouble(Birth.WEIGHT), 0.0);
+        assertTrue(birth.getBoolean(Birth.REGISTERED));
+        assertEquals("smith", birth.getString(Birth.SURNAME));
+
+        assertEquals(1850, birth.get(Birth.YEAR));
+        assertEquals(1850, birth.get("YEAR"));
+        assertTrue(birth.toString().contains("\"WEIGHT\":3.25"));
+    }
+
+    @Test
+    public void intValuesHeldInLongSlotsRemainInts() {
+
+        final Birth birth = new Birth();
+        birth.put(Birth.REGISTRATION, 42);
+        assertEquals(42, birth.getInt(Birth.REGISTRATION));
+        assertEquals(Integer.valueOf(42), birth.get(Birth.REGISTRATION));
+
+        birth.put("REGISTRATION", (Object) 43);
+        assertEquals(43, birth.getInt(Birth.REGISTRATION));
+
+        birth.put(Birth.REGISTRATION, 44L);
+        assertEquals(44L, birth.getLong(Birth.REGISTRATION));
+        assertEquals(Long.valueOf(44), birth.get(Birth.REGISTRATION));
+    }
+
+    @Test
+    public void inconsistentValuesReplaceUnboxedValues() {
+
+        final Birth birth = new Birth();
+        birth.put(Birth.YEAR, 1850);
+        birth.put(Birth.YEAR, "unknown");
+
+        assertEquals("unknown", birth.get(Birth.YEAR));
+        assertEquals("unknown", birth.getString(Birth.YEAR));
+
+        birth.put(Birth.YEAR, (Object) null);
+        assertNull(birth.get(Birth.YEAR));
+    }
+
+    @Test(expected = TypeMismatchFoundException.class)
+    public void typedGetterChecksType() {
+
+        final Birth birth = new Birth();
+        birth.put(Birth.REGISTRATION, 42L);
+        birth.getInt(Birth.REGISTRATION);
+    }
+
+    @Test
+    public void serializedStateIsDroppedOnceDecoded() throws PersistentObjectException {
+
+        final StringDictionary dictionary = new StringDictionary(16);
+        final BinaryRecordWriter writer = new BinaryRecordWriter(dictionary);
+        final Birth original = new Birth("smith", "john", 1850, "st andrews");
+        original.put(Birth.REGISTRATION, 42L);
+        original.put(Birth.WEIGHT, 3.25);
+        original.put(Birth.REGISTERED, true);
+        original.serializeToBinary(writer, false);
+
+        final Birth birth = new Birth();
+        birth.readBinary(new BinaryRecordReader(writer.toByteArray(), dictionary));
+
+        assertEquals("smith", birth.getString(Birth.SURNAME));
+        assertEquals("john", birth.getString(Birth.FORENAME));
+        assertEquals("st andrews", birth.getString(Birth.PLACE));
+        for (int slot = 0; slot < birth.getMetaData().getFieldCount(); slot++) {
+            birth.get(slot);
+        }
+        assertEquals(original.estimatedSize(), birth.estimatedSize());
+    }
+}
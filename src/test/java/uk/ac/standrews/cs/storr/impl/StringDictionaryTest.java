@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.*;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StringDictionaryTest extends CommonTest {
+
+    @Test
+    public void recurringStringsArePooled() {
+
+        final StringDictionary dictionary = new StringDictionary(StringDictionary.DEFAULT_CAPACITY);
+
+        final String first = new String("st andrews");
+        final String second = new String("st andrews");
+
+        assertSame(first, dictionary.canonical(first));     // seen once, so not pooled
+        assertSame(second, dictionary.canonical(second));   // pooled
+        assertSame(second, dictionary.canonical(new String("st andrews")));
+        assertEquals(StringDictionary.NO_CODE, dictionary.code("st andrews")); // not persistent
+        assertEquals(0, dictionary.size());
+
+        final StringBuilder long_value = new StringBuilder();
+        for (int i = 0; i <= StringDictionary.MAX_ENTRY_LENGTH; i++) {
+            long_value.append('x');
+        }
+        final String long_string = long_value.toString();
+        dictionary.canonical(long_string);
+        dictionary.canonical(long_string);
+        assertNotSame(long_string, dictionary.canonical(long_value.toString())); // too long to be pooled
+    }
+
+    @Test
+    public void codesArePersistedUpToCapacity() throws IOException, PersistentObjectException {
+
+        final Path path = store_path.resolve("DICTIONARY");
+        final StringDictionary dictionary = new StringDictionary(path, 2);
+
+        for (final String value : new String[]{"fife", "fife", "fife", "angus", "angus", "perth"}) {
+            dictionary.canonical(value); // reading never gives codes
+        }
+        assertEquals(0, dictionary.size());
+        assertFalse(Files.exists(path));
+
+        for (final String value : new String[]{"fife", "fife", "angus", "angus", "perth", "perth"}) {
+            dictionary.code(value);
+        }
+        final int fife = dictionary.code("fife");
+        final int angus = dictionary.code("angus");
+
+        assertEquals(2, dictionary.size());
+        assertEquals(StringDictionary.NO_CODE, dictionary.code("perth"));
+
+        final StringDictionary reopened = new StringDictionary(path, 2);
+        assertEquals("fife", reopened.get(fife));
+        assertEquals("angus", reopened.get(angus));
+        assertEquals(fife, reopened.code("fife"));
+    }
+
+    @Test
+    public void readOnlyDictionariesReadCodesButAddNone() throws IOException, PersistentObjectException {
+
+        final Path path = store_path.resolve("DICTIONARY");
+        final StringDictionary dictionary = new StringDictionary(path, 4);
+        dictionary.code("fife");
+        final int fife = dictionary.code("fife");
+
+        final StringDictionary read_only = new StringDictionary(path, 4, true);
+        final long length = Files.size(path);
+        read_only.code("angus");
+        read_only.code("angus");
+
+        assertEquals(StringDictionary.NO_CODE, read_only.code("angus"));
+        assertEquals(fife, read_only.code("fife"));
+        assertEquals("fife", read_only.get(fife));
+        assertEquals(length, Files.size(path));
+    }
+
+    @Test
+    public void binaryRecordsHoldCodesOfRecurringStrings() throws RepositoryException, BucketException, StoreException, IOException {
+
+        final IBucket<Person> bucket = repository.makeBucket("CODED", BucketKind.DIRECTORYBACKED, Person.class);
+        ((DirectoryBackedBucket) bucket).changeEncoding(RecordEncoding.BINARY, 1);
+
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final Person record = new Person(i, "north street");
+            bucket.makePersistent(record);
+            ids.add(record.getId());
+        }
+
+        final byte[] first = Files.readAllBytes(bucket.filePath(ids.get(0)));
+        final byte[] last = Files.readAllBytes(bucket.filePath(ids.get(9)));
+        assertTrue(last.length < first.length); // the address is written in full until it recurs
+
+        final IBucket<Person> reopened = new Store(store_path).getRepository(REPOSITORY_NAME).getBucket("CODED", Person.class);
+        assertEquals(new Person(9, "north street"), reopened.getObjectById(ids.get(9)));
+        assertEquals(new Person(0, "north street"), reopened.getObjectById(ids.get(0)));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Systems Research Group, University of St Andrews:
+ * <https://github.com/stacs-srg>
+ *
+ * This file is part of the module storr.
+ *
+ * storr is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * storr is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with storr. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.standrews.cs.storr.impl;
+
+import org.junit.Test;
+import uk.ac.standrews.cs.storr.impl.exceptions.BucketException;
+import uk.ac.standrews.cs.storr.impl.exceptions.RepositoryException;
+import uk.ac.standrews.cs.storr.interfaces.IBucket;
+
+import static org.junit.Assert.*;
+
+public class WindowTinyLfuCacheTest extends CommonTest {
+
+    @Test
+    public void frequentlyUsedEntriesSurviveScan() {
+
+        final WindowTinyLfuCache<String> cache = new WindowTinyLfuCache<>(100, value -> 1);
+
+        for (int round = 0; round < 5; round++) {
+            for (long key = 0; key < 50; key++) {
+                if (cache.get(key) == null) {
+                    cache.put(key, "hot " + key);
+                }
+            }
+        }
+        for (long key = 1000; key < 11000; key++) { // each used once
+            if (cache.get(key) == null) {
+                cache.put(key, "cold " + key);
+            }
+        }
+
+        int hot_held = 0;
+        for (long key = 0; key < 50; key++) {
+            if (cache.peek(key) != null) {
+                hot_held++;
+            }
+        }
+        assertTrue(hot_held >= 45);
+        assertTrue(cache.weight() <= 100);
+    }
+
+    @Test
+    public void weightIsBoundedWhenReduced() {
+
+        final WindowTinyLfuCache<String> cache = new WindowTinyLfuCache<>(1000, String::length);
+
+        for (long key = 0; key < 500; key++) {
+            cache.put(key, "value " + key);
+            cache.get(key);
+        }
+        assertTrue(cache.weight() <= 1000);
+
+        cache.setMaximumWeight(100);
+        assertTrue(cache.weight() <= 100);
+        assertTrue(cache.size() > 0);
+
+        cache.invalidateAll();
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void bucketsCanUseFrequencyPolicy() throws RepositoryException, BucketException {
+
+        final IBucket<DynamicLXP> bucket = repository.makeBucket("CACHED", BucketKind.DIRECTORYBACKED);
+        final DirectoryBackedBucket<DynamicLXP> directory_bucket = (DirectoryBackedBucket<DynamicLXP>) bucket;
+
+        final DynamicLXP record = new DynamicLXP();
+        record.put("name", "a name");
+        bucket.makePersistent(record);
+
+        directory_bucket.setCachePolicy(CachePolicy.FREQUENCY);
+        directory_bucket.setCacheByteBudget(1 << 20);
+
+        assertSame(record, bucket.getObjectById(record.getId()));
+        assertEquals(CachePolicy.FREQUENCY, directory_bucket.getCachePolicy());
+        assertTrue(record.estimatedSize() > 0);
+    }
+}